@@ -0,0 +1,132 @@
+package snowblossom.lib;
+
+import com.google.common.collect.ImmutableList;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInner;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A block along with things worked out from it that are needed more than once on the
+ * way from a peer or miner into the db: the block hash, serialized size, transaction
+ * hashes, sizes and decoded inners.  Each is worked out the first time it is asked for.
+ *
+ * Safe to share between threads, Validation fills in the inners from the threads
+ * checking the transactions.
+ */
+public class BlockWrapper
+{
+  private final Block blk;
+  private final ChainHash hash;
+  private final int tx_count;
+
+  private volatile ImmutableList<ChainHash> tx_hashes;
+  private final AtomicReferenceArray<TransactionInner> inners;
+
+  public BlockWrapper(Block blk)
+  {
+    this.blk = blk;
+    this.hash = new ChainHash(blk.getHeader().getSnowHash());
+    this.tx_count = blk.getTransactionsCount();
+    this.inners = new AtomicReferenceArray<>(tx_count);
+  }
+
+  public Block getBlock()
+  {
+    return blk;
+  }
+
+  public BlockHeader getHeader()
+  {
+    return blk.getHeader();
+  }
+
+  public ChainHash getHash()
+  {
+    return hash;
+  }
+
+  public ChainHash getPrevHash()
+  {
+    return new ChainHash(blk.getHeader().getPrevBlockHash());
+  }
+
+  public int getHeight()
+  {
+    return blk.getHeader().getBlockHeight();
+  }
+
+  /** Protobuf keeps this once worked out, unlike toByteString().size() which serializes the block */
+  public int getSize()
+  {
+    return blk.getSerializedSize();
+  }
+
+  public int getTransactionCount()
+  {
+    return tx_count;
+  }
+
+  public Transaction getTransaction(int idx)
+  {
+    return blk.getTransactions(idx);
+  }
+
+  public int getTxSize(int idx)
+  {
+    return blk.getTransactions(idx).getSerializedSize();
+  }
+
+  public ChainHash getTxHash(int idx)
+  {
+    return getTxHashes().get(idx);
+  }
+
+  public ImmutableList<ChainHash> getTxHashes()
+  {
+    ImmutableList<ChainHash> l = tx_hashes;
+    if (l == null)
+    {
+      ImmutableList.Builder<ChainHash> b = ImmutableList.builder();
+      for(Transaction tx : blk.getTransactionsList())
+      {
+        b.add(new ChainHash(tx.getTxHash()));
+      }
+      l = b.build();
+      tx_hashes = l;
+    }
+    return l;
+  }
+
+  /**
+   * @return the parsed inner data of transaction idx
+   * @throws ValidationException if it doesn't parse
+   */
+  public TransactionInner getInner(int idx)
+    throws ValidationException
+  {
+    TransactionInner inner = inners.get(idx);
+    if (inner == null)
+    {
+      try
+      {
+        inner = TransactionInner.parseFrom(blk.getTransactions(idx).getInnerData());
+      }
+      catch(java.io.IOException e)
+      {
+        throw new ValidationException(String.format("error parsing tx %d", idx), e);
+      }
+      inners.set(idx, inner);
+    }
+    return inner;
+  }
+
+  /** For Validation, to keep the inner it parsed while checking the transaction */
+  public void setInner(int idx, TransactionInner inner)
+  {
+    inners.set(idx, inner);
+  }
+
+}
@@ -0,0 +1,59 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact block relay.  A new block is sent as its header, coinbase and a short id for each
+ * other transaction, and the receiver fills in the transactions it has in its mempool.
+ *
+ * Short ids are just the front of the tx hash, so two transactions can share one.  The
+ * rebuilt block is only used if it matches the merkle root in the (already PoW checked)
+ * header, otherwise the receiver asks for the full block.
+ */
+public class CompactBlockUtil
+{
+  public static ByteString getShortId(ByteString tx_hash)
+  {
+    return tx_hash.substring(0, Globals.SHORT_TX_ID_LEN);
+  }
+
+  public static CompactBlock makeCompact(Block blk)
+  {
+    CompactBlock.Builder cb = CompactBlock.newBuilder();
+    cb.setHeader(blk.getHeader());
+    cb.setCoinbase(blk.getTransactions(0));
+    for(int i=1; i<blk.getTransactionsCount(); i++)
+    {
+      cb.addShortTxIds(getShortId(blk.getTransactions(i).getTxHash()));
+    }
+    return cb.build();
+  }
+
+  /**
+   * @param txs all the transactions of the block in order, coinbase first
+   * @return the block, or null if the transactions don't match the header
+   */
+  public static Block assemble(BlockHeader header, List<Transaction> txs)
+  {
+    if (txs.isEmpty()) return null;
+
+    ArrayList<ChainHash> hashes = new ArrayList<>();
+    for(Transaction tx : txs)
+    {
+      if (tx.getTxHash().size() != Globals.BLOCKCHAIN_HASH_LEN) return null;
+      hashes.add(new ChainHash(tx.getTxHash()));
+    }
+
+    if (!DigestUtil.getMerkleRootForTxList(hashes).equals(header.getMerkleRootHash())) return null;
+
+    return Block.newBuilder().setHeader(header).addAllTransactions(txs).build();
+  }
+
+}
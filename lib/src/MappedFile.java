@@ -0,0 +1,83 @@
+package snowblossom.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Read only memory map of an entire file, split into segments since a single
+ * MappedByteBuffer can't be larger than 2GB.  All reads are absolute so a single
+ * instance can be shared by any number of threads.  The data lives in the page cache
+ * rather than the java heap.
+ */
+public class MappedFile
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.miner");
+
+  /** Multiple of every word and hash size we read, so those never straddle segments */
+  public static final long SEGMENT_SIZE = 1024L * 1024L * 1024L;
+
+  private final MappedByteBuffer[] segments;
+  private final long length;
+
+  public MappedFile(FileChannel channel)
+    throws java.io.IOException
+  {
+    length = channel.size();
+
+    int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    segments = new MappedByteBuffer[count];
+
+    for(int i=0; i<count; i++)
+    {
+      long start = i * SEGMENT_SIZE;
+      long len = Math.min(SEGMENT_SIZE, length - start);
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+    }
+  }
+
+  public long length()
+  {
+    return length;
+  }
+
+  /**
+   * Fills the remaining space in bb with data starting at pos
+   */
+  public void read(long pos, ByteBuffer bb)
+  {
+    while(bb.remaining() > 0)
+    {
+      MappedByteBuffer seg = segments[(int) (pos / SEGMENT_SIZE)];
+      int off = (int) (pos % SEGMENT_SIZE);
+      int len = Math.min(bb.remaining(), seg.limit() - off);
+
+      int i = 0;
+      for(; i + 8 <= len; i+=8)
+      {
+        bb.putLong(seg.getLong(off + i));
+      }
+      for(; i < len; i++)
+      {
+        bb.put(seg.get(off + i));
+      }
+      pos += len;
+    }
+  }
+
+  /**
+   * Asks the OS to load the entire file into the page cache.
+   * Blocks until done, which for a large file is a long while.
+   */
+  public void load()
+  {
+    for(int i=0; i<segments.length; i++)
+    {
+      int percentage = (int) ((100L * i) / segments.length);
+      logger.info(String.format("loading mapped file: %d gb of %d (%d%%)", i, segments.length, percentage));
+      segments[i].load();
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import snowblossom.proto.BlockHeader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation free version of the PoW functions in PowUtil for use in mining loops.
+ * Gives the same results as PowUtil, which should still be used for validation.
+ *
+ * The constant parts of the header are serialized once per header rather than on
+ * every nonce and hashes are written into caller supplied buffers using Skein256.
+ * No TimeRecord in here, if you want to time it, time the loop around it.
+ *
+ * Not thread safe, keep one per thread.
+ */
+public class PowHasher
+{
+  public static final int HASH_LEN = Globals.BLOCKCHAIN_HASH_LEN;
+
+  private final Skein256 md = new Skein256(HASH_LEN * 8);
+  private final byte[] index_hash = new byte[HASH_LEN];
+
+  private BlockHeader header;
+  private byte[] header_bits;
+  private byte[] target;
+
+  /**
+   * Prepares for hashing nonces against this header.
+   * Cheap to call with the same header again.
+   */
+  public void setHeader(BlockHeader header)
+  {
+    if (this.header == header) return;
+
+    int prev_len = header.getPrevBlockHash().size();
+    int merkle_len = header.getMerkleRootHash().size();
+    int utxo_len = header.getUtxoRootHash().size();
+    int target_len = header.getTarget().size();
+
+    byte[] bits = new byte[3*4 + 1*8 + prev_len + merkle_len + utxo_len + target_len];
+    ByteBuffer bb = ByteBuffer.wrap(bits);
+
+    bb.putInt(header.getVersion());
+    bb.putInt(header.getBlockHeight());
+    bb.putLong(header.getTimestamp());
+    bb.putInt(header.getSnowField());
+
+    int off = bb.position();
+    header.getPrevBlockHash().copyTo(bits, off); off+=prev_len;
+    header.getMerkleRootHash().copyTo(bits, off); off+=merkle_len;
+    header.getUtxoRootHash().copyTo(bits, off); off+=utxo_len;
+    header.getTarget().copyTo(bits, off);
+
+    this.header_bits = bits;
+    this.target = header.getTarget().toByteArray();
+    this.header = header;
+  }
+
+  /**
+   * Same as PowUtil.hashHeaderBits() for the header given to setHeader()
+   */
+  public void hashHeaderBits(byte[] nonce, byte[] out)
+  {
+    md.update(nonce, 0, nonce.length);
+    md.update(header_bits, 0, header_bits.length);
+    md.doFinal(out, 0);
+  }
+
+  /**
+   * Same as PowUtil.getNextSnowFieldIndex()
+   */
+  public long getNextSnowFieldIndex(byte[] context, long word_count)
+  {
+    if (context.length == Skein256.BLOCK_LEN)
+    {
+      md.digest32(context, 0, index_hash, 0);
+    }
+    else
+    {
+      md.update(context, 0, context.length);
+      md.doFinal(index_hash, 0);
+    }
+
+    long v = 0;
+    for(int i=1; i<8; i++)
+    {
+      v = (v << 8) | (index_hash[i] & 0xFFL);
+    }
+
+    return v % word_count;
+  }
+
+  /**
+   * Same as PowUtil.getNextContext().  out may be prev_context.
+   */
+  public void getNextContext(byte[] prev_context, byte[] found_data, byte[] out)
+  {
+    if ((prev_context.length == HASH_LEN) && (found_data.length == Globals.SNOW_MERKLE_HASH_LEN))
+    {
+      md.digestContextWord(prev_context, found_data, out, 0);
+    }
+    else
+    {
+      md.update(prev_context, 0, prev_context.length);
+      md.update(found_data, 0, found_data.length);
+      md.doFinal(out, 0);
+    }
+  }
+
+  /**
+   * Same as PowUtil.lessThanTarget() against the target of the header given to setHeader()
+   */
+  public boolean lessThanTarget(byte[] found_hash)
+  {
+    for(int i=0; i<Math.min(Globals.TARGET_LENGTH, target.length); i++)
+    {
+      int a = found_hash[i] & 0xFF;
+      int b = target[i] & 0xFF;
+      if (a != b) return (a < b);
+    }
+    return (Globals.TARGET_LENGTH < target.length);
+  }
+
+  /**
+   * Same as PowUtil.lessThanTarget() without copying either side
+   */
+  public static boolean lessThanTarget(byte[] found_hash, ByteString target)
+  {
+    int target_len = target.size();
+    for(int i=0; i<Math.min(Globals.TARGET_LENGTH, target_len); i++)
+    {
+      int a = found_hash[i] & 0xFF;
+      int b = target.byteAt(i) & 0xFF;
+      if (a != b) return (a < b);
+    }
+    return (Globals.TARGET_LENGTH < target_len);
+  }
+
+}
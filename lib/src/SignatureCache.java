@@ -0,0 +1,106 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import snowblossom.proto.SigSpec;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers signatures that have passed verification so that a transaction seen
+ * from the user service, from peers and again in a block only has its signatures
+ * checked once.
+ *
+ * Only passing results are kept.  The key is a hash of the signed data (tx hash),
+ * the full SigSpec and the signature so any change to any of them is a miss.
+ *
+ * Thread safe.
+ */
+public class SignatureCache
+{
+  private final LRUCache<ChainHash, Boolean> passed;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  private static final ThreadLocal<MessageDigest> key_md = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue()
+    {
+      return DigestUtil.getMD();
+    }
+  };
+
+  public SignatureCache(int max_entries)
+  {
+    passed = new LRUCache<>(max_entries);
+  }
+
+  /**
+   * Same as SignatureUtil.checkSignature() but skips the check for ones
+   * that have passed before
+   */
+  public boolean checkSignature(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+    throws ValidationException
+  {
+    ChainHash key = getKey(sig_spec, signed_data, signature);
+
+    synchronized(passed)
+    {
+      if (passed.get(key) != null)
+      {
+        hits.incrementAndGet();
+        return true;
+      }
+    }
+    misses.incrementAndGet();
+
+    boolean ok = SignatureUtil.checkSignature(sig_spec, signed_data, signature);
+    if (ok)
+    {
+      synchronized(passed)
+      {
+        passed.put(key, Boolean.TRUE);
+      }
+    }
+    return ok;
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  public int size()
+  {
+    synchronized(passed)
+    {
+      return passed.size();
+    }
+  }
+
+  private static ChainHash getKey(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+  {
+    byte[] spec_bytes = sig_spec.toByteArray();
+
+    // Lengths first so the boundaries between the parts can't be shifted around
+    ByteBuffer lens = ByteBuffer.allocate(12);
+    lens.putInt(signed_data.size());
+    lens.putInt(spec_bytes.length);
+    lens.putInt(signature.size());
+
+    MessageDigest md = key_md.get();
+    md.update(lens.array());
+    md.update(signed_data.toByteArray());
+    md.update(spec_bytes);
+    md.update(signature.toByteArray());
+    return new ChainHash(md.digest());
+  }
+
+}
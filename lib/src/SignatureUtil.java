@@ -5,10 +5,12 @@ import com.google.protobuf.ByteString;
 import snowblossom.proto.SigSpec;
 import snowblossom.proto.WalletKeyPair;
 
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -30,12 +32,68 @@ public class SignatureUtil
   public static final int SIG_TYPE_RSA=4;
   public static final int SIG_TYPE_DSTU4145=5;
 
+  /** Decoded public keys, keyed by sig type and encoded key */
+  private static final int KEY_CACHE_SIZE = 10000;
+  private static final LRUCache<ByteString, PublicKey> key_cache = new LRUCache<>(KEY_CACHE_SIZE);
+
+  /** Signature engines are not thread safe, so each thread keeps one per algo */
+  private static final ThreadLocal<HashMap<String, Signature>> engine_map = new ThreadLocal<HashMap<String, Signature>>() {
+    @Override
+    protected HashMap<String, Signature> initialValue()
+    {
+      return new HashMap<>();
+    }
+  };
+
   public static boolean checkSignature(SigSpec sig_spec, ByteString signed_data, ByteString signature)
     throws ValidationException
   {
     int sig_type = sig_spec.getSignatureType();
     ByteString encoded = sig_spec.getPublicKey();
 
+    PublicKey pub_key = getPublicKey(sig_type, encoded);
+    String algo = getAlgo(sig_type);
+
+    try
+    {
+      Signature sig_engine = getVerifyEngine(algo, pub_key);
+      sig_engine.update(signed_data.toByteArray());
+
+      return sig_engine.verify(signature.toByteArray());
+    }
+    catch(Exception e)
+    {
+      throw new ValidationException(e);
+    }
+  }
+
+  /**
+   * Returns the decoded key for a SigSpec, after the same checks as always.
+   * Only keys that pass get cached, so a hit means the checks passed before.
+   */
+  public static PublicKey getPublicKey(int sig_type, ByteString encoded)
+    throws ValidationException
+  {
+    ByteString cache_key = ByteString.copyFrom(ByteBuffer.allocate(4).putInt(0, sig_type).array()).concat(encoded);
+
+    synchronized(key_cache)
+    {
+      PublicKey pub_key = key_cache.get(cache_key);
+      if (pub_key != null) return pub_key;
+    }
+
+    PublicKey pub_key = decodePublicKey(sig_type, encoded);
+
+    synchronized(key_cache)
+    {
+      key_cache.put(cache_key, pub_key);
+    }
+    return pub_key;
+  }
+
+  private static PublicKey decodePublicKey(int sig_type, ByteString encoded)
+    throws ValidationException
+  {
     PublicKey pub_key = null;
     String algo="";
 
@@ -76,20 +134,34 @@ public class SignatureUtil
       }
       pub_key = KeyUtil.decodeKey(encoded, algo);
     }
+    return pub_key;
+  }
 
-    try
-    {
-
-      Signature sig_engine = Signature.getInstance(algo);
-      sig_engine.initVerify(pub_key);
-      sig_engine.update(signed_data.toByteArray());
-
-      return sig_engine.verify(signature.toByteArray());
-    }
-    catch(Exception e)
+  /**
+   * Returns this thread's engine for algo, initialized to verify with pub_key
+   */
+  private static Signature getVerifyEngine(String algo, PublicKey pub_key)
+    throws java.security.GeneralSecurityException
+  {
+    HashMap<String, Signature> map = engine_map.get();
+    Signature sig_engine = map.get(algo);
+    if (sig_engine != null)
     {
-      throw new ValidationException(e);
+      try
+      {
+        sig_engine.initVerify(pub_key);
+        return sig_engine;
+      }
+      catch(java.security.InvalidKeyException e)
+      {
+        // The engine picked a provider for a different sort of key, start over below
+      }
     }
+
+    sig_engine = Signature.getInstance(algo);
+    sig_engine.initVerify(pub_key);
+    map.put(algo, sig_engine);
+    return sig_engine;
   }
 
   public static String getAlgo(int sig_type)
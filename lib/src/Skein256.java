@@ -0,0 +1,275 @@
+package snowblossom.lib;
+
+/**
+ * Skein-256 hash, bit for bit the same as the BouncyCastle "Skein-256-N" MessageDigest
+ * but without the provider lookup, generic buffering or allocation per hash.
+ *
+ * Along with the normal update()/doFinal() there are single call fast paths
+ * for the fixed size inputs used all over PoW and snow merkle hashing.
+ *
+ * Not thread safe.  Construction is cheap, the initial chain values are computed once per output size.
+ */
+public final class Skein256
+{
+  public static final int BLOCK_LEN = 32;
+
+  private static final long C240 = 0x1BD11BDAA9FC1A22L;
+
+  /** "SHA3" schema identifier and version 1, as a little endian word */
+  private static final long SCHEMA_VER = 0x0000000133414853L;
+
+  private static final long T1_FIRST = 1L << 62;
+  private static final long T1_FINAL = 1L << 63;
+  private static final long TYPE_CFG = 4L << 56;
+  private static final long TYPE_MSG = 48L << 56;
+  private static final long TYPE_OUT = 63L << 56;
+
+  private static final long[] IV_128 = computeIV(128);
+  private static final long[] IV_160 = computeIV(160);
+  private static final long[] IV_256 = computeIV(256);
+
+  private final int output_bytes;
+  private final long[] iv;
+
+  private final long[] chain = new long[4];
+  /** Used by the fast paths so they don't disturb an update in progress */
+  private final long[] fast_chain = new long[4];
+  private final byte[] buff = new byte[BLOCK_LEN];
+  private int buff_len;
+  private long processed;
+  private boolean first;
+
+  public Skein256(int output_bits)
+  {
+    if ((output_bits <= 0) || (output_bits > 256) || (output_bits % 8 != 0))
+    {
+      throw new IllegalArgumentException("Unsupported output size: " + output_bits);
+    }
+    this.output_bytes = output_bits / 8;
+
+    if (output_bits == 128) iv = IV_128;
+    else if (output_bits == 160) iv = IV_160;
+    else if (output_bits == 256) iv = IV_256;
+    else iv = computeIV(output_bits);
+
+    reset();
+  }
+
+  public int getDigestSize()
+  {
+    return output_bytes;
+  }
+
+  public void reset()
+  {
+    System.arraycopy(iv, 0, chain, 0, 4);
+    buff_len = 0;
+    processed = 0;
+    first = true;
+  }
+
+  public void update(byte[] in)
+  {
+    update(in, 0, in.length);
+  }
+
+  public void update(byte[] in, int off, int len)
+  {
+    while(len > 0)
+    {
+      if (buff_len == BLOCK_LEN)
+      {
+        // Only process a full buffer once we know it isn't the last block
+        processed += BLOCK_LEN;
+        ubiBlock(chain, buff, 0, processed, TYPE_MSG | (first ? T1_FIRST : 0L));
+        first = false;
+        buff_len = 0;
+      }
+      int n = Math.min(len, BLOCK_LEN - buff_len);
+      System.arraycopy(in, off, buff, buff_len, n);
+      buff_len += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Writes the hash to out at off and resets
+   */
+  public int doFinal(byte[] out, int off)
+  {
+    for(int i=buff_len; i<BLOCK_LEN; i++) buff[i]=0;
+    processed += buff_len;
+    ubiBlock(chain, buff, 0, processed, TYPE_MSG | T1_FINAL | (first ? T1_FIRST : 0L));
+
+    output(chain, out, off);
+    reset();
+    return output_bytes;
+  }
+
+  public byte[] digest()
+  {
+    byte[] out = new byte[output_bytes];
+    doFinal(out, 0);
+    return out;
+  }
+
+  public byte[] digest(byte[] in)
+  {
+    update(in);
+    return digest();
+  }
+
+  /**
+   * Hash of exactly 32 bytes of input, a single block
+   */
+  public void digest32(byte[] in, int in_off, byte[] out, int out_off)
+  {
+    System.arraycopy(iv, 0, fast_chain, 0, 4);
+    ubi(fast_chain,
+      getLong(in, in_off), getLong(in, in_off+8), getLong(in, in_off+16), getLong(in, in_off+24),
+      32L, TYPE_MSG | T1_FIRST | T1_FINAL);
+    output(fast_chain, out, out_off);
+  }
+
+  /**
+   * Hash of two 16 byte values concatenated, as in a snow merkle tree node.
+   * Also a single block.
+   */
+  public void digestPair(byte[] left, int left_off, byte[] right, int right_off, byte[] out, int out_off)
+  {
+    System.arraycopy(iv, 0, fast_chain, 0, 4);
+    ubi(fast_chain,
+      getLong(left, left_off), getLong(left, left_off+8), getLong(right, right_off), getLong(right, right_off+8),
+      32L, TYPE_MSG | T1_FIRST | T1_FINAL);
+    output(fast_chain, out, out_off);
+  }
+
+  /**
+   * Hash of a 32 byte context followed by a 16 byte snow field word,
+   * as in a PoW pass.  Two blocks.  out may be the same array as context.
+   */
+  public void digestContextWord(byte[] context, byte[] word, byte[] out, int out_off)
+  {
+    System.arraycopy(iv, 0, fast_chain, 0, 4);
+    ubi(fast_chain,
+      getLong(context, 0), getLong(context, 8), getLong(context, 16), getLong(context, 24),
+      32L, TYPE_MSG | T1_FIRST);
+    ubi(fast_chain,
+      getLong(word, 0), getLong(word, 8), 0L, 0L,
+      48L, TYPE_MSG | T1_FINAL);
+    output(fast_chain, out, out_off);
+  }
+
+  /**
+   * Runs the output block on chain c, which is clobbered
+   */
+  private void output(long[] c, byte[] out, int out_off)
+  {
+    ubi(c, 0L, 0L, 0L, 0L, 8L, TYPE_OUT | T1_FIRST | T1_FINAL);
+
+    int n = 0;
+    for(int w=0; w<4 && n < output_bytes; w++)
+    {
+      long v = c[w];
+      for(int b=0; b<8 && n < output_bytes; b++)
+      {
+        out[out_off + n] = (byte) (v >>> (8*b));
+        n++;
+      }
+    }
+  }
+
+  private static long[] computeIV(int bits)
+  {
+    long[] c = new long[4];
+    ubi(c, SCHEMA_VER, bits, 0L, 0L, 32L, TYPE_CFG | T1_FIRST | T1_FINAL);
+    return c;
+  }
+
+  private static void ubiBlock(long[] c, byte[] b, int off, long pos, long t1)
+  {
+    ubi(c, getLong(b, off), getLong(b, off+8), getLong(b, off+16), getLong(b, off+24), pos, t1);
+  }
+
+  /**
+   * One UBI block: c = Threefish-256(key = c, tweak = (pos, t1), m) ^ m
+   */
+  private static void ubi(long[] c, long m0, long m1, long m2, long m3, long t0, long t1)
+  {
+    long k0 = c[0];
+    long k1 = c[1];
+    long k2 = c[2];
+    long k3 = c[3];
+    long k4 = C240 ^ k0 ^ k1 ^ k2 ^ k3;
+    long t2 = t0 ^ t1;
+
+    long x0 = m0 + k0;
+    long x1 = m1 + k1 + t0;
+    long x2 = m2 + k2 + t1;
+    long x3 = m3 + k3;
+
+    // Subkey s is k[(s+i) mod 5] plus t[s mod 3], t[(s+1) mod 3] and s.
+    // Rather than indexing mod 5 and mod 3, keep the words for the current
+    // subkey in locals and shift them along by two each iteration.
+    long ka = k1, kb = k2, kc = k3, kd = k4, ke = k0;
+    long ta = t1, tb = t2, tc = t0;
+
+    for(long s = 1; s < 18; s += 2)
+    {
+      x0 += x1; x1 = Long.rotateLeft(x1, 14) ^ x0;
+      x2 += x3; x3 = Long.rotateLeft(x3, 16) ^ x2;
+      x0 += x3; x3 = Long.rotateLeft(x3, 52) ^ x0;
+      x2 += x1; x1 = Long.rotateLeft(x1, 57) ^ x2;
+      x0 += x1; x1 = Long.rotateLeft(x1, 23) ^ x0;
+      x2 += x3; x3 = Long.rotateLeft(x3, 40) ^ x2;
+      x0 += x3; x3 = Long.rotateLeft(x3, 5) ^ x0;
+      x2 += x1; x1 = Long.rotateLeft(x1, 37) ^ x2;
+
+      // subkey s
+      x0 += ka;
+      x1 += kb + ta;
+      x2 += kc + tb;
+      x3 += kd + s;
+
+      x0 += x1; x1 = Long.rotateLeft(x1, 25) ^ x0;
+      x2 += x3; x3 = Long.rotateLeft(x3, 33) ^ x2;
+      x0 += x3; x3 = Long.rotateLeft(x3, 46) ^ x0;
+      x2 += x1; x1 = Long.rotateLeft(x1, 12) ^ x2;
+      x0 += x1; x1 = Long.rotateLeft(x1, 58) ^ x0;
+      x2 += x3; x3 = Long.rotateLeft(x3, 22) ^ x2;
+      x0 += x3; x3 = Long.rotateLeft(x3, 32) ^ x0;
+      x2 += x1; x1 = Long.rotateLeft(x1, 32) ^ x2;
+
+      // subkey s+1
+      x0 += kb;
+      x1 += kc + tb;
+      x2 += kd + tc;
+      x3 += ke + s + 1;
+
+      // advance the schedule by two for the next iteration
+      long nk0 = kc, nk1 = kd, nk2 = ke, nk3 = ka, nk4 = kb;
+      ka = nk0; kb = nk1; kc = nk2; kd = nk3; ke = nk4;
+      long nt0 = tc, nt1 = ta, nt2 = tb;
+      ta = nt0; tb = nt1; tc = nt2;
+    }
+
+    c[0] = x0 ^ m0;
+    c[1] = x1 ^ m1;
+    c[2] = x2 ^ m2;
+    c[3] = x3 ^ m3;
+  }
+
+  private static long getLong(byte[] b, int off)
+  {
+    return (b[off] & 0xFFL)
+      | ((b[off+1] & 0xFFL) << 8)
+      | ((b[off+2] & 0xFFL) << 16)
+      | ((b[off+3] & 0xFFL) << 24)
+      | ((b[off+4] & 0xFFL) << 32)
+      | ((b[off+5] & 0xFFL) << 40)
+      | ((b[off+6] & 0xFFL) << 48)
+      | ((b[off+7] & 0xFFL) << 56);
+  }
+
+}
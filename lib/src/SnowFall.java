@@ -5,9 +5,13 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -62,6 +66,15 @@ public class SnowFall
 
   public SnowFall(String filename, String seed, long size)
     throws Exception
+  {
+    this(filename, seed, size, true);
+  }
+
+  /**
+   * @param pipelined use the overlapped read/mix/write loop.  Output is the same either way.
+   */
+  public SnowFall(String filename, String seed, long size, boolean pipelined)
+    throws Exception
   {
     logger.info(String.format("Starting snowfall on %s with seed '%s' size %d, MULTIPLICITY %d", filename, seed, size, MULTIPLICITY));
     RandomAccessFile snow = new RandomAccessFile(filename, "rw");
@@ -70,7 +83,6 @@ public class SnowFall
       2, TimeUnit.DAYS, 
       new LinkedBlockingQueue<Runnable>(),
       new DaemonThreadFactory("SnowFall"));
-    Semaphore syncsem = new Semaphore(0);
 
     snow_monster = new LinkedList<ByteBuffer>();
 
@@ -119,6 +131,39 @@ public class SnowFall
     //  - the rng state (~5k)
     //  - the existing page (4k)
 
+    long start_time = System.currentTimeMillis();
+    if (pipelined)
+    {
+      runPipelined(rng_stream, page_count, exec);
+    }
+    else
+    {
+      runBarrier(rng_stream, page_count, exec);
+    }
+    double sec = (System.currentTimeMillis() - start_time) / 1000.0;
+    double pages = (double) size * PASSES / (double) PAGESIZE;
+    logger.info(String.format("Snowfall of %s complete in %s seconds, %s page writes per second (pipelined=%s)",
+      filename,
+      new DecimalFormat("0.0").format(sec),
+      new DecimalFormat("0.00").format(pages / sec),
+      pipelined));
+
+    snow_fc.force(true);
+    snow_fc.close();
+
+    snow.close();
+    exec.shutdown();
+  }
+
+  /**
+   * The original loop.  Each batch reads its pages, waits, mixes and then writes and waits again.
+   */
+  private void runBarrier(PRNGStream rng_stream, long page_count, ThreadPoolExecutor exec)
+    throws Exception
+  {
+    Semaphore syncsem = new Semaphore(0);
+    long size = page_count * PAGESIZE;
+
     byte[][] w_buff=new byte[MULTIPLICITY][PAGESIZE];
 
     // Passes controls how many writes we do.
@@ -217,12 +262,150 @@ public class SnowFall
       syncsem.acquire(MULTIPLICITY);
 
     }
+  }
 
-    snow_fc.force(true);
-    snow_fc.close();
+  /**
+   * Produces exactly the same field as runBarrier() but keeps the device and the CPU busy together.
+   *
+   * The pages a batch touches come from the rng, which depends on every page the
+   * previous batch mixed, so the next batch can't be read before this one is mixed.
+   * What we can do is:
+   *  - let a batch's writes run while the next batch is generated, read and mixed
+   *  - mix each page as soon as its own read is done rather than after all of them
+   * A page being read that the previous batch is still writing is taken from memory,
+   * and the previous writes have to finish before this batch writes, in case
+   * the two batches share a page.
+   */
+  private void runPipelined(PRNGStream rng_stream, long page_count, ThreadPoolExecutor exec)
+    throws Exception
+  {
+    long size = page_count * PAGESIZE;
+    long writes = size * PASSES / (long)PAGESIZE / MULTIPLICITY;
 
-    snow.close();
-    exec.shutdown();
+    // Two sets, one being written out while the other is generated
+    byte[][][] w_buff=new byte[2][MULTIPLICITY][PAGESIZE];
+    long seek[][] = new long[2][MULTIPLICITY];
+    byte[][] loc_data = new byte[MULTIPLICITY][8];
+    byte[][] existing = new byte[MULTIPLICITY][PAGESIZE];
+
+    ArrayList<Future<?>> reads = new ArrayList<>();
+    ArrayList<Future<?>> pending_writes = new ArrayList<>();
+    HashMap<Long, byte[]> pending_pages = new HashMap<>(MULTIPLICITY*2+1, 0.8f);
+
+    long start_time = System.currentTimeMillis();
+    long last_report = System.currentTimeMillis();
+
+    for(long w=0; w<writes; w++)
+    {
+      if ((last_report + 10000L < System.currentTimeMillis()) || (w+1 == writes))
+      {
+        double delta_w = w * MULTIPLICITY;
+        double ms = System.currentTimeMillis() - start_time;
+        double sec = ms / 1000.0;
+        double rate = delta_w / sec;
+        double runtime_estimate = (double)writes * MULTIPLICITY / rate;
+        double runtime_est_hours = runtime_estimate/3600.0;
+        double per_comp = (double)w / (double)writes;
+        DecimalFormat df = new DecimalFormat("0.00");
+
+        logger.info(String.format("Generating snow field at %s writes per second.  Estimated total runtime is %s hours. %s complete.",
+          df.format(rate),
+          df.format(runtime_est_hours),
+          df.format(per_comp)));
+        last_report = System.currentTimeMillis();
+      }
+
+      byte[][] new_pages = w_buff[(int)(w % 2)];
+      long[] new_seek = seek[(int)(w % 2)];
+
+      for(int m=0; m<MULTIPLICITY; m++)
+      {
+        rng_stream.mixBytes(snow_monster.poll().array());
+        rng_stream.nextBytes(new_pages[m]);
+        rng_stream.nextBytes(loc_data[m]);
+      }
+      fillSnowMonster(rng_stream);
+
+      HashSet<Long> location_set = new HashSet<Long>(MULTIPLICITY*2+1, 0.8f);
+      reads.clear();
+
+      // Select and start reading pages
+      for(int m=0; m<MULTIPLICITY; m++)
+      {
+        BigInteger loc_big = new BigInteger(1, loc_data[m]);
+        long pos = loc_big.mod( BigInteger.valueOf(page_count) ).longValue();
+
+        while(location_set.contains(pos))
+        {
+          pos = (pos + 1) % page_count;
+        }
+        location_set.add(pos);
+        new_seek[m] = pos * (long)PAGESIZE;
+
+        final long seek_local = new_seek[m];
+        final byte existing_local[] = existing[m];
+
+        byte[] in_flight = pending_pages.get(seek_local);
+        if (in_flight != null)
+        {
+          System.arraycopy(in_flight, 0, existing_local, 0, PAGESIZE);
+          reads.add(null);
+        }
+        else
+        {
+          reads.add(exec.submit(new Runnable(){
+            public void run()
+            {
+              readFully(seek_local, existing_local);
+            }
+          }));
+        }
+      }
+
+      // mix pages into rng as they arrive
+      for(int m=0; m<MULTIPLICITY; m++)
+      {
+        if (reads.get(m) != null) reads.get(m).get();
+
+        rng_stream.mixBytes(existing[m]);
+
+        // xor
+        for(int i=0; i<PAGESIZE; i++)
+        {
+          new_pages[m][i] ^= existing[m][i];
+        }
+        rng_stream.mixBytes(new_pages[m]);
+      }
+
+      waitAll(pending_writes);
+      pending_pages.clear();
+
+      // save pages back
+      for(int m=0; m<MULTIPLICITY; m++)
+      {
+        final long seek_local = new_seek[m];
+        final byte newpage_local[] = new_pages[m];
+
+        pending_pages.put(seek_local, newpage_local);
+        pending_writes.add(exec.submit(new Runnable(){
+          public void run()
+          {
+            writeFully(seek_local, newpage_local);
+          }
+        }));
+      }
+    }
+    waitAll(pending_writes);
+  }
+
+  private static void waitAll(List<Future<?>> futures)
+    throws Exception
+  {
+    for(Future<?> f : futures)
+    {
+      f.get();
+    }
+    futures.clear();
   }
 
   private void fillSnowMonster(PRNGStream rng)
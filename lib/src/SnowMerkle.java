@@ -39,7 +39,7 @@ public class SnowMerkle
   public static final long DECK_ENTIRES = 1024;
 
 
-  private MessageDigest md;
+  private Skein256 md;
 
   private DataInputStream buffin;
   private byte[] root_hash;
@@ -56,7 +56,7 @@ public class SnowMerkle
       new BufferedInputStream(
       new FileInputStream(input), 1048576));
 
-    md = MessageDigest.getInstance(Globals.SNOW_MERKLE_HASH_ALGO);
+    md = new Skein256(HASH_LEN * 8);
 
     long total_len = input.length();
     if (total_len % HASH_LEN_LONG != 0) throw new RuntimeException("Impedence mismatch - " + total_len);
@@ -126,10 +126,8 @@ public class SnowMerkle
     byte[] left = findTreeHash(start, mid);
     byte[] right = findTreeHash(mid, end);
 
-    md.update(left);
-    md.update(right);
-
-    byte[] hash = md.digest();
+    byte[] hash = new byte[HASH_LEN];
+    md.digestPair(left, 0, right, 0, hash, 0);
 
     if (deck_map.containsKey(dist))
     {
@@ -0,0 +1,249 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.trie.HashUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Same output as SnowMerkle (root hash and deck files) but using all the cores.
+ *
+ * The field is split into chunks that are read with one large positional read and
+ * hashed in memory, each chunk on a fork join worker.  Deck entries are written
+ * at their computed offsets as they are found so the order the chunks finish in
+ * doesn't matter.  The levels above the chunks are combined as the tasks join.
+ */
+public class SnowMerkleParallel
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.miner");
+
+  public static void main(String args[]) throws Exception
+  {
+    Globals.addCryptoProvider();
+
+    if (args.length == 2)
+    {
+      System.out.println(new SnowMerkleParallel(new File(args[0]), args[1], true).getRootHashStr());
+    }
+    else
+    {
+      System.out.println("SnowMerkleParallel <path> <base_name>");
+      System.exit(-1);
+    }
+  }
+
+  public static final int HASH_LEN = SnowMerkle.HASH_LEN;
+  public static final long HASH_LEN_LONG = SnowMerkle.HASH_LEN_LONG;
+
+  /** 4MB per read, which is also the memory used by each thread */
+  public static final long DEFAULT_CHUNK_WORDS = 256L * 1024L;
+
+  private final FileChannel snow_channel;
+  private final TreeMap<Long, FileChannel> deck_map;
+  private final long blocks;
+  private final long chunk_words;
+  private final byte[] root_hash;
+
+  private final AtomicLong words_done = new AtomicLong(0L);
+  private final ThreadLocal<byte[]> chunk_buff;
+  private final ThreadLocal<Skein256> md;
+
+  public SnowMerkleParallel(File path, String base, boolean make_decks)
+    throws Exception
+  {
+    this(path, base, make_decks, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_WORDS);
+  }
+
+  public SnowMerkleParallel(File path, String base, boolean make_decks, int threads, long chunk_words)
+    throws Exception
+  {
+    File input = new File(path, base + ".snow");
+    RandomAccessFile snow_file = new RandomAccessFile(input, "r");
+    snow_channel = snow_file.getChannel();
+
+    long total_len = input.length();
+    if (total_len % HASH_LEN_LONG != 0) throw new RuntimeException("Impedence mismatch - " + total_len);
+
+    blocks = total_len / HASH_LEN_LONG;
+    if (Long.bitCount(blocks) != 1) throw new RuntimeException("Field must be a power of two words - " + blocks);
+    if (Long.bitCount(chunk_words) != 1) throw new RuntimeException("Chunk must be a power of two words - " + chunk_words);
+
+    this.chunk_words = Math.min(chunk_words, blocks);
+
+    deck_map = new TreeMap<>();
+    if (make_decks)
+    {
+      int deck_count = SnowMerkle.getNumberOfDecks(blocks);
+      long h = 1;
+
+      for(int i = 0; i<deck_count; i++)
+      {
+        h = h * SnowMerkle.DECK_ENTIRES;
+
+        char letter = (char) ('a' + i);
+        RandomAccessFile deck_file = new RandomAccessFile(new File(path, base +".deck." + letter), "rw");
+        deck_file.setLength(0L);
+        deck_map.put(h, deck_file.getChannel());
+      }
+    }
+
+    final int chunk_bytes = (int) (this.chunk_words * HASH_LEN_LONG);
+    chunk_buff = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue()
+      {
+        return new byte[chunk_bytes];
+      }
+    };
+    md = new ThreadLocal<Skein256>() {
+      @Override
+      protected Skein256 initialValue()
+      {
+        return new Skein256(HASH_LEN * 8);
+      }
+    };
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try
+    {
+      root_hash = pool.invoke(new TreeHashTask(0, blocks));
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+
+    snow_file.close();
+    for(FileChannel fc : deck_map.values())
+    {
+      fc.force(true);
+      fc.close();
+    }
+  }
+
+  public ByteString getRootHash()
+  {
+    return ByteString.copyFrom(root_hash);
+  }
+  public String getRootHashStr()
+  {
+    return HashUtils.getHexString(root_hash);
+  }
+
+  public class TreeHashTask extends RecursiveTask<byte[]>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final long start;
+    private final long end;
+
+    public TreeHashTask(long start, long end)
+    {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected byte[] compute()
+    {
+      try
+      {
+        long dist = end - start;
+        if (dist <= chunk_words)
+        {
+          return hashChunk(start, end);
+        }
+
+        long mid = (start + end) / 2;
+        TreeHashTask left_task = new TreeHashTask(start, mid);
+        TreeHashTask right_task = new TreeHashTask(mid, end);
+        right_task.fork();
+        byte[] left = left_task.compute();
+        byte[] right = right_task.join();
+
+        byte[] hash = new byte[HASH_LEN];
+        md.get().digestPair(left, 0, right, 0, hash, 0);
+
+        if (deck_map.containsKey(dist))
+        {
+          writeDeck(dist, start / dist, hash, 0, HASH_LEN);
+        }
+        return hash;
+      }
+      catch(java.io.IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Reads the chunk and reduces it in place, level by level, to a single hash
+   */
+  private byte[] hashChunk(long start, long end)
+    throws java.io.IOException
+  {
+    byte[] buff = chunk_buff.get();
+    Skein256 skein = md.get();
+
+    int words = (int) (end - start);
+    ByteBuffer bb = ByteBuffer.wrap(buff, 0, words * HASH_LEN);
+    long pos = start * HASH_LEN_LONG;
+    while(bb.remaining() > 0)
+    {
+      int r = snow_channel.read(bb, pos + bb.position());
+      if (r < 0) throw new java.io.EOFException("Unexpected end of snow field");
+    }
+
+    long dist = 1;
+    while(words > 1)
+    {
+      words = words / 2;
+      dist = dist * 2;
+      for(int i=0; i<words; i++)
+      {
+        // Output slot i is always before the inputs 2i and 2i+1 that are still to be read
+        skein.digestPair(buff, 2 * i * HASH_LEN, buff, (2 * i + 1) * HASH_LEN, buff, i * HASH_LEN);
+      }
+      if (deck_map.containsKey(dist))
+      {
+        writeDeck(dist, start / dist, buff, 0, words * HASH_LEN);
+      }
+    }
+
+    long done = words_done.addAndGet(end - start);
+    long report_every = SnowMerkle.DECK_ENTIRES * SnowMerkle.DECK_ENTIRES;
+    if ((done / report_every) != ((done - (end - start)) / report_every))
+    {
+      double percent = (double) done / (double) blocks;
+      DecimalFormat df = new DecimalFormat("0.000");
+      logger.info(String.format("SnowMerkle computation %s complete %d/%d", df.format(percent), done, blocks));
+    }
+
+    byte[] hash = new byte[HASH_LEN];
+    System.arraycopy(buff, 0, hash, 0, HASH_LEN);
+    return hash;
+  }
+
+  private void writeDeck(long dist, long entry, byte[] data, int off, int len)
+    throws java.io.IOException
+  {
+    FileChannel fc = deck_map.get(dist);
+    ByteBuffer bb = ByteBuffer.wrap(data, off, len);
+    long pos = entry * HASH_LEN_LONG;
+    while(bb.remaining() > 0)
+    {
+      fc.write(bb, pos + bb.position() - off);
+    }
+  }
+
+}
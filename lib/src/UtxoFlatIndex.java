@@ -0,0 +1,494 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBFace;
+import snowblossom.lib.db.ScannableDBMap;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInner;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+import snowblossom.proto.UtxoUndo;
+import snowblossom.proto.UtxoUndoEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The utxo set of one block (normally the chain tip) as a plain key to TransactionOutput map,
+ * so looking up an output is one db get rather than a walk down the trie.
+ * The trie is still what makes the utxo root hash and proofs.
+ *
+ * Each block connected writes an undo record of the previous values of what it
+ * changed so the index can be moved back on a reorg.  The changes and the tip marker
+ * are written in one putAll so the index is always at some block.  A new tip that extends
+ * the index's block is connected with connectBlock(), which puts all of that in the block's
+ * own DBBatch.  Anything else (reorgs, startup) goes through syncTo().  If it can't get from
+ * where it is to the requested block (undo records gone, or no tip marker) it is
+ * rebuilt from the trie.
+ *
+ * Lookups against any other utxo root go to the trie.
+ */
+public class UtxoFlatIndex
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  /** Different length from any utxo key */
+  private static final ByteString TIP_KEY = ByteString.copyFromUtf8("tip");
+
+  public static final int DEFAULT_UNDO_KEEP = 1000;
+  private static final int REBUILD_BATCH = 10000;
+
+  private final DBFace db;
+  private final ScannableDBMap flat_map;
+  private final ScannableDBMap undo_map;
+  private final HashedTrie trie;
+  private final int undo_keep;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Null if the index is not at any block and needs to be rebuilt */
+  private ChainHash tip_block;
+  private ChainHash tip_root;
+
+  /**
+   * @param flat_map the map to keep the index in, normally db.getUtxoFlatMap()
+   * @param undo_map the map to keep undo records in, normally db.getUtxoUndoMap()
+   */
+  public UtxoFlatIndex(DBFace db, ScannableDBMap flat_map, ScannableDBMap undo_map, HashedTrie trie, int undo_keep)
+  {
+    this.db = db;
+    this.flat_map = flat_map;
+    this.undo_map = undo_map;
+    this.trie = trie;
+    this.undo_keep = undo_keep;
+
+    loadTip();
+  }
+
+  /** Sets the tip from the marker saved with the index */
+  private void loadTip()
+  {
+    ByteString tip = flat_map.get(TIP_KEY);
+    if (tip != null)
+    {
+      setTip(new ChainHash(tip.substring(0, Globals.BLOCKCHAIN_HASH_LEN)),
+        new ChainHash(tip.substring(Globals.BLOCKCHAIN_HASH_LEN)));
+    }
+    else
+    {
+      setTip(null, null);
+    }
+  }
+
+  /**
+   * @return the utxo data for key as of utxo_root, or null if there isn't any
+   */
+  public ByteString getLeafData(ChainHash utxo_root, ByteString key)
+  {
+    lock.readLock().lock();
+    try
+    {
+      if (utxo_root.equals(tip_root))
+      {
+        return flat_map.get(key);
+      }
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+    return trie.getLeafData(utxo_root.getBytes(), key);
+  }
+
+  /** @return the utxo root the index is at or null if it needs to be rebuilt */
+  public ChainHash getTipRoot()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return tip_root;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Moves the index to the given block, disconnecting and connecting blocks as needed.
+   * Failures are logged and leave lookups going to the trie until the next call.
+   */
+  public synchronized void syncTo(BlockSummary head)
+  {
+    try
+    {
+      // After a failure or a batch from connectBlock() that didn't commit, the saved marker says where we are
+      if (tip_block == null) loadTip();
+
+      if ((tip_block == null) || (!moveTo(head)))
+      {
+        rebuild(head);
+      }
+    }
+    catch(Throwable t)
+    {
+      logger.log(Level.WARNING, "Unable to update flat utxo index", t);
+      setTip(null, null);
+    }
+  }
+
+  private boolean moveTo(BlockSummary head)
+  {
+    ChainHash head_hash = new ChainHash(head.getHeader().getSnowHash());
+    if (head_hash.equals(tip_block)) return true;
+
+    LinkedList<BlockSummary> to_connect = new LinkedList<>();
+    BlockSummary new_curr = head;
+    BlockSummary old_curr = getSummary(tip_block);
+    if (old_curr == null) return false;
+
+    // Walk both back to the common block, disconnecting on the way on the old side
+    while(!sameBlock(new_curr, old_curr))
+    {
+      if (getHeight(new_curr) >= getHeight(old_curr))
+      {
+        to_connect.addFirst(new_curr);
+        new_curr = getSummary(new ChainHash(new_curr.getHeader().getPrevBlockHash()));
+        if (new_curr == null) return false;
+      }
+      else
+      {
+        if (!disconnectBlock(old_curr)) return false;
+        old_curr = getSummary(tip_block);
+        if (old_curr == null) return false;
+      }
+    }
+
+    for(BlockSummary summary : to_connect)
+    {
+      Block blk = db.getBlockMap().get(summary.getHeader().getSnowHash());
+      if (blk == null) return false;
+      connectBlock(blk, summary);
+    }
+    return true;
+  }
+
+  /**
+   * For a new tip whose previous block is the one the index is at.  Puts the undo record,
+   * the index changes and the tip marker in batch so they are saved along with the block.
+   * Lookups go to the trie until the batch is committed, then the index is at the new block.
+   *
+   * @return false if the index is at some other block, in which case call syncTo() after
+   * the commit
+   */
+  public synchronized boolean connectBlock(BlockWrapper blk, BlockSummary summary, DBBatch batch)
+  {
+    if ((tip_block == null) || (tip_root == null)) return false;
+    if (!tip_block.equals(blk.getPrevHash())) return false;
+
+    final ChainHash block_hash = blk.getHash();
+    final ChainHash new_root = new ChainHash(summary.getHeader().getUtxoRootHash());
+
+    TreeMap<ByteString, ByteString> updates = new TreeMap<>(new ByteStringComparator());
+    updates.putAll(getUpdates(blk));
+
+    batch.put(undo_map, block_hash.getBytes(), makeUndo(block_hash, updates).toByteString());
+    updates.put(TIP_KEY, getTipMarker(block_hash, new_root));
+    batch.putAll(flat_map, updates);
+
+    ChainHash old_block = getUndoToDrop(summary);
+    if (old_block != null) batch.remove(undo_map, old_block.getBytes());
+
+    // The flat map no longer matches tip_root once the batch is saved
+    setTip(null, null);
+    batch.afterCommit(new Runnable() {
+      public void run()
+      {
+        setTip(block_hash, new_root);
+      }
+    });
+    return true;
+  }
+
+  private void connectBlock(Block blk, BlockSummary summary)
+  {
+    ChainHash block_hash = new ChainHash(blk.getHeader().getSnowHash());
+
+    TreeMap<ByteString, ByteString> batch = new TreeMap<>(new ByteStringComparator());
+    batch.putAll(getUpdates(blk));
+
+    undo_map.put(block_hash.getBytes(), makeUndo(block_hash, batch).toByteString());
+
+    ChainHash new_root = new ChainHash(summary.getHeader().getUtxoRootHash());
+    writeBatch(batch, block_hash, new_root);
+
+    ChainHash old_block = getUndoToDrop(summary);
+    if (old_block != null) undo_map.remove(old_block.getBytes());
+  }
+
+  /** @return the previous values of everything in updates, from the index at tip_block */
+  private UtxoUndo makeUndo(ChainHash block_hash, Map<ByteString, ByteString> updates)
+  {
+    UtxoUndo.Builder undo = UtxoUndo.newBuilder();
+    undo.setBlockHash(block_hash.getBytes());
+    undo.setPrevUtxoRootHash(tip_root.getBytes());
+    for(ByteString key : updates.keySet())
+    {
+      ByteString prev = flat_map.get(key);
+      if (prev == null) prev = ByteString.EMPTY;
+      undo.addEntries(UtxoUndoEntry.newBuilder().setKey(key).setPrevValue(prev).build());
+    }
+    return undo.build();
+  }
+
+  /** @return the block whose undo record goes out of reach with this one, or null */
+  private ChainHash getUndoToDrop(BlockSummary summary)
+  {
+    int old_height = summary.getHeader().getBlockHeight() - undo_keep;
+    if (old_height < 0) return null;
+    return db.getBlockHashAtHeight(old_height);
+  }
+
+  private boolean disconnectBlock(BlockSummary summary)
+  {
+    ChainHash block_hash = new ChainHash(summary.getHeader().getSnowHash());
+    ByteString undo_data = undo_map.get(block_hash.getBytes());
+    if (undo_data == null) return false;
+
+    UtxoUndo undo;
+    try
+    {
+      undo = UtxoUndo.parseFrom(undo_data);
+    }
+    catch(com.google.protobuf.InvalidProtocolBufferException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+    TreeMap<ByteString, ByteString> batch = new TreeMap<>(new ByteStringComparator());
+    for(UtxoUndoEntry e : undo.getEntriesList())
+    {
+      if (e.getPrevValue().size() == 0)
+      {
+        batch.put(e.getKey(), null);
+      }
+      else
+      {
+        batch.put(e.getKey(), e.getPrevValue());
+      }
+    }
+
+    writeBatch(batch,
+      new ChainHash(summary.getHeader().getPrevBlockHash()),
+      new ChainHash(undo.getPrevUtxoRootHash()));
+
+    undo_map.remove(block_hash.getBytes());
+    return true;
+  }
+
+  /**
+   * Clears the index and fills it from the trie at head, or leaves it empty if head is null
+   */
+  private void rebuild(BlockSummary head)
+  {
+    long t1 = System.currentTimeMillis();
+    setTip(null, null);
+    // So a rebuild that doesn't finish isn't taken for the old block later
+    flat_map.remove(TIP_KEY);
+
+    final TreeMap<ByteString, ByteString> batch = new TreeMap<>(new ByteStringComparator());
+    flat_map.scan(new ScannableDBMap.ScanVisitor() {
+      public boolean visit(ByteString key, ByteString value)
+      {
+        batch.put(key, null);
+        if (batch.size() >= REBUILD_BATCH)
+        {
+          flat_map.putAll(batch);
+          batch.clear();
+        }
+        return true;
+      }
+    });
+    flat_map.putAll(batch);
+    batch.clear();
+
+    ChainHash block_hash = ChainHash.ZERO_HASH;
+    ChainHash root = UtxoUpdateBuffer.EMPTY;
+    long count = 0;
+    if (head != null)
+    {
+      block_hash = new ChainHash(head.getHeader().getSnowHash());
+      root = new ChainHash(head.getHeader().getUtxoRootHash());
+
+      logger.info(String.format("Rebuilding flat utxo index at height %d", head.getHeader().getBlockHeight()));
+
+      // One first byte at a time to keep the node lists down
+      for(int b=0; b<256; b++)
+      {
+        LinkedList<TrieNode> proof = new LinkedList<>();
+        LinkedList<TrieNode> results = new LinkedList<>();
+        ByteString target = ByteString.copyFrom(new byte[]{(byte) b});
+        trie.getNodeDetails(root.getBytes(), target, proof, results, Integer.MAX_VALUE);
+
+        for(TrieNode node : results)
+        {
+          if (node.getIsLeaf())
+          {
+            batch.put(node.getPrefix(), node.getLeafData());
+            count++;
+          }
+        }
+        if (batch.size() >= REBUILD_BATCH)
+        {
+          flat_map.putAll(batch);
+          batch.clear();
+        }
+      }
+    }
+    writeBatch(batch, block_hash, root);
+
+    logger.info(String.format("Rebuilt flat utxo index with %d entries in %d ms", count, System.currentTimeMillis() - t1));
+  }
+
+  /**
+   * Writes the batch and the new tip marker together
+   */
+  private void writeBatch(TreeMap<ByteString, ByteString> batch, ChainHash block_hash, ChainHash utxo_root)
+  {
+    batch.put(TIP_KEY, getTipMarker(block_hash, utxo_root));
+
+    lock.writeLock().lock();
+    try
+    {
+      flat_map.putAll(batch);
+      tip_block = block_hash;
+      tip_root = utxo_root;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static ByteString getTipMarker(ChainHash block_hash, ChainHash utxo_root)
+  {
+    return block_hash.getBytes().concat(utxo_root.getBytes());
+  }
+
+  private void setTip(ChainHash block_hash, ChainHash utxo_root)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      tip_block = block_hash;
+      tip_root = utxo_root;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Same as getUpdates(Block) but uses the inners the wrapper already parsed
+   */
+  public static Map<ByteString, ByteString> getUpdates(BlockWrapper blk)
+  {
+    HashMap<ByteString, ByteString> updates = new HashMap<>();
+
+    for(int i=0; i<blk.getTransactionCount(); i++)
+    {
+      TransactionInner inner;
+      try
+      {
+        inner = blk.getInner(i);
+      }
+      catch(ValidationException e)
+      {
+        throw new RuntimeException(e);
+      }
+      addUpdates(updates, blk.getTxHash(i), inner);
+    }
+    return updates;
+  }
+
+  /**
+   * @return the utxo changes made by a block, null values for spent outputs
+   */
+  public static Map<ByteString, ByteString> getUpdates(Block blk)
+  {
+    HashMap<ByteString, ByteString> updates = new HashMap<>();
+
+    for(Transaction tx : blk.getTransactionsList())
+    {
+      TransactionInner inner;
+      try
+      {
+        inner = TransactionInner.parseFrom(tx.getInnerData());
+      }
+      catch(com.google.protobuf.InvalidProtocolBufferException e)
+      {
+        throw new RuntimeException(e);
+      }
+
+      addUpdates(updates, new ChainHash(tx.getTxHash()), inner);
+    }
+    return updates;
+  }
+
+  private static void addUpdates(Map<ByteString, ByteString> updates, ChainHash tx_id, TransactionInner inner)
+  {
+    for(TransactionInput in : inner.getInputsList())
+    {
+      updates.put(UtxoUpdateBuffer.getKey(in), null);
+    }
+
+    int out_idx = 0;
+    for(TransactionOutput out : inner.getOutputsList())
+    {
+      ByteString key = UtxoUpdateBuffer.getKey(new AddressSpecHash(out.getRecipientSpecHash()), tx_id, out_idx);
+      updates.put(key, out.toByteString());
+      out_idx++;
+    }
+  }
+
+  /** ZERO_HASH (before the first block) has no summary, so gets a stand in at height -1 */
+  private BlockSummary getSummary(ChainHash block_hash)
+  {
+    if (block_hash.equals(ChainHash.ZERO_HASH))
+    {
+      return BlockSummary.newBuilder()
+        .setHeader(BlockHeader.newBuilder()
+          .setBlockHeight(-1)
+          .setSnowHash(ChainHash.ZERO_HASH.getBytes())
+          .setUtxoRootHash(HashUtils.hashOfEmpty())
+          .build())
+        .build();
+    }
+    return db.getBlockSummaryMap().get(block_hash.getBytes());
+  }
+
+  private static int getHeight(BlockSummary summary)
+  {
+    return summary.getHeader().getBlockHeight();
+  }
+
+  private static boolean sameBlock(BlockSummary a, BlockSummary b)
+  {
+    return a.getHeader().getSnowHash().equals(b.getHeader().getSnowHash());
+  }
+
+}
@@ -1,6 +1,7 @@
 package snowblossom.lib;
 
 import com.google.protobuf.ByteString;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.proto.TransactionInput;
 import snowblossom.proto.TransactionOutput;
 import snowblossom.lib.trie.HashUtils;
@@ -12,6 +13,7 @@ import java.util.HashMap;
 public class UtxoUpdateBuffer
 {
   private HashedTrie trie;
+  private UtxoFlatIndex flat_index;
   private ChainHash utxo_root;
 
   private HashMap<ByteString, ByteString> updates;
@@ -19,15 +21,24 @@ public class UtxoUpdateBuffer
   public static final ChainHash EMPTY = new ChainHash(HashUtils.hashOfEmpty());
 
   public UtxoUpdateBuffer(HashedTrie trie, ChainHash utxo_root)
+  {
+    this(trie, null, utxo_root);
+  }
+
+  /**
+   * @param flat_index used for lookups when it is at utxo_root, may be null
+   */
+  public UtxoUpdateBuffer(HashedTrie trie, UtxoFlatIndex flat_index, ChainHash utxo_root)
   {
     this.trie = trie;
+    this.flat_index = flat_index;
     this.utxo_root = utxo_root;
     this.updates = new HashMap<>(512, 0.5f);
   }
 
   public UtxoUpdateBuffer deepCopy()
   {
-    UtxoUpdateBuffer n = new UtxoUpdateBuffer(trie, utxo_root);
+    UtxoUpdateBuffer n = new UtxoUpdateBuffer(trie, flat_index, utxo_root);
     n.updates.putAll(this.updates);
 
     return n;
@@ -36,7 +47,16 @@ public class UtxoUpdateBuffer
   public void commitIfEqual(ByteString expected_hash)
     throws ValidationException
   {
-    if (!trie.mergeIfNewRoot(utxo_root.getBytes(), updates, expected_hash))
+    commitIfEqual(expected_hash, null);
+  }
+
+  /**
+   * @param batch if not null the new trie nodes go in this instead of being written now
+   */
+  public void commitIfEqual(ByteString expected_hash, DBBatch batch)
+    throws ValidationException
+  {
+    if (!trie.mergeIfNewRoot(utxo_root.getBytes(), updates, expected_hash, batch))
     {
       throw new ValidationException("New utxo root does not match");
     }
@@ -61,6 +81,10 @@ public class UtxoUpdateBuffer
     {
       data = updates.get(key);
     }
+    else if (flat_index != null)
+    {
+      data = flat_index.getLeafData(utxo_root, key);
+    }
     else
     {
       data = trie.getLeafData(utxo_root.getBytes(), key);
@@ -6,11 +6,15 @@ import duckutil.TimeRecord;
 import duckutil.TimeRecordAuto;
 import org.junit.Assert;
 import snowblossom.proto.*;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.trie.HashedTrie;
 
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Validation
 {
@@ -28,9 +32,30 @@ public class Validation
    */
   public static void checkBlockBasics(NetworkParams params, Block blk, boolean require_transactions, boolean ignore_target)
     throws ValidationException
+  {
+    checkBlockBasics(params, blk, require_transactions, ignore_target, null);
+  }
+
+  /**
+   * @param sig_cache if not null, signatures that passed before are not checked again
+   */
+  public static void checkBlockBasics(NetworkParams params, Block blk, boolean require_transactions, boolean ignore_target,
+    SignatureCache sig_cache)
+    throws ValidationException
+  {
+    checkBlockBasics(params, new BlockWrapper(blk), require_transactions, ignore_target, sig_cache);
+  }
+
+  /**
+   * Same as above, keeping the transaction inners it parses in the wrapper for deepBlockValidation()
+   */
+  public static void checkBlockBasics(NetworkParams params, BlockWrapper wrapper, boolean require_transactions, boolean ignore_target,
+    SignatureCache sig_cache)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.checkBlockBasics"))
     {
+      Block blk = wrapper.getBlock();
       BlockHeader header = blk.getHeader();
       if (header == null) throw new ValidationException("Header missing");
 
@@ -116,18 +141,9 @@ public class Validation
           throw new ValidationException("Must be at least one transaction in a block");
         }
 
-        ArrayList<ChainHash> tx_list = new ArrayList<>();
-        for(int i=0; i<blk.getTransactionsCount(); i++)
-        {
-          Transaction tx = blk.getTransactions(i);
-          boolean coinbase = false;
-          if (i == 0) coinbase = true;
-          checkTransactionBasics(tx, coinbase);
-
-          tx_list.add(new ChainHash(tx.getTxHash()));
-        }
+        checkTransactionListBasics(blk.getTransactionsList(), sig_cache, wrapper);
 
-        ChainHash merkle_root = DigestUtil.getMerkleRootForTxList(tx_list);
+        ChainHash merkle_root = DigestUtil.getMerkleRootForTxList(wrapper.getTxHashes());
         if (!merkle_root.equals(header.getMerkleRootHash()))
         {
           throw new ValidationException(String.format("MerkleRootHash mismatch.  Found: %s, Block has: %s",
@@ -140,6 +156,131 @@ public class Validation
 
   }
 
+  /**
+   * Runs checkTransactionBasics() on each transaction, the first being the coinbase.
+   * These checks (hashes, signatures) don't need the database so larger lists are
+   * split up over a shared fork join pool.  The exception thrown is always the one
+   * for the lowest failing index, same as checking them in order.
+   */
+  public static void checkTransactionListBasics(List<Transaction> tx_list)
+    throws ValidationException
+  {
+    checkTransactionListBasics(tx_list, null);
+  }
+
+  public static void checkTransactionListBasics(List<Transaction> tx_list, SignatureCache sig_cache)
+    throws ValidationException
+  {
+    checkTransactionListBasics(tx_list, sig_cache, null);
+  }
+
+  /**
+   * @param wrapper if not null, the parsed inner of each transaction is kept in it
+   */
+  private static void checkTransactionListBasics(List<Transaction> tx_list, SignatureCache sig_cache, BlockWrapper wrapper)
+    throws ValidationException
+  {
+    int count = tx_list.size();
+    if (count < PARALLEL_TX_MIN)
+    {
+      for(int i=0; i<count; i++)
+      {
+        TransactionInner inner = checkTransactionBasics(tx_list.get(i), i == 0, sig_cache);
+        if (wrapper != null) wrapper.setInner(i, inner);
+      }
+      return;
+    }
+
+    Throwable[] errors = new Throwable[count];
+    AtomicInteger first_error = new AtomicInteger(count);
+    getTxCheckPool().invoke(new TxCheckTask(tx_list, sig_cache, wrapper, errors, first_error, 0, count));
+
+    for(int i=0; i<count; i++)
+    {
+      Throwable t = errors[i];
+      if (t == null) continue;
+
+      if (t instanceof ValidationException) throw (ValidationException) t;
+      if (t instanceof RuntimeException) throw (RuntimeException) t;
+      if (t instanceof Error) throw (Error) t;
+      throw new ValidationException(t);
+    }
+  }
+
+  /** Below this many transactions it isn't worth handing them to the pool */
+  private static final int PARALLEL_TX_MIN = 4;
+  private static final int TX_CHECK_LEAF = 2;
+
+  private static ForkJoinPool tx_check_pool;
+
+  private static synchronized ForkJoinPool getTxCheckPool()
+  {
+    if (tx_check_pool == null)
+    {
+      tx_check_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return tx_check_pool;
+  }
+
+  private static class TxCheckTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Transaction> tx_list;
+    private final SignatureCache sig_cache;
+    private final BlockWrapper wrapper;
+    private final Throwable[] errors;
+    private final AtomicInteger first_error;
+    private final int start;
+    private final int end;
+
+    public TxCheckTask(List<Transaction> tx_list, SignatureCache sig_cache, BlockWrapper wrapper,
+      Throwable[] errors, AtomicInteger first_error, int start, int end)
+    {
+      this.tx_list = tx_list;
+      this.sig_cache = sig_cache;
+      this.wrapper = wrapper;
+      this.errors = errors;
+      this.first_error = first_error;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (end - start <= TX_CHECK_LEAF)
+      {
+        for(int i=start; i<end; i++)
+        {
+          // Something earlier already failed, so this one can't be the reported error
+          if (i > first_error.get()) return;
+          try
+          {
+            TransactionInner inner = checkTransactionBasics(tx_list.get(i), i == 0, sig_cache);
+            if (wrapper != null) wrapper.setInner(i, inner);
+          }
+          catch(Throwable t)
+          {
+            errors[i] = t;
+            int prev = first_error.get();
+            while((i < prev) && (!first_error.compareAndSet(prev, i)))
+            {
+              prev = first_error.get();
+            }
+            return;
+          }
+        }
+        return;
+      }
+
+      int mid = (start + end) / 2;
+      invokeAll(
+        new TxCheckTask(tx_list, sig_cache, wrapper, errors, first_error, start, mid),
+        new TxCheckTask(tx_list, sig_cache, wrapper, errors, first_error, mid, end));
+    }
+  }
+
   public static boolean checkProof(SnowPowProof proof, ByteString expected_merkle_root, long snow_field_size)
   {
     long target_index = proof.getWordIdx();
@@ -147,15 +288,8 @@ public class Validation
     if (target_index < 0) return false;
     if (target_index >= word_count) return false;
 
-    MessageDigest md;
-    try
-    {
-      md = MessageDigest.getInstance(Globals.SNOW_MERKLE_HASH_ALGO);
-    }
-    catch(java.security.NoSuchAlgorithmException e)
-    {
-      throw new RuntimeException( e );
-    }
+    // Skein-256-128, same as Globals.SNOW_MERKLE_HASH_ALGO
+    Skein256 md = new Skein256(Globals.SNOW_MERKLE_HASH_LEN * 8);
 
     LinkedList<ByteString> stack = new LinkedList<>();
     stack.addAll(proof.getMerkleComponentList());
@@ -210,9 +344,32 @@ public class Validation
 
   public static void deepBlockValidation(NetworkParams params, HashedTrie utxo_hashed_trie, Block blk, BlockSummary prev_summary)
     throws ValidationException
+  {
+    deepBlockValidation(params, utxo_hashed_trie, null, blk, prev_summary, null);
+  }
+
+  /**
+   * @param utxo_flat_index used for input lookups if it is at the previous block, may be null
+   * @param batch if not null the new utxo trie nodes go in this rather than being written, may be null
+   */
+  public static void deepBlockValidation(NetworkParams params, HashedTrie utxo_hashed_trie, UtxoFlatIndex utxo_flat_index,
+    Block blk, BlockSummary prev_summary, DBBatch batch)
+    throws ValidationException
+  {
+    deepBlockValidation(params, utxo_hashed_trie, utxo_flat_index, new BlockWrapper(blk), prev_summary, batch);
+  }
+
+  /**
+   * Same as above, using the transaction inners and hashes already in the wrapper
+   */
+  public static void deepBlockValidation(NetworkParams params, HashedTrie utxo_hashed_trie, UtxoFlatIndex utxo_flat_index,
+    BlockWrapper wrapper, BlockSummary prev_summary, DBBatch batch)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.deepBlockValidation"))
     {
+      Block blk = wrapper.getBlock();
+
       //Check expected target
       BigInteger expected_target = PowUtil.calcNextTarget(prev_summary, params, blk.getHeader().getTimestamp());
       ByteString expected_target_bytes = BlockchainUtil.targetBigIntegerToBytes(expected_target);
@@ -264,18 +421,8 @@ public class Validation
       // - sum of coinbase output = block reward plus fee sum
       // - new UTXO root is what is expected
 
-      Transaction coinbase_tx = blk.getTransactions(0);
-      TransactionInner coinbase_inner = null;
+      TransactionInner coinbase_inner = wrapper.getInner(0);
 
-      try
-      {
-        coinbase_inner = TransactionInner.parseFrom(coinbase_tx.getInnerData());
-      }
-      catch(java.io.IOException e)
-      {
-        throw new ValidationException("error parsing coinbase on second pass somehow", e);
-      }
-      
       if (coinbase_inner.getCoinbaseExtras().getBlockHeight() != blk.getHeader().getBlockHeight())
       {
         throw new ValidationException("Block height in block header does not match block height in coinbase");
@@ -288,13 +435,13 @@ public class Validation
         }
       }
 
-      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, 
+      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_flat_index,
         new ChainHash(prev_summary.getHeader().getUtxoRootHash()));
       long fee_sum = 0L;
 
-      for(Transaction tx : blk.getTransactionsList())
+      for(int i=0; i<wrapper.getTransactionCount(); i++)
       {
-        fee_sum += deepTransactionCheck(tx, utxo_buffer);
+        fee_sum += deepTransactionCheck(wrapper.getTxHash(i), wrapper.getInner(i), utxo_buffer);
       }
 
       long reward = PowUtil.getBlockReward(params, blk.getHeader().getBlockHeight());
@@ -310,7 +457,7 @@ public class Validation
         throw new ValidationException(String.format("Coinbase could have spent %d but spent %d", coinbase_sum, coinbase_spent));
       }
 
-      utxo_buffer.commitIfEqual(blk.getHeader().getUtxoRootHash());
+      utxo_buffer.commitIfEqual(blk.getHeader().getUtxoRootHash(), batch);
     }
   
   }
@@ -318,19 +465,28 @@ public class Validation
   public static long deepTransactionCheck(Transaction tx, UtxoUpdateBuffer utxo_buffer)
     throws ValidationException
   {
-    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.deepTransactionCheck"))
-    {
-      TransactionInner inner = null;
+    TransactionInner inner = null;
 
-      try
-      {
-        inner = TransactionInner.parseFrom(tx.getInnerData());
-      }
-      catch(java.io.IOException e)
-      {
-        throw new ValidationException("error parsing tx on second pass somehow", e);
-      }
+    try
+    {
+      inner = TransactionInner.parseFrom(tx.getInnerData());
+    }
+    catch(java.io.IOException e)
+    {
+      throw new ValidationException("error parsing tx on second pass somehow", e);
+    }
+    return deepTransactionCheck(new ChainHash(tx.getTxHash()), inner, utxo_buffer);
+  }
 
+  /**
+   * @param inner the already parsed inner data of the transaction with tx_hash
+   * @return the fee
+   */
+  public static long deepTransactionCheck(ChainHash tx_hash, TransactionInner inner, UtxoUpdateBuffer utxo_buffer)
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.deepTransactionCheck"))
+    {
       long sum_of_inputs = 0L;
       // Make sure all inputs exist
       for(TransactionInput in : inner.getInputsList())
@@ -350,7 +506,7 @@ public class Validation
       for(TransactionOutput out : inner.getOutputsList())
       {
         spent+=out.getValue();
-        utxo_buffer.addOutput(out, new ChainHash(tx.getTxHash()), out_idx);
+        utxo_buffer.addOutput(out, tx_hash, out_idx);
         out_idx++;
       }
 
@@ -401,10 +557,20 @@ public class Validation
    */
   public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase)
     throws ValidationException
+  {
+    checkTransactionBasics(tx, must_be_coinbase, null);
+  }
+
+  /**
+   * @param sig_cache if not null, signatures that passed before are not checked again
+   * @return the parsed inner data, so callers don't have to parse it again
+   */
+  public static TransactionInner checkTransactionBasics(Transaction tx, boolean must_be_coinbase, SignatureCache sig_cache)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.checkTransactionBasics"))
     {
-      if (tx.toByteString().size() > Globals.MAX_TX_SIZE)
+      if (tx.getSerializedSize() > Globals.MAX_TX_SIZE)
       {
         throw new ValidationException("Transaction too big");
       }
@@ -415,7 +581,7 @@ public class Validation
 
       try
       {
-        CodedInputStream code_in = CodedInputStream.newInstance(tx.getInnerData().toByteArray());
+        CodedInputStream code_in = tx.getInnerData().newCodedInput();
 
         inner = TransactionInner.parseFrom(code_in);
 
@@ -431,7 +597,7 @@ public class Validation
 
       MessageDigest md = DigestUtil.getMD();
       MessageDigest md_addr = DigestUtil.getMDAddressSpec();
-      md.update(tx.getInnerData().toByteArray());
+      md.update(tx.getInnerData().asReadOnlyByteBuffer());
 
       ChainHash found_hash = new ChainHash(md.digest());
 
@@ -549,7 +715,16 @@ public class Validation
         if (spec.getSigSpecsCount() <= se.getKeyIdx()) throw new ValidationException("Signature entry for non-existant sig spec");
         SigSpec sig_spec = spec.getSigSpecs(se.getKeyIdx());
 
-        if (!SignatureUtil.checkSignature( sig_spec, tx.getTxHash(), se.getSignature()))
+        boolean sig_ok;
+        if (sig_cache != null)
+        {
+          sig_ok = sig_cache.checkSignature( sig_spec, tx.getTxHash(), se.getSignature());
+        }
+        else
+        {
+          sig_ok = SignatureUtil.checkSignature( sig_spec, tx.getTxHash(), se.getSignature());
+        }
+        if (!sig_ok)
         {
           throw new ValidationException("signature failed");
         }
@@ -589,6 +764,7 @@ public class Validation
       {
         throw new ValidationException("Extra string too long");
       }
+      return inner;
     }
 
   }
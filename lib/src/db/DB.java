@@ -9,6 +9,8 @@ import snowblossom.proto.BlockSummary;
 import snowblossom.proto.Transaction;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -25,12 +27,18 @@ public abstract class DB implements DBFace
   protected ProtoDBMap<Block> block_map; 
   protected ProtoDBMap<BlockSummary> block_summary_map; 
   protected DBMap utxo_node_map;
+  protected DBMap utxo_flat_map;
+  protected DBMap utxo_undo_map;
   protected DBMap block_height_map;
   protected DBMap special_map;
   protected ProtoDBMap<Transaction> tx_map;
 
+  protected Config config;
+  protected DBReadCache<Integer, ChainHash> height_cache;
+
   public DB(Config config)
   {
+    this.config = config;
     Runtime.getRuntime().addShutdownHook(new DBShutdownThread());
   }
 
@@ -42,13 +50,29 @@ public abstract class DB implements DBFace
   public void open()
     throws Exception
   {
-    block_map = new ProtoDBMap(Block.newBuilder().build().getParserForType(), openMap("block"));
-    tx_map = new ProtoDBMap(Transaction.newBuilder().build().getParserForType(), openMap("tx"));
-    block_summary_map = new ProtoDBMap(BlockSummary.newBuilder().build().getParserForType(), openMap("blocksummary"));
+    block_map = new ProtoDBMap(Block.newBuilder().build().getParserForType(), openMap("block"), getCacheSize("block", 0));
+    tx_map = new ProtoDBMap(Transaction.newBuilder().build().getParserForType(), openMap("tx"), getCacheSize("tx", 0));
+    block_summary_map = new ProtoDBMap(BlockSummary.newBuilder().build().getParserForType(), openMap("blocksummary"),
+      getCacheSize("blocksummary", 25000));
 
     utxo_node_map = openMap("u");
+    utxo_flat_map = openMap("utxo");
+    utxo_undo_map = openMap("utxoundo");
     block_height_map = openMap("height");
     special_map = openMap("special");
+
+    int height_cache_size = getCacheSize("height", 25000);
+    if (height_cache_size > 0)
+    {
+      height_cache = new DBReadCache<>(height_cache_size);
+    }
+  }
+
+  /** Size of the read cache for a map, from db_cache_size_&lt;name&gt; in the config */
+  private int getCacheSize(String name, int def)
+  {
+    if (config == null) return def;
+    return config.getIntWithDefault("db_cache_size_" + name, def);
   }
 
   @Override
@@ -66,24 +90,82 @@ public abstract class DB implements DBFace
   @Override
   public DBMap getUtxoNodeMap() { return utxo_node_map; }
 
+  @Override
+  public DBMap getUtxoFlatMap() { return utxo_flat_map; }
+
+  @Override
+  public DBMap getUtxoUndoMap() { return utxo_undo_map; }
+
   @Override
   public ChainHash getBlockHashAtHeight(int height)
   {
-    ByteBuffer bb = ByteBuffer.allocate(4);
-    bb.putInt(height);
-    ByteString hash = block_height_map.get(ByteString.copyFrom(bb.array()));
+    long gen = 0L;
+    if (height_cache != null)
+    {
+      ChainHash found = height_cache.get(height);
+      if (found != null) return found;
+      gen = height_cache.startLoad();
+    }
+
+    ByteString hash = block_height_map.get(getHeightKey(height));
     if (hash == null) return null;
 
-    return new ChainHash(hash);
+    ChainHash found = new ChainHash(hash);
+    if (height_cache != null) height_cache.loaded(gen, height, found);
+    return found;
   }
 
   @Override
   public void setBlockHashAtHeight(int height, ChainHash hash)
+  {
+    block_height_map.put(getHeightKey(height), hash.getBytes());
+    if (height_cache != null) height_cache.put(height, hash);
+  }
+
+  @Override
+  public void setBlockHashAtHeight(final int height, final ChainHash hash, DBBatch batch)
+  {
+    batch.put(block_height_map, getHeightKey(height), hash.getBytes());
+    if (height_cache != null)
+    {
+      batch.afterCommit(new Runnable() {
+        public void run()
+        {
+          height_cache.put(height, hash);
+        }
+      });
+    }
+  }
+
+  /** @return the block height cache, or null if there isn't one */
+  public DBReadCache<Integer, ChainHash> getHeightCache()
+  {
+    return height_cache;
+  }
+
+  @Override
+  public DBBatch newBatch()
+  {
+    return new DBBatch(this);
+  }
+
+  /**
+   * Saves the writes of a DBBatch.  DBs that can write several maps atomically
+   * should override this.
+   */
+  protected void commitBatch(Map<DBMap, ? extends SortedMap<ByteString, ByteString>> writes)
+  {
+    for(Map.Entry<DBMap, ? extends SortedMap<ByteString, ByteString>> me : writes.entrySet())
+    {
+      me.getKey().putAll(me.getValue());
+    }
+  }
+
+  private static ByteString getHeightKey(int height)
   {
     ByteBuffer bb = ByteBuffer.allocate(4);
     bb.putInt(height);
-
-    block_height_map.put(ByteString.copyFrom(bb.array()), hash.getBytes());
+    return ByteString.copyFrom(bb.array());
   }
 
 
@@ -0,0 +1,114 @@
+package snowblossom.lib.db;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import snowblossom.lib.trie.ByteStringComparator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Writes to any number of maps of one DB that are saved together by commit().
+ * On rocksdb that is a single atomic WriteBatch.  Other DBs write the maps
+ * one after another.
+ *
+ * Nothing is visible to reads until commit().  Caches over the maps are
+ * updated after the write, see afterCommit().
+ */
+public class DBBatch
+{
+  private final DB db;
+  private LinkedHashMap<DBMap, TreeMap<ByteString, ByteString>> writes = new LinkedHashMap<>();
+  private ArrayList<Runnable> after_commit = new ArrayList<>();
+
+  protected DBBatch(DB db)
+  {
+    this.db = db;
+  }
+
+  public synchronized void put(DBMap map, ByteString key, ByteString value)
+  {
+    getWrites(map).put(key, value);
+  }
+
+  public <M extends Message> void put(final ProtoDBMap<M> map, final ByteString key, final M value)
+  {
+    put(map.inner, key, value.toByteString());
+    if (map.getCache() != null)
+    {
+      afterCommit(new Runnable() {
+        public void run()
+        {
+          map.getCache().put(key, value);
+        }
+      });
+    }
+  }
+
+  public synchronized void putAll(DBMap map, SortedMap<ByteString, ByteString> m)
+  {
+    getWrites(map).putAll(m);
+  }
+
+  /** A null value means remove that key, same as ScannableDBMap.putAll() */
+  public synchronized void putAll(ScannableDBMap map, SortedMap<ByteString, ByteString> m)
+  {
+    getWrites(map).putAll(m);
+  }
+
+  public <M extends Message> void putAll(ProtoDBMap<M> map, Map<ByteString, M> m)
+  {
+    for(Map.Entry<ByteString, M> me : m.entrySet())
+    {
+      put(map, me.getKey(), me.getValue());
+    }
+  }
+
+  public synchronized void remove(ScannableDBMap map, ByteString key)
+  {
+    getWrites(map).put(key, null);
+  }
+
+  /** Runs r once the writes so far are saved, for updating caches */
+  public synchronized void afterCommit(Runnable r)
+  {
+    after_commit.add(r);
+  }
+
+  /** Saves everything put so far and empties the batch */
+  public void commit()
+  {
+    LinkedHashMap<DBMap, TreeMap<ByteString, ByteString>> to_write;
+    ArrayList<Runnable> to_run;
+    synchronized(this)
+    {
+      to_write = writes;
+      to_run = after_commit;
+      writes = new LinkedHashMap<>();
+      after_commit = new ArrayList<>();
+    }
+    if (to_write.size() > 0)
+    {
+      db.commitBatch(to_write);
+    }
+    for(Runnable r : to_run)
+    {
+      r.run();
+    }
+  }
+
+  private TreeMap<ByteString, ByteString> getWrites(DBMap map)
+  {
+    TreeMap<ByteString, ByteString> m = writes.get(map);
+    if (m == null)
+    {
+      m = new TreeMap<>(new ByteStringComparator());
+      writes.put(map, m);
+    }
+    return m;
+  }
+
+}
@@ -13,8 +13,17 @@ public interface DBFace
 
   public DBMap getUtxoNodeMap();
 
+  /** Current utxo set by utxo key, see UtxoFlatIndex */
+  public DBMap getUtxoFlatMap();
+  /** UtxoUndo records by block hash, see UtxoFlatIndex */
+  public DBMap getUtxoUndoMap();
+
   public ChainHash getBlockHashAtHeight(int height);
   public void setBlockHashAtHeight(int height, ChainHash hash);
+  public void setBlockHashAtHeight(int height, ChainHash hash, DBBatch batch);
+
+  /** Start a set of writes across maps that are saved together, see DBBatch */
+  public DBBatch newBatch();
 
   public DBMap getSpecialMap();
 
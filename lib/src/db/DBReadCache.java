@@ -0,0 +1,97 @@
+package snowblossom.lib.db;
+
+import snowblossom.lib.LRUCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of values read from a DB map.  Only found values are kept.
+ *
+ * A read that misses notes the write generation with startLoad() before going to
+ * the db and only caches what it got if no write to this cache happened in between,
+ * so a slow read can't put back a value that was just replaced.
+ */
+public class DBReadCache<K, V>
+{
+  private final LRUCache<K, V> cache;
+  private long write_gen;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  public DBReadCache(int size)
+  {
+    cache = new LRUCache<>(size);
+  }
+
+  /** @return the cached value, or null and counts a miss */
+  public V get(K key)
+  {
+    V v;
+    synchronized(cache)
+    {
+      v = cache.get(key);
+    }
+    if (v != null)
+    {
+      hits.getAndIncrement();
+    }
+    else
+    {
+      misses.getAndIncrement();
+    }
+    return v;
+  }
+
+  /** Call before reading from the db on a miss, and pass the result to loaded() */
+  public long startLoad()
+  {
+    synchronized(cache)
+    {
+      return write_gen;
+    }
+  }
+
+  public void loaded(long gen, K key, V value)
+  {
+    if (value == null) return;
+    synchronized(cache)
+    {
+      if (gen == write_gen)
+      {
+        cache.put(key, value);
+      }
+    }
+  }
+
+  /** Call after the value is written to the db */
+  public void put(K key, V value)
+  {
+    synchronized(cache)
+    {
+      write_gen++;
+      cache.put(key, value);
+    }
+  }
+
+  /** Call after the key is written or removed in the db by some other path */
+  public void invalidate(K key)
+  {
+    synchronized(cache)
+    {
+      write_gen++;
+      cache.remove(key);
+    }
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+}
@@ -14,26 +14,51 @@ public class ProtoDBMap<M extends Message>
 {
   Parser<M> parser;
   DBMap inner;
+  DBReadCache<ByteString, M> cache;
 
   public ProtoDBMap(Parser<M> parser, DBMap inner)
+  {
+    this(parser, inner, 0);
+  }
+
+  /**
+   * @param cache_size number of parsed messages to keep, 0 for none.
+   * All writes to the map must go through this or a DBBatch for the cache to be right.
+   */
+  public ProtoDBMap(Parser<M> parser, DBMap inner, int cache_size)
   {
     this.parser = parser;
     this.inner = inner;
+    if (cache_size > 0)
+    {
+      cache = new DBReadCache<>(cache_size);
+    }
   }
   
-  public void put(ByteString key, Message m)
+  public void put(ByteString key, M m)
   {
     inner.put(key, m.toByteString());
+    if (cache != null) cache.put(key, m);
   }
 
   public M get(ByteString key)
   {
+    long gen = 0L;
+    if (cache != null)
+    {
+      M m = cache.get(key);
+      if (m != null) return m;
+      gen = cache.startLoad();
+    }
+
     ByteString bs = inner.get(key);
     if (bs == null) return null;
 
     try
     {
-      return parser.parseFrom(bs);
+      M m = parser.parseFrom(bs);
+      if (cache != null) cache.loaded(gen, key, m);
+      return m;
     }
     catch(InvalidProtocolBufferException e)
     {
@@ -43,6 +68,10 @@ public class ProtoDBMap<M extends Message>
 
   public boolean containsKey(ByteString key)
   {
+    if (cache != null)
+    {
+      if (cache.get(key) != null) return true;
+    }
     return inner.containsKey(key);
   }
 
@@ -55,6 +84,18 @@ public class ProtoDBMap<M extends Message>
     }
     inner.putAll(sorted);
 
+    if (cache != null)
+    {
+      for(Map.Entry<ByteString, M> me : map.entrySet())
+      {
+        cache.put(me.getKey(), me.getValue());
+      }
+    }
+  }
 
+  /** @return the cache, or null if there isn't one */
+  public DBReadCache<ByteString, M> getCache()
+  {
+    return cache;
   }
 }
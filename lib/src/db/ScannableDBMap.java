@@ -0,0 +1,62 @@
+package snowblossom.lib.db;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * A DBMap that can also remove keys and walk its entries, which the trie pruner and the
+ * flat utxo index need.  Not every DB can do that (lobstack can't), so those take this type
+ * and the node only sets them up when the DB's maps are one of these.
+ */
+public abstract class ScannableDBMap extends DBMap
+{
+  public abstract void remove(ByteString key);
+
+  /** Implementing class should override this if they have something better to do */
+  public void removeAll(Collection<ByteString> keys)
+  {
+    for(ByteString key : keys)
+    {
+      remove(key);
+    }
+  }
+
+  /**
+   * A null value means remove that key.
+   * Implementing class should override this if they have something better to do
+   */
+  @Override
+  public void putAll(SortedMap<ByteString, ByteString> m)
+  {
+    long t1 = System.nanoTime();
+    for(Map.Entry<ByteString, ByteString> me : m.entrySet())
+    {
+      if (me.getValue() == null)
+      {
+        remove(me.getKey());
+      }
+      else
+      {
+        put(me.getKey(), me.getValue());
+      }
+    }
+    TimeRecord.record(t1, "db_putall_seq");
+  }
+
+  /**
+   * Calls the visitor on every entry in the map, in key order.
+   * Entries put or removed during the scan may or may not be seen.
+   */
+  public abstract void scan(ScanVisitor visitor);
+
+  public interface ScanVisitor
+  {
+    /** @return false to stop the scan */
+    public boolean visit(ByteString key, ByteString value);
+  }
+
+}
@@ -1,29 +1,62 @@
 package snowblossom.lib.db.rocksdb;
 
+import com.google.protobuf.ByteString;
 import duckutil.Config;
 import snowblossom.lib.db.DB;
 import snowblossom.lib.db.DBMap;
 import snowblossom.lib.db.DBMapMutationSet;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
 import org.rocksdb.FlushOptions;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
-
+/**
+ * Each DBMap gets its own column family, with options to suit what is in it.
+ * Mutation sets stay in the default family under a name prefix.
+ *
+ * Older databases kept every map in the default family with a "name/" key prefix.
+ * Those entries are moved to the map's family the first time it is opened.
+ */
 public class JRocksDB extends DB
 {
   private static final Logger logger = Logger.getLogger("snowblossom.db");
 
+  private static final int MIGRATE_BATCH = 10000;
+
   private RocksDB db;
-  private Options options;
+  private DBOptions options;
 
   private WriteOptions sharedWriteOptions;
 
+  private final long utxo_cache_mb;
+  private final long block_cache_mb;
+
+  private ColumnFamilyHandle default_family;
+  private final HashMap<String, ColumnFamilyHandle> families = new HashMap<>();
+
+  /** Options have to outlive the families that use them */
+  private final ArrayList<ColumnFamilyOptions> family_options = new ArrayList<>();
+
   public JRocksDB(Config config)
     throws Exception
   {
@@ -33,12 +66,15 @@ public class JRocksDB extends DB
 
     String path = config.get("db_path");
 
+    utxo_cache_mb = config.getIntWithDefault("rocksdb_utxo_cache_mb", 512);
+    block_cache_mb = config.getIntWithDefault("rocksdb_block_cache_mb", 64);
+
     new File(path).mkdirs();
 
     logger.info(String.format("Loadng RocksDB with path %s", path));
 
     RocksDB.loadLibrary();
-    Options options = new Options();
+    options = new DBOptions();
 
     options.setIncreaseParallelism(16);
     options.setCreateIfMissing(true);
@@ -49,7 +85,28 @@ public class JRocksDB extends DB
     sharedWriteOptions.setDisableWAL(false);
     sharedWriteOptions.setSync(false);
 
-    db = RocksDB.open(options, path);
+    // Every family in the db has to be opened
+    List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+    for(byte[] name : listFamilies(path))
+    {
+      descriptors.add(new ColumnFamilyDescriptor(name, getFamilyOptions(new String(name))));
+    }
+    List<ColumnFamilyHandle> handles = new ArrayList<>();
+
+    db = RocksDB.open(options, path, descriptors, handles);
+
+    for(int i=0; i<descriptors.size(); i++)
+    {
+      String name = new String(descriptors.get(i).columnFamilyName());
+      if (name.equals(new String(RocksDB.DEFAULT_COLUMN_FAMILY)))
+      {
+        default_family = handles.get(i);
+      }
+      else
+      {
+        families.put(name, handles.get(i));
+      }
+    }
 
     open();
   }
@@ -66,9 +123,167 @@ public class JRocksDB extends DB
   }
 
   @Override
-  protected DBMap openMap(String name) throws Exception
+  protected synchronized DBMap openMap(String name) throws Exception
+  {
+    ColumnFamilyHandle family = families.get(name);
+    if (family == null)
+    {
+      logger.info(String.format("Creating RocksDB column family %s", name));
+      family = db.createColumnFamily(new ColumnFamilyDescriptor(name.getBytes(), getFamilyOptions(name)));
+      families.put(name, family);
+    }
+
+    migrateFromPrefix(name, family);
+
+    return new RocksDBMap(this, db, family);
+  }
+
+  /**
+   * Block and transaction values are large and read rarely, so they get bigger compressed blocks.
+   * The utxo trie nodes and flat utxo entries are small, read at random and often missing
+   * when probed for new keys, so they get a bloom filter and most of the block cache.
+   * Height is only ever read by exact key.
+   */
+  private ColumnFamilyOptions getFamilyOptions(String name)
+  {
+    ColumnFamilyOptions cf_options = new ColumnFamilyOptions();
+    BlockBasedTableConfig table = new BlockBasedTableConfig();
+
+    if (name.equals("u") || name.equals("utxo"))
+    {
+      table.setBlockCacheSize(utxo_cache_mb * 1048576L);
+      table.setFilter(new BloomFilter(10, false));
+      table.setCacheIndexAndFilterBlocks(true);
+      cf_options.setTableFormatConfig(table);
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+    else if (name.equals("block") || name.equals("tx"))
+    {
+      table.setBlockCacheSize(block_cache_mb * 1048576L);
+      table.setBlockSize(64 * 1024);
+      cf_options.setTableFormatConfig(table);
+      cf_options.setCompressionType(CompressionType.ZSTD_COMPRESSION);
+    }
+    else if (name.equals("height"))
+    {
+      cf_options.optimizeForPointLookup(Math.max(1L, block_cache_mb / 4));
+    }
+    else
+    {
+      table.setBlockCacheSize(block_cache_mb * 1048576L);
+      cf_options.setTableFormatConfig(table);
+    }
+
+    family_options.add(cf_options);
+    return cf_options;
+  }
+
+  private static List<byte[]> listFamilies(String path)
+    throws RocksDBException
+  {
+    List<byte[]> names = new ArrayList<>();
+    Options list_options = new Options();
+    try
+    {
+      names.addAll(RocksDB.listColumnFamilies(list_options, path));
+    }
+    catch(RocksDBException e)
+    {
+      // New database, nothing to list yet
+    }
+    finally
+    {
+      list_options.close();
+    }
+
+    if (names.isEmpty())
+    {
+      names.add(RocksDB.DEFAULT_COLUMN_FAMILY);
+    }
+    return names;
+  }
+
+  /**
+   * Moves any "name/" keys left in the default family by the old layout into family.
+   * Each batch is written to the new family and removed from the old one together,
+   * so stopping part way just leaves the rest for next time.
+   */
+  private void migrateFromPrefix(String name, ColumnFamilyHandle family)
+    throws RocksDBException
+  {
+    ByteString prefix = ByteString.copyFrom((name + "/").getBytes());
+    long count = 0;
+
+    while(true)
+    {
+      WriteBatch batch = new WriteBatch();
+      int batch_count = 0;
+      RocksIterator it = db.newIterator(default_family);
+      try
+      {
+        it.seek(prefix.toByteArray());
+        while(it.isValid() && (batch_count < MIGRATE_BATCH))
+        {
+          ByteString curr_key = ByteString.copyFrom(it.key());
+          if (!curr_key.startsWith(prefix)) break;
+
+          batch.put(family, curr_key.substring(prefix.size()).toByteArray(), it.value());
+          batch.remove(default_family, it.key());
+          batch_count++;
+
+          it.next();
+        }
+      }
+      finally
+      {
+        it.dispose();
+      }
+
+      if (batch_count == 0)
+      {
+        batch.close();
+        break;
+      }
+
+      if (count == 0)
+      {
+        logger.info(String.format("Moving map %s to its own column family", name));
+      }
+      db.write(sharedWriteOptions, batch);
+      batch.close();
+      count += batch_count;
+    }
+
+    if (count > 0)
+    {
+      logger.info(String.format("Moved %d entries of map %s", count, name));
+    }
+  }
+
+  /**
+   * Writes to all the maps go in one WriteBatch, so a block and everything
+   * that goes with it are saved or not as a whole.
+   */
+  @Override
+  protected void commitBatch(Map<DBMap, ? extends SortedMap<ByteString, ByteString>> writes)
   {
-    return new RocksDBMap(this, db, name);
+    WriteBatch batch = new WriteBatch();
+    try
+    {
+      for(Map.Entry<DBMap, ? extends SortedMap<ByteString, ByteString>> me : writes.entrySet())
+      {
+        ((RocksDBMap) me.getKey()).addToBatch(batch, me.getValue());
+      }
+      db.write(sharedWriteOptions, batch);
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      batch.close();
+    }
   }
 
   @Override
@@ -82,6 +297,10 @@ public class JRocksDB extends DB
       FlushOptions fl = new FlushOptions();
       fl.setWaitForFlush(true);
       db.flush(fl);
+      for(Map.Entry<String, ColumnFamilyHandle> me : families.entrySet())
+      {
+        db.flush(fl, me.getValue());
+      }
     }
     catch(Exception e)
     {
@@ -1,41 +1,49 @@
 package snowblossom.lib.db.rocksdb;
 
+import com.google.protobuf.ByteOutput;
 import com.google.protobuf.ByteString;
-import snowblossom.lib.db.DBMap;
+import com.google.protobuf.UnsafeByteOperations;
+import snowblossom.lib.db.ScannableDBMap;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
 import org.rocksdb.WriteBatch;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Map;
 import java.util.SortedMap;
 
 
-public class RocksDBMap extends DBMap
+/**
+ * Keys and values are handed to rocksdb as the ByteString's own array where there
+ * is one (see getArray()) and arrays that come back are wrapped, not copied.
+ * Neither side changes an array once it is written, so sharing them is safe.
+ */
+public class RocksDBMap extends ScannableDBMap
 {
   RocksDB db;
-  ByteString prefix;
+  ColumnFamilyHandle family;
   JRocksDB jdb;
 
-  public RocksDBMap(JRocksDB jdb, RocksDB db, String name)
+  public RocksDBMap(JRocksDB jdb, RocksDB db, ColumnFamilyHandle family)
   {
     this.db = db;
     this.jdb = jdb;
-    String prefix_str = name + "/";
-
-    this.prefix = ByteString.copyFrom(prefix_str.getBytes());
+    this.family = family;
   }
 
   public ByteString get(ByteString key)
   {
-    ByteString key_str = prefix.concat(key);
-
     try
     {
 
-      byte[] r = db.get(key_str.toByteArray());
+      byte[] r = db.get(family, getArray(key));
       if (r == null) return null;
 
-      return ByteString.copyFrom(r);
+      return UnsafeByteOperations.unsafeWrap(r);
 
     }
     catch(RocksDBException e)
@@ -50,9 +58,7 @@ public class RocksDBMap extends DBMap
     try
     {
 
-      ByteString key_str = prefix.concat(key);
-
-      db.put(jdb.getWriteOption(), key_str.toByteArray(), value.toByteArray());
+      db.put(family, jdb.getWriteOption(), getArray(key), getArray(value));
 
     }
     catch(RocksDBException e)
@@ -68,22 +74,148 @@ public class RocksDBMap extends DBMap
     {
       WriteBatch batch = new WriteBatch();
 
-      for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+      addToBatch(batch, m);
+
+      db.write(jdb.getWriteOption(), batch);
+
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+  }
+
+  /** Null values are removes, as in putAll() */
+  protected void addToBatch(WriteBatch batch, SortedMap<ByteString, ByteString> m)
+  {
+    for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+    {
+      if (e.getValue() == null)
+      {
+        batch.remove(family, getArray(e.getKey()));
+      }
+      else
       {
-        ByteString key_str = prefix.concat(e.getKey());
-        batch.put(key_str.toByteArray(), e.getValue().toByteArray());
+        batch.put(family, getArray(e.getKey()), getArray(e.getValue()));
+      }
+    }
+  }
+
+  @Override
+  public void remove(ByteString key)
+  {
+    try
+    {
+      db.remove(family, jdb.getWriteOption(), getArray(key));
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void removeAll(Collection<ByteString> keys)
+  {
+    try
+    {
+      WriteBatch batch = new WriteBatch();
 
+      for(ByteString key : keys)
+      {
+        batch.remove(family, getArray(key));
       }
 
       db.write(jdb.getWriteOption(), batch);
-
     }
     catch(RocksDBException e)
     {
       throw new RuntimeException(e);
     }
+  }
+
+  @Override
+  public void scan(ScanVisitor visitor)
+  {
+    RocksIterator it = db.newIterator(family);
+
+    try
+    {
+      it.seekToFirst();
 
+      while(it.isValid())
+      {
+        if (!visitor.visit(UnsafeByteOperations.unsafeWrap(it.key()), UnsafeByteOperations.unsafeWrap(it.value()))) break;
+
+        it.next();
+      }
+    }
+    finally
+    {
+      it.dispose();
+    }
   }
 
+  /**
+   * @return the array behind bs if it is a whole one, otherwise a copy.
+   * The array must not be changed.
+   */
+  static byte[] getArray(ByteString bs)
+  {
+    ArrayOutput out = new ArrayOutput();
+    try
+    {
+      UnsafeByteOperations.unsafeWriteTo(bs, out);
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    if ((out.array != null) && (out.array.length == bs.size())) return out.array;
+
+    return bs.toByteArray();
+  }
+
+  /**
+   * Catches a single lazy write of a whole array, which is what a flat ByteString does.
+   * Anything else (substrings, concatenations) leaves array null.
+   */
+  private static class ArrayOutput extends ByteOutput
+  {
+    byte[] array;
+    boolean other;
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length)
+    {
+      if ((!other) && (array == null) && (offset == 0) && (length == value.length))
+      {
+        array = value;
+      }
+      else
+      {
+        setOther();
+      }
+    }
+
+    @Override
+    public void write(byte value) { setOther(); }
+
+    @Override
+    public void write(byte[] value, int offset, int length) { setOther(); }
+
+    @Override
+    public void write(ByteBuffer value) { setOther(); }
+
+    @Override
+    public void writeLazy(ByteBuffer value) { setOther(); }
+
+    private void setOther()
+    {
+      other = true;
+      array = null;
+    }
+  }
 
 }
@@ -5,17 +5,26 @@ import com.google.protobuf.ByteString;
 import java.util.Comparator;
 
 
+/**
+ * Unsigned byte by byte order, shorter first when one is a prefix of the other.
+ * Same order as comparing the hex strings, without making them.
+ */
 public class ByteStringComparator implements Comparator<ByteString>
 {
   public int compare(ByteString a, ByteString b)
   {
-    return HashUtils.getHexString(a).compareTo(HashUtils.getHexString(b)); 
-  
+    return compareStatic(a, b);
   }
 
   public static int compareStatic(ByteString a, ByteString b)
   {
-    return HashUtils.getHexString(a).compareTo(HashUtils.getHexString(b)); 
-  
+    int n = Math.min(a.size(), b.size());
+    for(int i=0; i<n; i++)
+    {
+      int x = a.byteAt(i) & 0xFF;
+      int y = b.byteAt(i) & 0xFF;
+      if (x != y) return x - y;
+    }
+    return a.size() - b.size();
   }
 }
@@ -0,0 +1,146 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+
+import java.util.HashSet;
+
+/**
+ * A set of hashes that keeps the bytes in big arrays rather than as objects.
+ *
+ * Keys of key_len bytes are stored in open addressed slots, placed by their first 8 bytes, so
+ * the keys must already be well mixed, like the output of a hash function.  That takes about
+ * key_len / 0.5 to key_len / 0.75 bytes per key depending on how full the table is, where a
+ * HashSet of ByteString takes around 100 bytes per 32 byte key.  Keys of any other length go
+ * in a plain HashSet.  Growing briefly needs the old and new tables at once.
+ *
+ * Not thread safe.
+ */
+public class CompactHashSet
+{
+  // 2^20 slots per chunk keeps each array well under the max array size
+  private static final int CHUNK_BITS = 20;
+  private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+  private static final int MIN_SLOTS = 1 << 12;
+
+  private final int key_len;
+
+  private byte[][] chunks;
+  private long[] used;
+  private long slots;
+  private long size;
+
+  private final HashSet<ByteString> other = new HashSet<>();
+
+  public CompactHashSet(int key_len)
+  {
+    if (key_len < 8) throw new IllegalArgumentException("Keys must be at least 8 bytes");
+    this.key_len = key_len;
+    allocate(MIN_SLOTS);
+  }
+
+  /** @return true if key was not already in the set */
+  public boolean add(ByteString key)
+  {
+    if (key.size() != key_len) return other.add(key);
+
+    if ((size + 1) * 4 > slots * 3) grow();
+
+    long slot = find(key);
+    if (isUsed(slot)) return false;
+    put(slot, key);
+    size++;
+    return true;
+  }
+
+  public boolean contains(ByteString key)
+  {
+    if (key.size() != key_len) return other.contains(key);
+    return isUsed(find(key));
+  }
+
+  public long size()
+  {
+    return size + other.size();
+  }
+
+  /**
+   * @return the slot holding key, or the empty slot where it would go
+   */
+  private long find(ByteString key)
+  {
+    long mask = slots - 1;
+    long slot = spread(key) & mask;
+    while(isUsed(slot) && (!matches(slot, key)))
+    {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static long spread(ByteString key)
+  {
+    long h = 0L;
+    for(int i=0; i<8; i++)
+    {
+      h = (h << 8) | (key.byteAt(i) & 0xFFL);
+    }
+    return h;
+  }
+
+  private boolean matches(long slot, ByteString key)
+  {
+    byte[] chunk = chunks[(int)(slot >>> CHUNK_BITS)];
+    int off = (int)(slot & (CHUNK_SLOTS - 1)) * key_len;
+    for(int i=0; i<key_len; i++)
+    {
+      if (chunk[off + i] != key.byteAt(i)) return false;
+    }
+    return true;
+  }
+
+  private void put(long slot, ByteString key)
+  {
+    byte[] chunk = chunks[(int)(slot >>> CHUNK_BITS)];
+    int off = (int)(slot & (CHUNK_SLOTS - 1)) * key_len;
+    key.copyTo(chunk, 0, off, key_len);
+    used[(int)(slot >>> 6)] |= 1L << (slot & 63);
+  }
+
+  private boolean isUsed(long slot)
+  {
+    return (used[(int)(slot >>> 6)] & (1L << (slot & 63))) != 0L;
+  }
+
+  private void allocate(long n)
+  {
+    slots = n;
+    int chunk_count = (int) ((n + CHUNK_SLOTS - 1) / CHUNK_SLOTS);
+    chunks = new byte[chunk_count][];
+    for(int i=0; i<chunk_count; i++)
+    {
+      chunks[i] = new byte[(int) Math.min(n - (long)i * CHUNK_SLOTS, CHUNK_SLOTS) * key_len];
+    }
+    used = new long[(int) ((n + 63) / 64)];
+  }
+
+  private void grow()
+  {
+    byte[][] old_chunks = chunks;
+    long[] old_used = used;
+    long old_slots = slots;
+
+    allocate(old_slots * 2);
+
+    byte[] buff = new byte[key_len];
+    for(long s=0; s<old_slots; s++)
+    {
+      if ((old_used[(int)(s >>> 6)] & (1L << (s & 63))) == 0L) continue;
+      byte[] chunk = old_chunks[(int)(s >>> CHUNK_BITS)];
+      int off = (int)(s & (CHUNK_SLOTS - 1)) * key_len;
+      System.arraycopy(chunk, off, buff, 0, key_len);
+      ByteString key = ByteString.copyFrom(buff);
+      put(find(key), key);
+    }
+  }
+
+}
@@ -5,10 +5,15 @@ import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.protobuf.ByteString;
 import org.junit.Assert;
+import snowblossom.lib.LRUCache;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.trie.proto.ChildEntry;
 import snowblossom.trie.proto.TrieNode;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * So this is a trie with the following properties:
@@ -25,10 +30,28 @@ public class HashedTrie
   private TrieDB basedb;
   private int keylen;
 
+  /** Merges of at least this many updates split up subtrees over the merge pool */
+  public static final int DEFAULT_PARALLEL_MERGE_MIN = 1024;
+  private volatile int parallel_merge_min = DEFAULT_PARALLEL_MERGE_MIN;
+  private volatile boolean sorted_merge = true;
+
+  /** Images of recently merged intermediate nodes by hash, for the sorted merge */
+  public static final int DEFAULT_IMAGE_CACHE_SIZE = 4096;
+  private final LRUCache<ByteString, TrieNodeImage> image_cache;
+
   public HashedTrie(TrieDB db, int keylen, boolean create_if_empty)
+  {
+    this(db, keylen, create_if_empty, DEFAULT_IMAGE_CACHE_SIZE);
+  }
+
+  /**
+   * @param image_cache_size number of intermediate nodes to keep ready for rehashing
+   */
+  public HashedTrie(TrieDB db, int keylen, boolean create_if_empty, int image_cache_size)
   {
     this.basedb = db;
     this.keylen = keylen;
+    this.image_cache = new LRUCache<>(Math.max(1, image_cache_size));
 
     TrieNode root = db.load(HashUtils.hashOfEmpty());
     if ((root == null) && (create_if_empty))
@@ -43,6 +66,24 @@ public class HashedTrie
     Assert.assertNotNull(root);
   }
 
+  /**
+   * Subtrees with at least this many updates are merged on the shared fork join pool.
+   * Integer.MAX_VALUE to always merge on the calling thread.  Results are the same either way.
+   */
+  public void setParallelMergeMin(int parallel_merge_min)
+  {
+    this.parallel_merge_min = parallel_merge_min;
+  }
+
+  /**
+   * True (the default) to merge by recursing over ranges of the sorted update keys,
+   * false for the older map based merge.  Results are the same either way.
+   */
+  public void setSortedMerge(boolean sorted_merge)
+  {
+    this.sorted_merge = sorted_merge;
+  }
+
   /** 
    * Merge in the following updates.
    * A null value means remove that entry if it exists
@@ -53,21 +94,39 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
 
     TrieNode root = db.load(root_hash);
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    Assert.assertNotNull("Merging from " + HashUtils.getHexString(root_hash), root);
+    ByteString answer = merge(db, root, updates).getHash();
     db.commit();
     return answer;
   }
 
   public boolean mergeIfNewRoot(ByteString old_root, Map<ByteString, ByteString> updates, ByteString expected_new_root)
+  {
+    return mergeIfNewRoot(old_root, updates, expected_new_root, null);
+  }
+
+  /**
+   * @param batch if not null, the new nodes are put in this to be written
+   * when it is committed rather than written now
+   */
+  public boolean mergeIfNewRoot(ByteString old_root, Map<ByteString, ByteString> updates, ByteString expected_new_root, DBBatch batch)
   {
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(old_root);
-    
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    Assert.assertNotNull("Merging from " + HashUtils.getHexString(old_root), root);
+
+    ByteString answer = merge(db, root, updates).getHash();
     if (answer.equals(expected_new_root))
     {
       System.out.println("Commiting new UTXO root: " + HashUtils.getHexString(answer));
-      db.commit();
+      if (batch != null)
+      {
+        db.commit(batch);
+      }
+      else
+      {
+        db.commit();
+      }
       return true;
     }
     return false;
@@ -82,7 +141,7 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(root_hash);
     Assert.assertNotNull("Simluating merge from " + HashUtils.getHexString(root_hash), root);
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = merge(db, root, updates).getHash();
     return answer;
   }
 
@@ -156,6 +215,29 @@ public class HashedTrie
  
   }
 
+  /**
+   * Merges with the top of the tree split up over the merge pool if there are enough updates
+   */
+  private TrieNode merge(TrieDB db, TrieNode node, Map<ByteString, ByteString> updates)
+  {
+    MergeTask task = null;
+    if (sorted_merge)
+    {
+      SortedUpdates sorted = new SortedUpdates(updates);
+      task = new RangeMergeTask(db, node, sorted, 0, sorted.size());
+    }
+    else
+    {
+      task = new MapMergeTask(db, node, updates);
+    }
+
+    if (updates.size() >= parallel_merge_min)
+    {
+      return getMergePool().invoke(task);
+    }
+    return task.merge();
+  }
+
   private TrieNode mergeNode(TrieDB db, TrieNode node, Map<ByteString, ByteString> updates)
   {
     Assert.assertNotNull(node);
@@ -222,6 +304,11 @@ public class HashedTrie
       children_by_start.put(start, c);
     }
 
+    // First work out what each group needs, then do the child merges, which may run
+    // in parallel, then put the children in the builder in the same order as always
+    ArrayList<ChildEntry> kept_children = new ArrayList<>();
+    ArrayList<MergeTask> merge_tasks = new ArrayList<>();
+
     for(ByteString start : fings.keySet())
     {
       Set<ByteString> changes = changes_by_start.get(start);
@@ -231,7 +318,8 @@ public class HashedTrie
 
       if ((changes.isEmpty()) && (children.containsKey(prefix_for_group)))
       {
-        builder.addChildren( children.get(prefix_for_group));
+        kept_children.add(children.get(prefix_for_group));
+        merge_tasks.add(null);
         continue; //woo ugly
       }
 
@@ -277,15 +365,28 @@ public class HashedTrie
       {
         sub_updates.put(bs, updates.get(bs));
       }
-      child_node = mergeNode(db, child_node, sub_updates);
+      kept_children.add(null);
+      merge_tasks.add(new MapMergeTask(db, child_node, sub_updates));
+    }
+
+    TrieNode[] merged = runMergeTasks(merge_tasks, updates.size());
+
+    for(int i=0; i<kept_children.size(); i++)
+    {
+      if (kept_children.get(i) != null)
+      {
+        builder.addChildren(kept_children.get(i));
+        continue;
+      }
+      TrieNode child_node = merged[i];
       if (child_node != null)
       {
         // The child node might have a different prefix
         // than what we expect, since it might need to structural shorten itself
 
         ByteString prefix_for_child_node = child_node.getPrefix().substring(node.getPrefix().size());
-        Assert.assertTrue(""+start, child_node.getPrefix().size() > 0);
-        Assert.assertTrue(""+start, prefix_for_child_node.size() > 0);
+        Assert.assertTrue(child_node.getPrefix().size() > 0);
+        Assert.assertTrue(prefix_for_child_node.size() > 0);
         builder.addChildren( ChildEntry.newBuilder().setKey(prefix_for_child_node).setHash(child_node.getHash()));
 
         last_seen_child_node = child_node;
@@ -341,6 +442,383 @@ public class HashedTrie
 
   }
 
+  /**
+   * Same result as mergeNode() but works on sorted[lo, hi), which all start with
+   * the prefix of node.  Since the keys are sorted, the updates under each child
+   * are a contiguous range and the common prefix of a range is the common
+   * prefix of its first and last keys.
+   */
+  private TrieNode mergeRange(TrieDB db, TrieNode node, SortedUpdates sorted, int lo, int hi)
+  {
+    Assert.assertNotNull(node);
+    ByteString prefix = node.getPrefix();
+    int prefix_len = prefix.size();
+
+    // Base case - at keylen
+    if (prefix_len == keylen)
+    {
+      Assert.assertEquals(1, hi - lo);
+
+      ByteString data = sorted.values[lo];
+      if (data == null)
+      {
+        //nothing ever removed
+        return null;
+      }
+
+      TrieNode.Builder builder = TrieNode.newBuilder();
+      builder.setPrefix(prefix);
+      builder.setIsLeaf(true);
+      builder.setLeafData(data);
+      builder.setHash(TrieNodeImage.hashLeaf(prefix, data));
+
+      TrieNode new_node = builder.build();
+      db.save(new_node);
+      return new_node;
+    }
+
+    // Only the children with updates under them are looked at, the rest stay as they are in the image
+    TrieNodeImage image = getImage(node).copy();
+
+    ArrayList<Integer> group_bytes = new ArrayList<>();
+    ArrayList<MergeTask> merge_tasks = new ArrayList<>();
+
+    int group_lo = lo;
+    while(group_lo < hi)
+    {
+      int b = sorted.keys[group_lo][prefix_len] & 0xFF;
+      int group_hi = findGroupEnd(sorted, prefix_len, b, group_lo, hi);
+      ChildEntry ce = image.getChild(b);
+
+      byte[] first = sorted.keys[group_lo];
+      int group_prefix_len = commonLength(first, sorted.keys[group_hi - 1], prefix_len);
+      if (ce != null)
+      {
+        group_prefix_len = Math.min(group_prefix_len, commonLength(ce.getKey(), first, prefix_len));
+      }
+      Assert.assertTrue(group_prefix_len > 0);
+
+      TrieNode child_node = null;
+      if ((ce != null) && (group_prefix_len == ce.getKey().size()))
+      {
+        child_node = db.load(ce.getHash());
+      }
+      else
+      {
+        // Make a new node, with the existing child if any under it
+        TrieNode.Builder sub_builder = TrieNode.newBuilder();
+        sub_builder.setPrefix(prefix.concat(ByteString.copyFrom(first, prefix_len, group_prefix_len)));
+        if (ce != null)
+        {
+          sub_builder.addChildren(ChildEntry.newBuilder()
+            .setKey(ce.getKey().substring(group_prefix_len))
+            .setHash(ce.getHash())
+            .build());
+        }
+        child_node = sub_builder.build();
+      }
+
+      group_bytes.add(b);
+      merge_tasks.add(new RangeMergeTask(db, child_node, sorted, group_lo, group_hi));
+
+      group_lo = group_hi;
+    }
+    Assert.assertEquals(hi, group_lo);
+
+    TrieNode[] merged = runMergeTasks(merge_tasks, hi - lo);
+
+    TrieNode last_seen_child_node = null;
+    for(int i=0; i<merged.length; i++)
+    {
+      TrieNode child_node = merged[i];
+      if (child_node != null)
+      {
+        // The child node might have a different prefix than the group
+        // if it shortened itself, but it still starts with the same byte
+        ByteString prefix_for_child_node = child_node.getPrefix().substring(prefix_len);
+        Assert.assertTrue(prefix_for_child_node.size() > 0);
+        image.setChild( ChildEntry.newBuilder().setKey(prefix_for_child_node).setHash(child_node.getHash()).build());
+
+        last_seen_child_node = child_node;
+      }
+      else
+      {
+        image.removeChild(group_bytes.get(i));
+      }
+    }
+
+    if (prefix_len > 0)
+    {
+      if (image.getChildCount() == 0)
+      {
+        return null;
+      }
+      if (image.getChildCount() == 1)
+      {
+        if (last_seen_child_node != null)
+        {
+          return last_seen_child_node;
+        }
+        return db.load(image.getChildAt(0).getHash());
+      }
+    }
+
+    ByteString hash = image.hash();
+    TrieNode new_node = image.toNode(hash);
+    db.save(new_node);
+    putImage(hash, image);
+    return new_node;
+  }
+
+  /**
+   * @return the cached image of an intermediate node, which must not be changed
+   */
+  private TrieNodeImage getImage(TrieNode node)
+  {
+    boolean has_hash = (node.getHash().size() > 0);
+    if (has_hash)
+    {
+      synchronized(image_cache)
+      {
+        TrieNodeImage image = image_cache.get(node.getHash());
+        if (image != null) return image;
+      }
+    }
+    TrieNodeImage image = new TrieNodeImage(node);
+    if (has_hash)
+    {
+      putImage(node.getHash(), image);
+    }
+    return image;
+  }
+
+  /**
+   * Drops the cached images of nodes that have been deleted, for a TriePruner.DeleteListener
+   */
+  public void evictImages(Collection<ByteString> hashes)
+  {
+    synchronized(image_cache)
+    {
+      for(ByteString hash : hashes)
+      {
+        image_cache.remove(hash);
+      }
+    }
+  }
+
+  private void putImage(ByteString hash, TrieNodeImage image)
+  {
+    synchronized(image_cache)
+    {
+      image_cache.put(hash, image);
+    }
+  }
+
+  /**
+   * @return the first index in [lo, hi) with a byte at pos greater than b, or hi
+   */
+  private static int findGroupEnd(SortedUpdates sorted, int pos, int b, int lo, int hi)
+  {
+    int low = lo;
+    int high = hi;
+    while(low < high)
+    {
+      int mid = (low + high) >>> 1;
+      if ((sorted.keys[mid][pos] & 0xFF) > b)
+      {
+        high = mid;
+      }
+      else
+      {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Length of the common part of a and b starting at from
+   */
+  private static int commonLength(byte[] a, byte[] b, int from)
+  {
+    int n = Math.min(a.length, b.length);
+    int i = from;
+    while((i < n) && (a[i] == b[i])) i++;
+    return i - from;
+  }
+
+  /**
+   * Length of the common part of child key k and b starting at from in b
+   */
+  private static int commonLength(ByteString k, byte[] b, int from)
+  {
+    int n = Math.min(k.size(), b.length - from);
+    int i = 0;
+    while((i < n) && (k.byteAt(i) == b[from + i])) i++;
+    return i;
+  }
+
+  /**
+   * The update map as arrays sorted by key, unsigned byte order
+   */
+  private class SortedUpdates
+  {
+    final byte[][] keys;
+    final ByteString[] values;
+
+    public SortedUpdates(Map<ByteString, ByteString> updates)
+    {
+      ArrayList<Map.Entry<ByteString, ByteString>> entries = new ArrayList<>(updates.entrySet());
+      final byte[][] key_bytes = new byte[entries.size()][];
+      Integer[] order = new Integer[entries.size()];
+      for(int i=0; i<entries.size(); i++)
+      {
+        key_bytes[i] = entries.get(i).getKey().toByteArray();
+        Assert.assertEquals(keylen, key_bytes[i].length);
+        order[i] = i;
+      }
+
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b)
+        {
+          return compareUnsigned(key_bytes[a], key_bytes[b]);
+        }
+      });
+
+      keys = new byte[order.length][];
+      values = new ByteString[order.length];
+      for(int i=0; i<order.length; i++)
+      {
+        keys[i] = key_bytes[order[i]];
+        values[i] = entries.get(order[i]).getValue();
+      }
+    }
+
+    public int size()
+    {
+      return keys.length;
+    }
+  }
+
+  private static int compareUnsigned(byte[] a, byte[] b)
+  {
+    int n = Math.min(a.length, b.length);
+    for(int i=0; i<n; i++)
+    {
+      int x = a[i] & 0xFF;
+      int y = b[i] & 0xFF;
+      if (x != y) return x - y;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Runs the child merges for one node.  Done on the merge pool if we are already
+   * in it and there are enough updates under this node, otherwise in order on this thread.
+   * @return the merge results, by index, null where there was no task
+   */
+  private TrieNode[] runMergeTasks(List<MergeTask> tasks, int update_count)
+  {
+    TrieNode[] results = new TrieNode[tasks.size()];
+
+    ArrayList<MergeTask> to_run = new ArrayList<>();
+    for(MergeTask t : tasks)
+    {
+      if (t != null) to_run.add(t);
+    }
+
+    if ((to_run.size() > 1) && (update_count >= parallel_merge_min) && (ForkJoinTask.getPool() == merge_pool))
+    {
+      ForkJoinTask.invokeAll(to_run);
+      for(int i=0; i<tasks.size(); i++)
+      {
+        if (tasks.get(i) != null) results[i] = tasks.get(i).join();
+      }
+    }
+    else
+    {
+      for(int i=0; i<tasks.size(); i++)
+      {
+        MergeTask t = tasks.get(i);
+        if (t != null) results[i] = t.merge();
+      }
+    }
+    return results;
+  }
+
+  private abstract class MergeTask extends RecursiveTask<TrieNode>
+  {
+    private static final long serialVersionUID = 1L;
+
+    public abstract TrieNode merge();
+
+    @Override
+    protected TrieNode compute()
+    {
+      return merge();
+    }
+  }
+
+  private class MapMergeTask extends MergeTask
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final TrieDB db;
+    private final TrieNode node;
+    private final Map<ByteString, ByteString> updates;
+
+    public MapMergeTask(TrieDB db, TrieNode node, Map<ByteString, ByteString> updates)
+    {
+      this.db = db;
+      this.node = node;
+      this.updates = updates;
+    }
+
+    @Override
+    public TrieNode merge()
+    {
+      return mergeNode(db, node, updates);
+    }
+  }
+
+  private class RangeMergeTask extends MergeTask
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final TrieDB db;
+    private final TrieNode node;
+    private final SortedUpdates sorted;
+    private final int lo;
+    private final int hi;
+
+    public RangeMergeTask(TrieDB db, TrieNode node, SortedUpdates sorted, int lo, int hi)
+    {
+      this.db = db;
+      this.node = node;
+      this.sorted = sorted;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    public TrieNode merge()
+    {
+      return mergeRange(db, node, sorted, lo, hi);
+    }
+  }
+
+  private static ForkJoinPool merge_pool;
+
+  private static synchronized ForkJoinPool getMergePool()
+  {
+    if (merge_pool == null)
+    {
+      merge_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return merge_pool;
+  }
+
   public void printTree(ByteString root)
   {
     printNode(basedb, root, 0);
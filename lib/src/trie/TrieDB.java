@@ -2,8 +2,10 @@ package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
 import org.junit.Assert;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.trie.proto.TrieNode;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -23,4 +25,21 @@ public abstract class TrieDB
     }
 
   }
+
+  /**
+   * Saves into batch instead of writing directly, for TrieDBs backed by the same DB.
+   * Others just save.
+   */
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates, DBBatch batch)
+  {
+    bulkSave(updates);
+  }
+
+  /**
+   * Called after nodes are deleted from the store underneath so anything holding them
+   * in memory can drop them.  TrieDBs that wrap another should pass it on.
+   */
+  public void evict(Collection<ByteString> keys)
+  {
+  }
 }
@@ -1,11 +1,16 @@
 package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.trie.proto.TrieNode;
 
 import java.util.TreeMap;
 
 
+/**
+ * Holds saved nodes in memory until commit().  Thread safe so parallel merges
+ * can all save into the same one.
+ */
 public class TrieDBBuffered extends TrieDB
 {
   private TreeMap<ByteString, TrieNode> changes;
@@ -20,18 +25,38 @@ public class TrieDBBuffered extends TrieDB
 
   public void save(TrieNode node)
   {
-    changes.put(node.getHash(), node);
+    synchronized(changes)
+    {
+      changes.put(node.getHash(), node);
+    }
   }
   public TrieNode load(ByteString key)
   {
-    if (changes.containsKey(key)) return changes.get(key);
+    synchronized(changes)
+    {
+      TrieNode node = changes.get(key);
+      if (node != null) return node;
+    }
 
     return db.load(key);
   }
 
   public void commit()
   {
-    db.bulkSave(changes);
-    changes.clear();
+    synchronized(changes)
+    {
+      db.bulkSave(changes);
+      changes.clear();
+    }
+  }
+
+  /** Puts the saved nodes into batch rather than writing them now */
+  public void commit(DBBatch batch)
+  {
+    synchronized(changes)
+    {
+      db.bulkSave(changes, batch);
+      changes.clear();
+    }
   }
 }
@@ -0,0 +1,178 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.LRUCache;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.trie.proto.TrieNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps parsed TrieNodes in memory in front of another TrieDB.
+ * Nodes are addressed by their hash and never change, so the only thing to invalidate is a
+ * node deleted by the TriePruner, which calls evict().
+ *
+ * Nodes with a prefix no longer than pin_depth (the top of the trie, which every lookup goes through)
+ * are kept in their own LRU so that churn from the leaves doesn't push them out.
+ *
+ * The LRUs are split into segments by hash to keep lock contention down.  Thread safe
+ * as long as the inner TrieDB is.
+ */
+public class TrieDBCache extends TrieDB
+{
+  private static final int SEGMENTS = 16;
+
+  private final TrieDB inner;
+  private final int pin_depth;
+
+  private final ArrayList<LRUCache<ByteString, TrieNode>> lower_segments = new ArrayList<>();
+  private final ArrayList<LRUCache<ByteString, TrieNode>> upper_segments = new ArrayList<>();
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  public TrieDBCache(TrieDB inner, int max_nodes)
+  {
+    this(inner, max_nodes, -1, 0);
+  }
+
+  /**
+   * @param pin_depth nodes with a prefix of at most this many bytes go in the pinned cache, -1 for none
+   * @param max_pinned_nodes size of the pinned cache
+   */
+  public TrieDBCache(TrieDB inner, int max_nodes, int pin_depth, int max_pinned_nodes)
+  {
+    this.inner = inner;
+    this.pin_depth = pin_depth;
+
+    for(int i=0; i<SEGMENTS; i++)
+    {
+      lower_segments.add(new LRUCache<ByteString, TrieNode>(Math.max(1, max_nodes / SEGMENTS)));
+      upper_segments.add(new LRUCache<ByteString, TrieNode>(Math.max(1, max_pinned_nodes / SEGMENTS)));
+    }
+  }
+
+  @Override
+  public void save(TrieNode node)
+  {
+    inner.save(node);
+    put(node);
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    inner.bulkSave(updates);
+    for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
+    {
+      put(me.getValue());
+    }
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates, DBBatch batch)
+  {
+    inner.bulkSave(updates, batch);
+    for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
+    {
+      put(me.getValue());
+    }
+  }
+
+  @Override
+  public TrieNode load(ByteString key)
+  {
+    int seg = getSegment(key);
+    TrieNode node = null;
+
+    if (pin_depth >= 0)
+    {
+      LRUCache<ByteString, TrieNode> upper = upper_segments.get(seg);
+      synchronized(upper)
+      {
+        node = upper.get(key);
+      }
+    }
+    if (node == null)
+    {
+      LRUCache<ByteString, TrieNode> lower = lower_segments.get(seg);
+      synchronized(lower)
+      {
+        node = lower.get(key);
+      }
+    }
+    if (node != null)
+    {
+      hits.incrementAndGet();
+      return node;
+    }
+
+    misses.incrementAndGet();
+    node = inner.load(key);
+    if (node != null) put(node);
+
+    return node;
+  }
+
+  @Override
+  public void evict(Collection<ByteString> keys)
+  {
+    for(ByteString key : keys)
+    {
+      int seg = getSegment(key);
+      LRUCache<ByteString, TrieNode> upper = upper_segments.get(seg);
+      synchronized(upper)
+      {
+        upper.remove(key);
+      }
+      LRUCache<ByteString, TrieNode> lower = lower_segments.get(seg);
+      synchronized(lower)
+      {
+        lower.remove(key);
+      }
+    }
+    inner.evict(keys);
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  private void put(TrieNode node)
+  {
+    ByteString key = node.getHash();
+    int seg = getSegment(key);
+
+    LRUCache<ByteString, TrieNode> cache;
+    if (node.getPrefix().size() <= pin_depth)
+    {
+      cache = upper_segments.get(seg);
+    }
+    else
+    {
+      cache = lower_segments.get(seg);
+    }
+
+    synchronized(cache)
+    {
+      cache.put(key, node);
+    }
+  }
+
+  private static int getSegment(ByteString key)
+  {
+    if (key.size() == 0) return 0;
+    return (key.byteAt(key.size() - 1) & 0xFF) % SEGMENTS;
+  }
+
+}
@@ -2,6 +2,7 @@ package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.db.DBMap;
 import snowblossom.trie.proto.TrieNode;
 
@@ -9,18 +10,31 @@ import java.util.Map;
 import java.util.TreeMap;
 
 
+/**
+ * Stores trie nodes in a DBMap, keyed by node hash.
+ * Reads both the protobuf and compact (see TrieNodeCodec) forms, writes
+ * whichever one it was constructed with.
+ */
 public class TrieDBMap extends TrieDB
 {
   private DBMap db_map;
+  private boolean compact;
+
   public TrieDBMap(DBMap db_map)
+  {
+    this(db_map, false);
+  }
+
+  public TrieDBMap(DBMap db_map, boolean compact)
   {
     this.db_map = db_map;
+    this.compact = compact;
   }
 
   @Override
   public void save(TrieNode node)
   {
-    db_map.put( node.getHash(), node.toByteString());
+    db_map.put( node.getHash(), encode(node));
   }
 
   @Override
@@ -30,7 +44,7 @@ public class TrieDBMap extends TrieDB
     if (r == null) return null;
 		try
 		{
-		 	return TrieNode.parser().parseFrom(r);
+		 	return TrieNodeCodec.decode(key, r);
     }
     catch(InvalidProtocolBufferException e)
     {
@@ -41,17 +55,36 @@ public class TrieDBMap extends TrieDB
 
   @Override
   public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    db_map.putAll(encodeAll(updates));
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates, DBBatch batch)
+  {
+    batch.putAll(db_map, encodeAll(updates));
+  }
+
+  private TreeMap<ByteString, ByteString> encodeAll(TreeMap<ByteString, TrieNode> updates)
   {
     TreeMap<ByteString, ByteString> map = new TreeMap<>(new ByteStringComparator());
 
     for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
     {
       ByteString key = me.getKey();
-      ByteString value = me.getValue().toByteString();
+      ByteString value = encode(me.getValue());
       map.put(key, value);
     }
+    return map;
+  }
 
-    db_map.putAll(map);
-
+  private ByteString encode(TrieNode node)
+  {
+    if (compact)
+    {
+      ByteString value = TrieNodeCodec.encode(node);
+      if (value != null) return value;
+    }
+    return node.toByteString();
   }
 }
@@ -0,0 +1,198 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact stored form of a TrieNode, as an alternative to the protobuf bytes.
+ *
+ * Layout (COMPACT_V1):
+ * <pre>
+ *   byte     format (COMPACT_V1)
+ *   byte     flags (FLAG_LEAF)
+ *   varint   prefix length, then prefix
+ *   varint   child count
+ *   varint   length of each child key
+ *   bytes    child keys, back to back
+ *   bytes    child hashes, HASH_LEN each
+ *   bytes    leaf data, the rest of the value (leaves only)
+ * </pre>
+ *
+ * The node hash is not stored since it is the db key.  The format byte is
+ * field zero with wire type 7, which can't start a protobuf message, so values
+ * written before this existed are still read as protobuf.
+ */
+public class TrieNodeCodec
+{
+  public static final byte COMPACT_V1 = 0x07;
+  public static final int HASH_LEN = 32;
+
+  private static final int FLAG_LEAF = 0x01;
+
+  /**
+   * @return the compact form, or null if the node doesn't fit it (child hashes not HASH_LEN)
+   */
+  public static ByteString encode(TrieNode node)
+  {
+    int child_count = node.getChildrenCount();
+    int size = 2 + varintSize(node.getPrefix().size()) + node.getPrefix().size() + varintSize(child_count);
+
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      if (ce.getHash().size() != HASH_LEN) return null;
+      size += varintSize(ce.getKey().size()) + ce.getKey().size() + HASH_LEN;
+    }
+    if (node.getIsLeaf())
+    {
+      size += node.getLeafData().size();
+    }
+
+    byte[] b = new byte[size];
+    ByteBuffer bb = ByteBuffer.wrap(b);
+    bb.put(COMPACT_V1);
+    bb.put((byte) (node.getIsLeaf() ? FLAG_LEAF : 0));
+
+    writeVarint(bb, node.getPrefix().size());
+    putBytes(bb, node.getPrefix());
+
+    writeVarint(bb, child_count);
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      writeVarint(bb, ce.getKey().size());
+    }
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      putBytes(bb, ce.getKey());
+    }
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      putBytes(bb, ce.getHash());
+    }
+    if (node.getIsLeaf())
+    {
+      putBytes(bb, node.getLeafData());
+    }
+
+    return ByteString.copyFrom(b);
+  }
+
+  public static boolean isCompact(ByteString value)
+  {
+    return (value.size() > 0) && (value.byteAt(0) == COMPACT_V1);
+  }
+
+  /**
+   * Reads a stored node in either format.  Byte fields of the result are
+   * substrings of value rather than copies.
+   */
+  public static TrieNode decode(ByteString key, ByteString value)
+    throws InvalidProtocolBufferException
+  {
+    if (!isCompact(value))
+    {
+      return TrieNode.parser().parseFrom(value);
+    }
+
+    try
+    {
+      ByteBuffer bb = value.asReadOnlyByteBuffer();
+      bb.get(); // format
+      int flags = bb.get();
+
+      TrieNode.Builder builder = TrieNode.newBuilder();
+      builder.setHash(key);
+
+      int prefix_len = readVarint(bb);
+      builder.setPrefix(value.substring(bb.position(), bb.position() + prefix_len));
+      bb.position(bb.position() + prefix_len);
+
+      int child_count = readVarint(bb);
+      if (child_count > bb.remaining()) throw new InvalidProtocolBufferException("Bad child count in compact trie node");
+      int[] key_lens = new int[child_count];
+      int key_total = 0;
+      for(int i=0; i<child_count; i++)
+      {
+        key_lens[i] = readVarint(bb);
+        key_total += key_lens[i];
+      }
+
+      int key_pos = bb.position();
+      int hash_pos = key_pos + key_total;
+      for(int i=0; i<child_count; i++)
+      {
+        builder.addChildren(ChildEntry.newBuilder()
+          .setKey(value.substring(key_pos, key_pos + key_lens[i]))
+          .setHash(value.substring(hash_pos, hash_pos + HASH_LEN))
+          .build());
+        key_pos += key_lens[i];
+        hash_pos += HASH_LEN;
+      }
+
+      if ((flags & FLAG_LEAF) != 0)
+      {
+        builder.setIsLeaf(true);
+        builder.setLeafData(value.substring(hash_pos));
+      }
+      else if (hash_pos != value.size())
+      {
+        throw new InvalidProtocolBufferException("Extra data after compact trie node");
+      }
+
+      return builder.build();
+    }
+    catch(RuntimeException e)
+    {
+      // Buffer underflow or substring out of range from a truncated value
+      throw new InvalidProtocolBufferException("Bad compact trie node: " + e);
+    }
+  }
+
+  private static void putBytes(ByteBuffer bb, ByteString bs)
+  {
+    bs.copyTo(bb.array(), bb.position());
+    bb.position(bb.position() + bs.size());
+  }
+
+  private static int varintSize(int v)
+  {
+    int n = 1;
+    while((v & ~0x7F) != 0)
+    {
+      v >>>= 7;
+      n++;
+    }
+    return n;
+  }
+
+  private static void writeVarint(ByteBuffer bb, int v)
+  {
+    while((v & ~0x7F) != 0)
+    {
+      bb.put((byte) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    bb.put((byte) v);
+  }
+
+  private static int readVarint(ByteBuffer bb)
+    throws InvalidProtocolBufferException
+  {
+    int v = 0;
+    for(int shift = 0; shift < 32; shift += 7)
+    {
+      int b = bb.get();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+      {
+        if (v < 0) throw new InvalidProtocolBufferException("Negative length in compact trie node");
+        return v;
+      }
+    }
+    throw new InvalidProtocolBufferException("Malformed varint in compact trie node");
+  }
+
+}
@@ -0,0 +1,211 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.security.MessageDigest;
+
+/**
+ * An intermediate trie node kept ready for rehashing.  The children are held sorted
+ * (children of a node all have different first bytes, so that is also hash order)
+ * along with the bytes each one adds to the hash input.  Changing one child only
+ * touches that child's entry, and hashing is a single pass over the cached bytes
+ * with no protobuf or list building.
+ *
+ * Not thread safe.  Images in a shared cache must be copied before being changed.
+ */
+class TrieNodeImage
+{
+  private final ByteString prefix;
+  private final byte[] prefix_bytes;
+
+  private int count;
+  private ChildEntry[] children;
+  /** key then hash of each child, as it goes into the node hash */
+  private byte[][] child_bytes;
+
+  private static final ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue()
+    {
+      try
+      {
+        return MessageDigest.getInstance("SHA-256");
+      }
+      catch(java.security.NoSuchAlgorithmException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  public TrieNodeImage(TrieNode node)
+  {
+    prefix = node.getPrefix();
+    prefix_bytes = prefix.toByteArray();
+
+    count = 0;
+    children = new ChildEntry[Math.max(node.getChildrenCount(), 1)];
+    child_bytes = new byte[children.length][];
+
+    // Nodes from the map merge are not stored in hash order
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      setChild(ce);
+    }
+  }
+
+  private TrieNodeImage(TrieNodeImage src)
+  {
+    prefix = src.prefix;
+    prefix_bytes = src.prefix_bytes;
+    count = src.count;
+    children = src.children.clone();
+    child_bytes = src.child_bytes.clone();
+  }
+
+  public TrieNodeImage copy()
+  {
+    return new TrieNodeImage(this);
+  }
+
+  public ByteString getPrefix()
+  {
+    return prefix;
+  }
+
+  public int getChildCount()
+  {
+    return count;
+  }
+
+  public ChildEntry getChildAt(int idx)
+  {
+    return children[idx];
+  }
+
+  /** @return the child whose key starts with byte b, or null */
+  public ChildEntry getChild(int b)
+  {
+    int idx = find(b);
+    if (idx < 0) return null;
+    return children[idx];
+  }
+
+  /**
+   * Puts ce in place of the child with the same first byte, if any
+   */
+  public void setChild(ChildEntry ce)
+  {
+    int idx = find(firstByte(ce));
+    if (idx >= 0)
+    {
+      children[idx] = ce;
+      child_bytes[idx] = getBytes(ce);
+    }
+    else
+    {
+      insertAt(-(idx + 1), ce);
+    }
+  }
+
+  /** Removes the child whose key starts with byte b, if there is one */
+  public void removeChild(int b)
+  {
+    int idx = find(b);
+    if (idx < 0) return;
+
+    System.arraycopy(children, idx + 1, children, idx, count - idx - 1);
+    System.arraycopy(child_bytes, idx + 1, child_bytes, idx, count - idx - 1);
+    count--;
+    children[count] = null;
+    child_bytes[count] = null;
+  }
+
+  /** Same as HashUtils.hashConcat() of the prefix then each child key and hash */
+  public ByteString hash()
+  {
+    MessageDigest d = md.get();
+    d.update(prefix_bytes);
+    for(int i=0; i<count; i++)
+    {
+      d.update(child_bytes[i]);
+    }
+    return ByteString.copyFrom(d.digest());
+  }
+
+  public TrieNode toNode(ByteString hash)
+  {
+    TrieNode.Builder builder = TrieNode.newBuilder();
+    builder.setPrefix(prefix);
+    builder.setHash(hash);
+    for(int i=0; i<count; i++)
+    {
+      builder.addChildren(children[i]);
+    }
+    return builder.build();
+  }
+
+  /** Same as HashUtils.hashConcat() of the prefix and data */
+  public static ByteString hashLeaf(ByteString prefix, ByteString data)
+  {
+    MessageDigest d = md.get();
+    d.update(prefix.asReadOnlyByteBuffer());
+    d.update(data.asReadOnlyByteBuffer());
+    return ByteString.copyFrom(d.digest());
+  }
+
+  private void insertAt(int idx, ChildEntry ce)
+  {
+    if (count == children.length)
+    {
+      int n = Math.min(256, children.length * 2);
+      ChildEntry[] c = new ChildEntry[n];
+      byte[][] b = new byte[n][];
+      System.arraycopy(children, 0, c, 0, count);
+      System.arraycopy(child_bytes, 0, b, 0, count);
+      children = c;
+      child_bytes = b;
+    }
+    System.arraycopy(children, idx, children, idx + 1, count - idx);
+    System.arraycopy(child_bytes, idx, child_bytes, idx + 1, count - idx);
+    children[idx] = ce;
+    child_bytes[idx] = getBytes(ce);
+    count++;
+  }
+
+  /**
+   * @return index of the child starting with b, or -(insert point + 1)
+   */
+  private int find(int b)
+  {
+    int low = 0;
+    int high = count - 1;
+    while(low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      int v = firstByte(children[mid]);
+      if (v < b) low = mid + 1;
+      else if (v > b) high = mid - 1;
+      else return mid;
+    }
+    return -(low + 1);
+  }
+
+  private static int firstByte(ChildEntry ce)
+  {
+    return ce.getKey().byteAt(0) & 0xFF;
+  }
+
+  private static byte[] getBytes(ChildEntry ce)
+  {
+    ByteString key = ce.getKey();
+    ByteString hash = ce.getHash();
+    byte[] b = new byte[key.size() + hash.size()];
+    key.copyTo(b, 0);
+    hash.copyTo(b, key.size());
+    return b;
+  }
+
+}
@@ -0,0 +1,400 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.ScannableDBMap;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Mark and sweep removal of trie nodes that can't be reached from a given set of roots.
+ *
+ * This sits in front of the TrieDB that HashedTrie writes through.  While a prune is running
+ * every node saved is marked and its children queued for the prune thread to mark along with
+ * anything under them, so nodes written by blocks coming in during the prune are kept.  Roots
+ * pinned with pinRoot() (for queries in flight against old roots) are queued the same way.
+ * Saving and pinning only take the lock long enough to record this, the walking and loading
+ * is all done by the prune thread.
+ *
+ * The marked set holds a hash for every live node, around 43 to 64 bytes each, so a trie
+ * of 20 million nodes needs about a gigabyte of heap while a prune runs.
+ *
+ * The sweep scans the DBMap the nodes are stored in and deletes unmarked nodes in batches.
+ * Before each batch the prune thread marks from everything queued, and the batch is only
+ * deleted once it finds the queue empty while holding the lock, so a node can't be deleted
+ * after a save or pin decided it is reachable.  Each deleted batch is evicted from the
+ * TrieDBs under this one and passed to the DeleteListeners (HashedTrie.evictImages), so a
+ * pruned root can't still be loaded from a cache.
+ *
+ * The tops of the trees saved since the last prune started are kept as well, which covers a
+ * new root that is saved just before a prune starts but only recorded (in a block summary, say)
+ * after the caller picked the roots to keep.  So any root lives through at least one prune.
+ *
+ * Anything merged from a root that is not kept must be rebuilt from a kept one, so the
+ * roots kept should cover any reorg that might happen.
+ */
+public class TriePruner extends TrieDB
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+
+  private final TrieDB inner;
+  private final ScannableDBMap node_map;
+  private final TrieDBMap scan_db;
+  private final int batch_size;
+
+  private final Object mark_lock = new Object();
+  private final Object prune_lock = new Object();
+
+  /** Non-null while a prune is running.  Holds every live node, so it is kept compact. */
+  private CompactHashSet marked;
+  /** Hashes for the prune thread to mark from */
+  private final ArrayDeque<ByteString> to_mark = new ArrayDeque<>();
+  private final HashMap<ByteString, Integer> pinned = new HashMap<>();
+  private HashSet<ByteString> recent_roots = new HashSet<>();
+
+  private final AtomicLong pruned_nodes = new AtomicLong(0L);
+  private final AtomicLong pruned_bytes = new AtomicLong(0L);
+
+  private final LinkedList<DeleteListener> listeners = new LinkedList<>();
+
+  /** Told about each batch of nodes deleted, from the prune thread */
+  public interface DeleteListener
+  {
+    public void deleted(Collection<ByteString> hashes);
+  }
+
+  /**
+   * @param inner the TrieDB to save and load through
+   * @param node_map the map inner stores nodes in
+   */
+  public TriePruner(TrieDB inner, ScannableDBMap node_map, int batch_size)
+  {
+    this.inner = inner;
+    this.node_map = node_map;
+    this.batch_size = batch_size;
+
+    // Marking walks the whole live trie, so don't run it through any cache in inner
+    this.scan_db = new TrieDBMap(node_map);
+  }
+
+  @Override
+  public void save(TrieNode node)
+  {
+    synchronized(mark_lock)
+    {
+      recent_roots.add(node.getHash());
+      if (marked != null) markSaved(node);
+    }
+    inner.save(node);
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    markBulk(updates);
+    inner.bulkSave(updates);
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates, DBBatch batch)
+  {
+    markBulk(updates);
+    inner.bulkSave(updates, batch);
+  }
+
+  private void markBulk(TreeMap<ByteString, TrieNode> updates)
+  {
+    // The top of each tree saved is the one that isn't a child of another
+    HashSet<ByteString> children = new HashSet<>();
+    for(TrieNode node : updates.values())
+    {
+      for(ChildEntry ce : node.getChildrenList())
+      {
+        children.add(ce.getHash());
+      }
+    }
+
+    synchronized(mark_lock)
+    {
+      for(TrieNode node : updates.values())
+      {
+        if (!children.contains(node.getHash())) recent_roots.add(node.getHash());
+        if (marked != null) markSaved(node);
+      }
+    }
+  }
+
+  @Override
+  public TrieNode load(ByteString key)
+  {
+    return inner.load(key);
+  }
+
+  @Override
+  public void evict(Collection<ByteString> keys)
+  {
+    inner.evict(keys);
+  }
+
+  public void addDeleteListener(DeleteListener listener)
+  {
+    synchronized(listeners)
+    {
+      listeners.add(listener);
+    }
+  }
+
+  /**
+   * Keeps everything under root from being pruned until unpinRoot() is called.
+   * Pins are counted so the same root can be pinned more than once.
+   */
+  public void pinRoot(ByteString root)
+  {
+    synchronized(mark_lock)
+    {
+      Integer count = pinned.get(root);
+      if (count == null) count = 0;
+      pinned.put(root, count + 1);
+
+      if (marked != null) to_mark.add(root);
+    }
+  }
+
+  public void unpinRoot(ByteString root)
+  {
+    synchronized(mark_lock)
+    {
+      Integer count = pinned.get(root);
+      if (count == null) return;
+      if (count <= 1)
+      {
+        pinned.remove(root);
+      }
+      else
+      {
+        pinned.put(root, count - 1);
+      }
+    }
+  }
+
+  /**
+   * Deletes every node not reachable from keep_roots, a pinned root, a root saved since
+   * the last prune or a node saved while this runs.  Blocks until done.
+   * @return number of nodes deleted
+   */
+  public long prune(Collection<ByteString> keep_roots)
+  {
+    synchronized(prune_lock)
+    {
+      long t1 = System.currentTimeMillis();
+      ArrayDeque<ByteString> roots = new ArrayDeque<>();
+
+      synchronized(mark_lock)
+      {
+        marked = new CompactHashSet(HashUtils.hashOfEmpty().size());
+        roots.addAll(keep_roots);
+        roots.addAll(pinned.keySet());
+        roots.addAll(recent_roots);
+        recent_roots = new HashSet<>();
+      }
+      roots.add(HashUtils.hashOfEmpty());
+
+      try
+      {
+        for(ByteString root : roots)
+        {
+          markFrom(root);
+        }
+        markQueued();
+
+        long mark_count;
+        synchronized(mark_lock)
+        {
+          mark_count = marked.size();
+        }
+        logger.info(String.format("Trie prune: marked %d nodes from %d roots in %d ms",
+          mark_count, roots.size(), System.currentTimeMillis() - t1));
+
+        return sweep(t1);
+      }
+      finally
+      {
+        synchronized(mark_lock)
+        {
+          marked = null;
+          to_mark.clear();
+        }
+      }
+    }
+  }
+
+  public long getPrunedNodeCount()
+  {
+    return pruned_nodes.get();
+  }
+
+  /** Total size of keys and values deleted */
+  public long getPrunedBytes()
+  {
+    return pruned_bytes.get();
+  }
+
+  private long sweep(final long start_time)
+  {
+    final HashMap<ByteString, Integer> batch = new HashMap<>();
+    final long[] counts = new long[3]; // scanned, deleted, bytes
+
+    node_map.scan(new ScannableDBMap.ScanVisitor() {
+      public boolean visit(ByteString key, ByteString value)
+      {
+        counts[0]++;
+        if (!isMarked(key))
+        {
+          batch.put(key, key.size() + value.size());
+        }
+        if (batch.size() >= batch_size)
+        {
+          deleteBatch(batch, counts);
+          logger.info(String.format("Trie prune: scanned %d nodes, deleted %d (%d bytes)",
+            counts[0], counts[1], counts[2]));
+        }
+        return true;
+      }
+    });
+    deleteBatch(batch, counts);
+
+    logger.info(String.format("Trie prune complete: scanned %d nodes, deleted %d (%d bytes) in %d ms",
+      counts[0], counts[1], counts[2], System.currentTimeMillis() - start_time));
+
+    return counts[1];
+  }
+
+  private void deleteBatch(HashMap<ByteString, Integer> batch, long[] counts)
+  {
+    if (batch.size() == 0) return;
+
+    while(true)
+    {
+      markQueued();
+      synchronized(mark_lock)
+      {
+        if (to_mark.isEmpty())
+        {
+          deleteUnmarked(batch, counts);
+          break;
+        }
+      }
+    }
+    batch.clear();
+  }
+
+  /** Caller holds mark_lock */
+  private void deleteUnmarked(HashMap<ByteString, Integer> batch, long[] counts)
+  {
+    // Anything marked since the scan saw it stays
+    Iterator<Map.Entry<ByteString, Integer>> it = batch.entrySet().iterator();
+    long bytes = 0L;
+    while(it.hasNext())
+    {
+      Map.Entry<ByteString, Integer> me = it.next();
+      if (marked.contains(me.getKey()))
+      {
+        it.remove();
+      }
+      else
+      {
+        bytes += me.getValue();
+      }
+    }
+
+    node_map.removeAll(batch.keySet());
+    inner.evict(batch.keySet());
+    synchronized(listeners)
+    {
+      for(DeleteListener listener : listeners)
+      {
+        listener.deleted(batch.keySet());
+      }
+    }
+
+    counts[1] += batch.size();
+    counts[2] += bytes;
+    pruned_nodes.addAndGet(batch.size());
+    pruned_bytes.addAndGet(bytes);
+  }
+
+  private boolean isMarked(ByteString hash)
+  {
+    synchronized(mark_lock)
+    {
+      return marked.contains(hash);
+    }
+  }
+
+  /** Caller holds mark_lock */
+  private void markSaved(TrieNode node)
+  {
+    marked.add(node.getHash());
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      to_mark.add(ce.getHash());
+    }
+  }
+
+  /** Marks from everything queued by saves and pins, until the queue is empty */
+  private void markQueued()
+  {
+    while(true)
+    {
+      ByteString hash;
+      synchronized(mark_lock)
+      {
+        hash = to_mark.poll();
+      }
+      if (hash == null) return;
+      markFrom(hash);
+    }
+  }
+
+  /**
+   * Marks hash and everything under it, stopping at nodes already marked.
+   * Nodes not in the db yet are marked without looking further; they are
+   * being saved and markSaved() will queue their children.  Only run by the prune thread.
+   */
+  private void markFrom(ByteString hash)
+  {
+    ArrayDeque<ByteString> stack = new ArrayDeque<>();
+    stack.push(hash);
+
+    while(!stack.isEmpty())
+    {
+      ByteString h = stack.pop();
+      synchronized(mark_lock)
+      {
+        if (!marked.add(h)) continue;
+      }
+
+      TrieNode node = scan_db.load(h);
+      if (node == null) continue;
+
+      for(ChildEntry ce : node.getChildrenList())
+      {
+        stack.push(ce.getHash());
+      }
+    }
+  }
+
+}
@@ -3,7 +3,10 @@ package lib.test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
+import lib.test.trie.CompactHashSetTest;
 import lib.test.trie.TrieRocksTest;
+import lib.test.trie.TrieNodeCodecTest;
+import lib.test.trie.TriePrunerTest;
 import lib.test.trie.TrieTest;
 
 @RunWith(Suite.class)
@@ -11,16 +14,25 @@ import lib.test.trie.TrieTest;
   // /trie
   TrieTest.class,
   TrieRocksTest.class,
+  TrieNodeCodecTest.class,
+  TriePrunerTest.class,
+  CompactHashSetTest.class,
 
   // root
   AddressUtilTest.class,
   BlockchainUtilTest.class,
+  CompactBlockUtilTest.class,
+  DBBatchTest.class,
+  DBReadCacheTest.class,
   DigestUtilTest.class,
+  JRocksDBTest.class,
   KeyUtilTest.class,
   PowUtilTest.class,
   PRNGStreamTest.class,
   SignatureTest.class,
+  Skein256Test.class,
   SnowFallMerkleTest.class,
+  UtxoFlatIndexTest.class,
   ValidationTest.class
 })
 public class AllTests {}
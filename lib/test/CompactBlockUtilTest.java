@@ -0,0 +1,99 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.CompactBlockUtil;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.Globals;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.Transaction;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class CompactBlockUtilTest
+{
+  private Random rnd = new Random(77L);
+
+  @Test
+  public void testRoundTrip()
+  {
+    ArrayList<Transaction> txs = new ArrayList<>();
+    for(int i=0; i<20; i++)
+    {
+      txs.add(randomTx());
+    }
+    Block blk = makeBlock(txs);
+
+    CompactBlock cb = CompactBlockUtil.makeCompact(blk);
+    Assert.assertEquals(blk.getHeader(), cb.getHeader());
+    Assert.assertEquals(txs.get(0), cb.getCoinbase());
+    Assert.assertEquals(19, cb.getShortTxIdsCount());
+    for(int i=1; i<20; i++)
+    {
+      ByteString short_id = cb.getShortTxIds(i-1);
+      Assert.assertEquals(Globals.SHORT_TX_ID_LEN, short_id.size());
+      Assert.assertTrue(txs.get(i).getTxHash().startsWith(short_id));
+    }
+    Assert.assertTrue(cb.getSerializedSize() < blk.getSerializedSize());
+
+    Assert.assertEquals(blk, CompactBlockUtil.assemble(cb.getHeader(), txs));
+  }
+
+  @Test
+  public void testWrongTransaction()
+  {
+    ArrayList<Transaction> txs = new ArrayList<>();
+    for(int i=0; i<5; i++)
+    {
+      txs.add(randomTx());
+    }
+    Block blk = makeBlock(txs);
+
+    // Say a short id matched some other transaction
+    ArrayList<Transaction> wrong = new ArrayList<>(txs);
+    wrong.set(3, randomTx());
+    Assert.assertNull(CompactBlockUtil.assemble(blk.getHeader(), wrong));
+
+    // Or the order got mixed up
+    ArrayList<Transaction> swapped = new ArrayList<>(txs);
+    swapped.set(1, txs.get(2));
+    swapped.set(2, txs.get(1));
+    Assert.assertNull(CompactBlockUtil.assemble(blk.getHeader(), swapped));
+
+    // Or a bad hash
+    ArrayList<Transaction> bad_hash = new ArrayList<>(txs);
+    bad_hash.set(4, Transaction.newBuilder(txs.get(4)).setTxHash(ByteString.copyFrom(new byte[3])).build());
+    Assert.assertNull(CompactBlockUtil.assemble(blk.getHeader(), bad_hash));
+
+    Assert.assertNull(CompactBlockUtil.assemble(blk.getHeader(), new ArrayList<Transaction>()));
+  }
+
+  private Block makeBlock(ArrayList<Transaction> txs)
+  {
+    ArrayList<ChainHash> hashes = new ArrayList<>();
+    for(Transaction tx : txs)
+    {
+      hashes.add(new ChainHash(tx.getTxHash()));
+    }
+    BlockHeader header = BlockHeader.newBuilder()
+      .setMerkleRootHash(DigestUtil.getMerkleRootForTxList(hashes).getBytes())
+      .build();
+    return Block.newBuilder().setHeader(header).addAllTransactions(txs).build();
+  }
+
+  private Transaction randomTx()
+  {
+    byte[] inner = new byte[100];
+    rnd.nextBytes(inner);
+    return Transaction.newBuilder()
+      .setInnerData(ByteString.copyFrom(inner))
+      .setTxHash(ByteString.copyFrom(DigestUtil.getMD().digest(inner)))
+      .build();
+  }
+
+}
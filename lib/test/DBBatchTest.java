@@ -0,0 +1,101 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import lib.test.trie.TrieNodeCodecTest;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+
+import java.util.HashMap;
+import java.util.Random;
+
+public class DBBatchTest
+{
+  private Random rnd = new Random(5L);
+
+  @Test
+  public void testNothingUntilCommit() throws Exception
+  {
+    UtxoFlatIndexTest.MemDB db = new UtxoFlatIndexTest.MemDB();
+    HashedTrie trie = new HashedTrie(new TrieDBMap(db.getUtxoNodeMap()), 8, true);
+
+    HashMap<ByteString, ByteString> updates = new HashMap<>();
+    for(int i=0; i<100; i++)
+    {
+      updates.put(randBytes(8), randBytes(20));
+    }
+    ByteString expected_root = trie.simulateMerge(HashUtils.hashOfEmpty(), updates);
+
+    ByteString block_hash = randBytes(32);
+    BlockSummary summary = BlockSummary.newBuilder()
+      .setHeader(BlockHeader.newBuilder().setSnowHash(block_hash).setUtxoRootHash(expected_root).build())
+      .build();
+
+    DBBatch batch = db.newBatch();
+    Assert.assertTrue(trie.mergeIfNewRoot(HashUtils.hashOfEmpty(), updates, expected_root, batch));
+    batch.put(db.getBlockSummaryMap(), block_hash, summary);
+    db.setBlockHashAtHeight(0, new ChainHash(block_hash), batch);
+    batch.put(db.getSpecialMap(), ByteString.copyFromUtf8("gone"), null);
+
+    Assert.assertNull(db.getUtxoNodeMap().get(expected_root));
+    Assert.assertNull(db.getBlockSummaryMap().get(block_hash));
+    Assert.assertNull(db.getBlockHashAtHeight(0));
+
+    batch.commit();
+
+    Assert.assertNotNull(db.getUtxoNodeMap().get(expected_root));
+    Assert.assertEquals(summary, db.getBlockSummaryMap().get(block_hash));
+    Assert.assertEquals(new ChainHash(block_hash), db.getBlockHashAtHeight(0));
+    for(ByteString key : updates.keySet())
+    {
+      Assert.assertEquals(updates.get(key), trie.getLeafData(expected_root, key));
+    }
+
+    // A wrong root writes nothing to the batch
+    updates.put(randBytes(8), randBytes(20));
+    Assert.assertFalse(trie.mergeIfNewRoot(expected_root, updates, expected_root, batch));
+    int before = ((TrieNodeCodecTest.MemDBMap) db.getUtxoNodeMap()).size();
+    batch.commit();
+    Assert.assertEquals(before, ((TrieNodeCodecTest.MemDBMap) db.getUtxoNodeMap()).size());
+  }
+
+  @Test
+  public void testCachesFollowBatch() throws Exception
+  {
+    UtxoFlatIndexTest.MemDB db = new UtxoFlatIndexTest.MemDB();
+    ByteString head = ByteString.copyFromUtf8("head");
+
+    BlockSummary a = BlockSummary.newBuilder().setHeader(BlockHeader.newBuilder().setBlockHeight(1).build()).build();
+    BlockSummary b = BlockSummary.newBuilder().setHeader(BlockHeader.newBuilder().setBlockHeight(2).build()).build();
+
+    db.getBlockSummaryMap().put(head, a);
+    db.setBlockHashAtHeight(1, new ChainHash(randBytes(32)));
+    Assert.assertEquals(a, db.getBlockSummaryMap().get(head));
+    Assert.assertNotNull(db.getBlockHashAtHeight(1));
+    long hits = db.getBlockSummaryMap().getCache().getHitCount();
+    Assert.assertEquals(a, db.getBlockSummaryMap().get(head));
+    Assert.assertEquals(hits + 1, db.getBlockSummaryMap().getCache().getHitCount());
+
+    ChainHash new_hash = new ChainHash(randBytes(32));
+    DBBatch batch = db.newBatch();
+    batch.put(db.getBlockSummaryMap(), head, b);
+    db.setBlockHashAtHeight(1, new_hash, batch);
+    batch.commit();
+
+    Assert.assertEquals(b, db.getBlockSummaryMap().get(head));
+    Assert.assertEquals(new_hash, db.getBlockHashAtHeight(1));
+  }
+
+  private ByteString randBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+}
@@ -0,0 +1,49 @@
+package lib.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.db.DBReadCache;
+
+public class DBReadCacheTest
+{
+  @Test
+  public void testHitsAndMisses()
+  {
+    DBReadCache<Integer, String> cache = new DBReadCache<>(2);
+
+    Assert.assertNull(cache.get(1));
+    long gen = cache.startLoad();
+    cache.loaded(gen, 1, "a");
+    Assert.assertEquals("a", cache.get(1));
+
+    // Not found isn't cached
+    gen = cache.startLoad();
+    cache.loaded(gen, 2, null);
+    Assert.assertNull(cache.get(2));
+
+    cache.put(2, "b");
+    cache.put(3, "c");
+    Assert.assertNull(cache.get(1));
+    Assert.assertEquals("c", cache.get(3));
+
+    Assert.assertEquals(2, cache.getHitCount());
+    Assert.assertEquals(3, cache.getMissCount());
+  }
+
+  @Test
+  public void testWriteDuringLoad()
+  {
+    DBReadCache<Integer, String> cache = new DBReadCache<>(10);
+
+    // A read that started before a write must not cache what it read
+    long gen = cache.startLoad();
+    cache.put(1, "new");
+    cache.loaded(gen, 1, "old");
+    Assert.assertEquals("new", cache.get(1));
+
+    gen = cache.startLoad();
+    cache.invalidate(1);
+    cache.loaded(gen, 1, "old");
+    Assert.assertNull(cache.get(1));
+  }
+}
@@ -0,0 +1,132 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.ScannableDBMap;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.ByteStringComparator;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class JRocksDBTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private Random rnd = new Random(41L);
+
+  @Test
+  public void testSharedArrays() throws Exception
+  {
+    File dir = testFolder.newFolder();
+    JRocksDB db = openDB(dir);
+    DBMap map = db.getSpecialMap();
+
+    // Flat, substring and concatenated ByteStrings all go in as the right bytes
+    ByteString flat = randBytes(100);
+    ByteString sub = flat.substring(10, 50);
+    ByteString cat = sub.concat(randBytes(7));
+
+    map.put(flat, cat);
+    map.put(sub, flat);
+    map.put(cat, sub);
+    map.put(randBytes(4), ByteString.EMPTY);
+
+    Assert.assertEquals(cat, map.get(flat));
+    Assert.assertEquals(flat, map.get(sub));
+    Assert.assertEquals(sub, map.get(cat));
+    Assert.assertEquals(sub, map.get(ByteString.copyFrom(cat.toByteArray())));
+
+    db.close();
+  }
+
+  @Test
+  public void testBatch() throws Exception
+  {
+    File dir = testFolder.newFolder();
+    JRocksDB db = openDB(dir);
+
+    ByteString k1 = randBytes(32);
+    ByteString k2 = randBytes(32);
+    db.getSpecialMap().put(k2, randBytes(10));
+
+    DBBatch batch = db.newBatch();
+    batch.put(db.getSpecialMap(), k1, randBytes(20));
+    batch.remove((ScannableDBMap) db.getSpecialMap(), k2);
+    batch.put(db.getUtxoNodeMap(), k1, randBytes(30));
+
+    Assert.assertNull(db.getSpecialMap().get(k1));
+    Assert.assertNotNull(db.getSpecialMap().get(k2));
+    batch.commit();
+    Assert.assertEquals(20, db.getSpecialMap().get(k1).size());
+    Assert.assertNull(db.getSpecialMap().get(k2));
+    Assert.assertEquals(30, db.getUtxoNodeMap().get(k1).size());
+
+    // Each map keeps to its own column family
+    Assert.assertNull(db.getBlockMap().get(k1));
+    db.close();
+  }
+
+  @Test
+  public void testMigrateFromPrefix() throws Exception
+  {
+    File dir = testFolder.newFolder();
+    TreeMap<ByteString, ByteString> old_u = new TreeMap<>(new ByteStringComparator());
+
+    // Old layout, everything in the default family under "name/"
+    RocksDB old_db = RocksDB.open(new Options().setCreateIfMissing(true), dir.getPath());
+    for(int i=0; i<25000; i++)
+    {
+      ByteString k = randBytes(32);
+      ByteString v = randBytes(16);
+      old_u.put(k, v);
+      old_db.put(ByteString.copyFromUtf8("u/").concat(k).toByteArray(), v.toByteArray());
+    }
+    ByteString special_key = ByteString.copyFromUtf8("head");
+    old_db.put(ByteString.copyFromUtf8("special/head").toByteArray(), new byte[]{1,2,3});
+    old_db.close();
+
+    JRocksDB db = openDB(dir);
+    for(Map.Entry<ByteString, ByteString> me : old_u.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), db.getUtxoNodeMap().get(me.getKey()));
+    }
+    Assert.assertEquals(ByteString.copyFrom(new byte[]{1,2,3}), db.getSpecialMap().get(special_key));
+
+    final int[] count = new int[1];
+    ((ScannableDBMap) db.getUtxoNodeMap()).scan(new ScannableDBMap.ScanVisitor() {
+      public boolean visit(ByteString key, ByteString value)
+      {
+        count[0]++;
+        return true;
+      }
+    });
+    Assert.assertEquals(old_u.size(), count[0]);
+    db.close();
+  }
+
+  private JRocksDB openDB(File dir) throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", dir.getPath());
+    return new JRocksDB(new ConfigMem(config_map));
+  }
+
+  private ByteString randBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+}
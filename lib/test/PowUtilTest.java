@@ -1,18 +1,29 @@
 package lib.test;
 
+import com.google.protobuf.ByteString;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import snowblossom.proto.*;
 import snowblossom.lib.BlockchainUtil;
+import snowblossom.lib.Globals;
 import snowblossom.lib.NetworkParams;
 import snowblossom.lib.NetworkParamsRegtest;
 import snowblossom.lib.NetworkParamsProd;
+import snowblossom.lib.PowHasher;
 import snowblossom.lib.PowUtil;
 
 import java.math.BigInteger;
+import java.util.Random;
 
 public class PowUtilTest
 {
+  @BeforeClass
+  public static void loadProvider()
+  {
+    Globals.addCryptoProvider();
+  }
+
   @Test
   public void testCalcNextTargetInitial()
   {
@@ -197,6 +208,79 @@ public class PowUtilTest
 
 
 
-}
+  @Test
+  public void testPowHasherMatches()
+  {
+    Random rnd = new Random(8675309L);
+    PowHasher hasher = new PowHasher();
+    byte[] context = new byte[PowHasher.HASH_LEN];
+    byte[] word = new byte[Globals.SNOW_MERKLE_HASH_LEN];
+    byte[] nonce = new byte[Globals.NONCE_LENGTH];
+
+    for(int h=0; h<20; h++)
+    {
+      BlockHeader header = BlockHeader.newBuilder()
+        .setVersion(1)
+        .setBlockHeight(rnd.nextInt(1000000))
+        .setTimestamp(rnd.nextLong())
+        .setSnowField(rnd.nextInt(20))
+        .setPrevBlockHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+        .setMerkleRootHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+        .setUtxoRootHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+        .setTarget(randomBytes(rnd, Globals.TARGET_LENGTH))
+        .build();
+
+      hasher.setHeader(header);
+
+      for(int n=0; n<20; n++)
+      {
+        rnd.nextBytes(nonce);
+        byte[] expected = PowUtil.hashHeaderBits(header, nonce);
+        hasher.hashHeaderBits(nonce, context);
+        Assert.assertArrayEquals(expected, context);
+
+        long word_count = 1L + rnd.nextInt(Integer.MAX_VALUE) * 64L;
+        for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
+        {
+          Assert.assertEquals(
+            PowUtil.getNextSnowFieldIndex(expected, word_count),
+            hasher.getNextSnowFieldIndex(context, word_count));
+
+          rnd.nextBytes(word);
+          expected = PowUtil.getNextContext(expected, word);
+          hasher.getNextContext(context, word, context);
+          Assert.assertArrayEquals(expected, context);
+        }
+
+        Assert.assertEquals(PowUtil.lessThanTarget(expected, header.getTarget()), hasher.lessThanTarget(context));
+      }
+    }
+  }
+
+  @Test
+  public void testPowHasherTarget()
+  {
+    Random rnd = new Random(1234L);
+    for(int i=0; i<1000; i++)
+    {
+      byte[] found = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+      rnd.nextBytes(found);
+
+      // Mostly prefixes of the found hash so the comparison has to go deep
+      byte[] target_bytes = new byte[Globals.TARGET_LENGTH - 2 + rnd.nextInt(5)];
+      rnd.nextBytes(target_bytes);
+      System.arraycopy(found, 0, target_bytes, 0, rnd.nextInt(target_bytes.length));
+      ByteString target = ByteString.copyFrom(target_bytes);
 
+      Assert.assertEquals(PowUtil.lessThanTarget(found, target), PowHasher.lessThanTarget(found, target));
+    }
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
 
+}
@@ -0,0 +1,136 @@
+package lib.test;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import snowblossom.lib.Globals;
+import snowblossom.lib.Skein256;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Skein256Test
+{
+  @BeforeClass
+  public static void loadProvider()
+  {
+    Globals.addCryptoProvider();
+  }
+
+  private Random rnd = new Random(8L);
+
+  @Test
+  public void testMatchesProvider() throws Exception
+  {
+    for(int bits : new int[]{128, 160, 256})
+    {
+      MessageDigest md = MessageDigest.getInstance("Skein-256-" + bits);
+      Skein256 skein = new Skein256(bits);
+      Assert.assertEquals(md.getDigestLength(), skein.getDigestSize());
+
+      for(int len=0; len<300; len++)
+      {
+        byte[] in = new byte[len];
+        rnd.nextBytes(in);
+
+        md.update(in);
+        byte[] expected = md.digest();
+
+        Assert.assertArrayEquals(expected, hashInPieces(skein, in));
+      }
+    }
+  }
+
+  @Test
+  public void testGlobalAlgos() throws Exception
+  {
+    byte[] in = new byte[77];
+    rnd.nextBytes(in);
+
+    checkAlgo(Globals.SNOW_MERKLE_HASH_ALGO, Globals.SNOW_MERKLE_HASH_LEN, in);
+    checkAlgo(Globals.BLOCKCHAIN_HASH_ALGO, Globals.BLOCKCHAIN_HASH_LEN, in);
+    checkAlgo(Globals.ADDRESS_SPEC_HASH_ALGO, Globals.ADDRESS_SPEC_HASH_LEN, in);
+  }
+
+  @Test
+  public void testFastPaths() throws Exception
+  {
+    for(int bits : new int[]{128, 160, 256})
+    {
+      MessageDigest md = MessageDigest.getInstance("Skein-256-" + bits);
+      Skein256 skein = new Skein256(bits);
+      byte[] out = new byte[bits / 8 + 3];
+
+      for(int i=0; i<100; i++)
+      {
+        byte[] in = new byte[48];
+        rnd.nextBytes(in);
+
+        md.update(in, 0, 32);
+        byte[] expected = md.digest();
+        skein.digest32(in, 0, out, 3);
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 3, out.length));
+
+        md.update(in, 0, 16);
+        md.update(in, 32, 16);
+        expected = md.digest();
+        skein.digestPair(in, 0, in, 32, out, 0);
+        Assert.assertArrayEquals(expected, Arrays.copyOf(out, bits / 8));
+
+        md.update(in);
+        expected = md.digest();
+        byte[] context = Arrays.copyOf(in, 32);
+        byte[] word = Arrays.copyOfRange(in, 32, 48);
+        skein.digestContextWord(context, word, out, 0);
+        Assert.assertArrayEquals(expected, Arrays.copyOf(out, bits / 8));
+
+        // fast paths must not disturb an update in progress
+        skein.update(in, 0, 40);
+        skein.digest32(in, 0, out, 0);
+        skein.update(in, 40, 8);
+        Assert.assertArrayEquals(expected, skein.digest());
+      }
+    }
+  }
+
+  @Test
+  public void testContextInPlace() throws Exception
+  {
+    MessageDigest md = MessageDigest.getInstance(Globals.BLOCKCHAIN_HASH_ALGO);
+    Skein256 skein = new Skein256(256);
+
+    byte[] context = new byte[32];
+    byte[] word = new byte[16];
+    rnd.nextBytes(context);
+    rnd.nextBytes(word);
+
+    md.update(context);
+    md.update(word);
+    byte[] expected = md.digest();
+
+    skein.digestContextWord(context, word, context, 0);
+    Assert.assertArrayEquals(expected, context);
+  }
+
+  private void checkAlgo(String algo, int len, byte[] in) throws Exception
+  {
+    MessageDigest md = MessageDigest.getInstance(algo);
+    Skein256 skein = new Skein256(len * 8);
+
+    Assert.assertArrayEquals(md.digest(in), skein.digest(in));
+  }
+
+  private byte[] hashInPieces(Skein256 skein, byte[] in)
+  {
+    int p = 0;
+    while(p < in.length)
+    {
+      int n = Math.min(in.length - p, rnd.nextInt(70));
+      skein.update(in, p, n);
+      p += n;
+    }
+    return skein.digest();
+  }
+
+}
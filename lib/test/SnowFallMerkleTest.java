@@ -8,11 +8,13 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import snowblossom.lib.SnowFall;
 import snowblossom.lib.SnowMerkle;
+import snowblossom.lib.SnowMerkleParallel;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.util.HashMap;
 
@@ -59,6 +61,76 @@ public class SnowFallMerkleTest
   }
 
 
+  private void testParallel(int mb_size, String seed, String expected)
+    throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+
+    new SnowFall(tmp_dir.getAbsolutePath() +"/test.snow", seed, mb_size * 1048576L);
+
+    String hash = new SnowMerkle(tmp_dir, "test", true).getRootHashStr();
+    Assert.assertEquals(expected, hash);
+
+    int deck_count = SnowMerkle.getNumberOfDecks(mb_size * 1048576L / SnowMerkle.HASH_LEN_LONG);
+    byte[][] decks = new byte[deck_count][];
+    for(int i=0; i<deck_count; i++)
+    {
+      decks[i] = Files.readAllBytes(new File(tmp_dir, "test.deck." + (char)('a' + i)).toPath());
+    }
+
+    // Small chunks so that the levels above the chunks get some work too
+    for(long chunk : new long[]{ 1024L, 4096L, SnowMerkleParallel.DEFAULT_CHUNK_WORDS })
+    {
+      String par_hash = new SnowMerkleParallel(tmp_dir, "test", true, 4, chunk).getRootHashStr();
+      Assert.assertEquals(expected, par_hash);
+
+      for(int i=0; i<deck_count; i++)
+      {
+        byte[] deck = Files.readAllBytes(new File(tmp_dir, "test.deck." + (char)('a' + i)).toPath());
+        Assert.assertArrayEquals(decks[i], deck);
+      }
+    }
+  }
+
+  private void testPipelined(int mb_size, String seed)
+    throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+    File barrier = new File(tmp_dir, "barrier.snow");
+    File pipelined = new File(tmp_dir, "pipelined.snow");
+
+    long t1 = System.currentTimeMillis();
+    new SnowFall(barrier.getAbsolutePath(), seed, mb_size * 1048576L, false);
+    long t2 = System.currentTimeMillis();
+    new SnowFall(pipelined.getAbsolutePath(), seed, mb_size * 1048576L, true);
+    long t3 = System.currentTimeMillis();
+
+    System.out.println(String.format("SnowFall %d MB: barrier %d ms, pipelined %d ms", mb_size, t2 - t1, t3 - t2));
+
+    Assert.assertArrayEquals(Files.readAllBytes(barrier.toPath()), Files.readAllBytes(pipelined.toPath()));
+  }
+
+  @Test
+  public void testPipelined() throws Exception
+  {
+    // Small fields have lots of pages shared between batches
+    testPipelined(1, "zing");
+    testPipelined(2, "teapot.3");
+    testPipelined(16, "zing");
+  }
+
+  @Test
+  public void testParallel1MB() throws Exception
+  {
+    testParallel(1, "zing", "c58564b6208329ae2317ec606bbc7f4a");
+  }
+
+  @Test
+  public void testParallel64MB() throws Exception
+  {
+    testParallel(64, "zing", "f8ca73a8cc7076dc9823caebbcadbf79");
+  }
+
   @Test
   public void test1MB() throws Exception
   {
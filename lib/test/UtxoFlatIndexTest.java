@@ -0,0 +1,294 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import lib.test.trie.TrieNodeCodecTest;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.UtxoFlatIndex;
+import snowblossom.lib.UtxoUpdateBuffer;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBMapMutationSet;
+import snowblossom.lib.db.ScannableDBMap;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInner;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class UtxoFlatIndexTest
+{
+  private Random rnd = new Random(23L);
+
+  private MemDB db;
+  private HashedTrie trie;
+  private HashSet<ByteString> all_keys = new HashSet<>();
+
+  @Test
+  public void testConnectAndReorg() throws Exception
+  {
+    db = new MemDB();
+    trie = new HashedTrie(new TrieDBMem(), Globals.UTXO_KEY_LEN, true);
+    UtxoFlatIndex index = newIndex(100);
+
+    BlockSummary genesis = addBlock(null);
+    index.syncTo(genesis);
+    checkIndex(index, genesis);
+
+    ArrayList<BlockSummary> chain_a = new ArrayList<>();
+    chain_a.add(genesis);
+    for(int i=1; i<6; i++)
+    {
+      chain_a.add(addBlock(chain_a.get(i-1)));
+      index.syncTo(chain_a.get(i));
+      checkIndex(index, chain_a.get(i));
+    }
+
+    // Longer fork off block 2
+    BlockSummary b = chain_a.get(2);
+    for(int i=0; i<5; i++)
+    {
+      b = addBlock(b);
+    }
+    index.syncTo(b);
+    checkIndex(index, b);
+
+    // And back again
+    BlockSummary a_tip = chain_a.get(chain_a.size()-1);
+    index.syncTo(a_tip);
+    checkIndex(index, a_tip);
+
+    // Other roots go to the trie
+    ChainHash old_root = new ChainHash(chain_a.get(1).getHeader().getUtxoRootHash());
+    for(ByteString key : all_keys)
+    {
+      Assert.assertEquals(trie.getLeafData(old_root.getBytes(), key), index.getLeafData(old_root, key));
+    }
+
+    // A new index over the same db picks up where this one left off
+    UtxoFlatIndex reopened = newIndex(100);
+    Assert.assertEquals(new ChainHash(a_tip.getHeader().getUtxoRootHash()), reopened.getTipRoot());
+  }
+
+  @Test
+  public void testRebuildWithoutUndo() throws Exception
+  {
+    db = new MemDB();
+    trie = new HashedTrie(new TrieDBMem(), Globals.UTXO_KEY_LEN, true);
+    UtxoFlatIndex index = newIndex(2);
+
+    BlockSummary fork_point = null;
+    BlockSummary a = addBlock(null);
+    index.syncTo(a);
+    for(int i=0; i<6; i++)
+    {
+      if (i == 1) fork_point = a;
+      a = addBlock(a);
+      index.syncTo(a);
+    }
+
+    // Deeper than the undo records go back
+    BlockSummary b = fork_point;
+    for(int i=0; i<8; i++)
+    {
+      b = addBlock(b);
+    }
+    index.syncTo(b);
+    checkIndex(index, b);
+  }
+
+  @Test
+  public void testConnectInBatch() throws Exception
+  {
+    db = new MemDB();
+    trie = new HashedTrie(new TrieDBMem(), Globals.UTXO_KEY_LEN, true);
+    UtxoFlatIndex index = newIndex(3);
+
+    BlockSummary a = addBlock(null);
+    index.syncTo(a);
+
+    BlockSummary fork_point = null;
+    for(int i=0; i<6; i++)
+    {
+      if (i == 5) fork_point = a;
+      BlockSummary prev = a;
+      a = addBlock(a);
+
+      DBBatch batch = db.newBatch();
+      Assert.assertTrue(index.connectBlock(getWrapper(a), a, batch));
+
+      // Nothing changes until the batch is saved, and lookups for the old root go to the trie
+      Assert.assertNull(index.getTipRoot());
+      ChainHash prev_root = new ChainHash(prev.getHeader().getUtxoRootHash());
+      for(ByteString key : all_keys)
+      {
+        Assert.assertEquals(trie.getLeafData(prev_root.getBytes(), key), index.getLeafData(prev_root, key));
+      }
+
+      batch.commit();
+      checkIndex(index, a);
+    }
+
+    // Not at the previous block, so it is left to syncTo()
+    BlockSummary b = addBlock(addBlock(a));
+    Assert.assertFalse(index.connectBlock(getWrapper(b), b, db.newBatch()));
+    index.syncTo(b);
+    checkIndex(index, b);
+
+    // A batch that is never saved leaves the index where the saved marker says
+    BlockSummary c = addBlock(b);
+    Assert.assertTrue(index.connectBlock(getWrapper(c), c, db.newBatch()));
+    index.syncTo(b);
+    checkIndex(index, b);
+
+    // Undo records from the batches are good for a reorg
+    BlockSummary fork = fork_point;
+    for(int i=0; i<5; i++)
+    {
+      fork = addBlock(fork);
+    }
+    index.syncTo(fork);
+    checkIndex(index, fork);
+  }
+
+  private BlockWrapper getWrapper(BlockSummary summary)
+  {
+    return new BlockWrapper(db.getBlockMap().get(summary.getHeader().getSnowHash()));
+  }
+
+  /**
+   * Makes a block that spends a couple of random outputs from prev and adds some new ones,
+   * and saves it, its summary and its trie updates.
+   */
+  private BlockSummary addBlock(BlockSummary prev)
+  {
+    int height = 0;
+    ByteString prev_hash = ChainHash.ZERO_HASH.getBytes();
+    ByteString prev_root = HashUtils.hashOfEmpty();
+    if (prev != null)
+    {
+      height = prev.getHeader().getBlockHeight() + 1;
+      prev_hash = prev.getHeader().getSnowHash();
+      prev_root = prev.getHeader().getUtxoRootHash();
+    }
+
+    ArrayList<ByteString> spendable = new ArrayList<>();
+    for(ByteString key : all_keys)
+    {
+      if (trie.getLeafData(prev_root, key) != null) spendable.add(key);
+    }
+
+    Block.Builder blk = Block.newBuilder();
+    for(int t=0; t<3; t++)
+    {
+      TransactionInner.Builder inner = TransactionInner.newBuilder();
+      if ((t > 0) && (spendable.size() > 0))
+      {
+        ByteString key = spendable.remove(rnd.nextInt(spendable.size()));
+        inner.addInputs(TransactionInput.newBuilder()
+          .setSpecHash(key.substring(0, Globals.ADDRESS_SPEC_HASH_LEN))
+          .setSrcTxId(key.substring(Globals.ADDRESS_SPEC_HASH_LEN, Globals.ADDRESS_SPEC_HASH_LEN + Globals.BLOCKCHAIN_HASH_LEN))
+          .setSrcTxOutIdx(key.byteAt(Globals.UTXO_KEY_LEN - 1) & 0xFF)
+          .build());
+      }
+      for(int o=0; o<3; o++)
+      {
+        inner.addOutputs(TransactionOutput.newBuilder()
+          .setValue(rnd.nextInt(1000000) + 1)
+          .setRecipientSpecHash(randBytes(Globals.ADDRESS_SPEC_HASH_LEN))
+          .build());
+      }
+      blk.addTransactions(Transaction.newBuilder()
+        .setTxHash(randBytes(Globals.BLOCKCHAIN_HASH_LEN))
+        .setInnerData(inner.build().toByteString())
+        .build());
+    }
+
+    Map<ByteString, ByteString> updates = UtxoFlatIndex.getUpdates(blk.build());
+    all_keys.addAll(updates.keySet());
+    ByteString root = trie.mergeBatch(prev_root, updates);
+
+    BlockHeader header = BlockHeader.newBuilder()
+      .setBlockHeight(height)
+      .setPrevBlockHash(prev_hash)
+      .setSnowHash(randBytes(Globals.BLOCKCHAIN_HASH_LEN))
+      .setUtxoRootHash(root)
+      .build();
+    blk.setHeader(header);
+
+    BlockSummary summary = BlockSummary.newBuilder().setHeader(header).build();
+    db.getBlockMap().put(header.getSnowHash(), blk.build());
+    db.getBlockSummaryMap().put(header.getSnowHash(), summary);
+    db.setBlockHashAtHeight(height, new ChainHash(header.getSnowHash()));
+
+    return summary;
+  }
+
+  private void checkIndex(UtxoFlatIndex index, BlockSummary head)
+  {
+    ChainHash root = new ChainHash(head.getHeader().getUtxoRootHash());
+    Assert.assertEquals(root, index.getTipRoot());
+
+    int live = 0;
+    for(ByteString key : all_keys)
+    {
+      ByteString expected = trie.getLeafData(root.getBytes(), key);
+      Assert.assertEquals(expected, index.getLeafData(root, key));
+      Assert.assertEquals(expected, db.getUtxoFlatMap().get(key));
+      if (expected != null) live++;
+    }
+    // Nothing left over but the tip marker
+    Assert.assertEquals(live + 1, ((TrieNodeCodecTest.MemDBMap) db.getUtxoFlatMap()).size());
+  }
+
+  private UtxoFlatIndex newIndex(int undo_keep)
+  {
+    return new UtxoFlatIndex(db, (ScannableDBMap) db.getUtxoFlatMap(), (ScannableDBMap) db.getUtxoUndoMap(), trie, undo_keep);
+  }
+
+  private ByteString randBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  public static class MemDB extends DB
+  {
+    public MemDB() throws Exception
+    {
+      super(new ConfigMem(new TreeMap<String, String>()));
+      open();
+    }
+
+    @Override
+    protected DBMap openMap(String name)
+    {
+      return new TrieNodeCodecTest.MemDBMap();
+    }
+
+    @Override
+    protected DBMapMutationSet openMutationMapSet(String name)
+    {
+      return null;
+    }
+  }
+
+}
@@ -1,14 +1,18 @@
 package lib.test;
 
 import com.google.protobuf.ByteString;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import snowblossom.proto.*;
 import snowblossom.lib.AddressSpecHash;
 import snowblossom.lib.AddressUtil;
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
 import snowblossom.lib.DigestUtil;
 import snowblossom.lib.Globals;
 import snowblossom.lib.KeyUtil;
+import snowblossom.lib.SignatureCache;
 import snowblossom.lib.SignatureUtil;
 import snowblossom.lib.Validation;
 import snowblossom.lib.ValidationException;
@@ -16,6 +20,7 @@ import snowblossom.lib.ValidationException;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.Signature;
+import java.util.ArrayList;
 import java.util.Random;
 
 public class ValidationTest
@@ -113,6 +118,158 @@ public class ValidationTest
   @Test
   public void testBasicTx()
     throws Exception
+  {
+    Transaction tx = makeBasicTx();
+    Validation.checkTransactionBasics(tx, false);
+
+    System.out.println("Basic transaction size: " + tx.toByteString().size());
+  }
+
+  @Test
+  public void testTxListFirstError()
+    throws Exception
+  {
+    ArrayList<Transaction> tx_list = new ArrayList<>();
+    tx_list.add(makeCoinbaseTx());
+    for(int i=0; i<15; i++)
+    {
+      tx_list.add(makeBasicTx());
+    }
+
+    Validation.checkTransactionListBasics(tx_list);
+
+    // Break a later one first, then an earlier one.  The earlier one must be reported.
+    Transaction bad_sig = tx_list.get(11);
+    byte[] sig = bad_sig.getSignatures(0).getSignature().toByteArray();
+    sig[sig.length-1] ^= 0x01;
+    tx_list.set(11, Transaction.newBuilder(bad_sig)
+      .setSignatures(0, SignatureEntry.newBuilder(bad_sig.getSignatures(0)).setSignature(ByteString.copyFrom(sig)).build())
+      .build());
+
+    try
+    {
+      Validation.checkTransactionListBasics(tx_list);
+      Assert.fail();
+    }
+    catch(ValidationException e)
+    {
+      Assert.assertEquals("signature failed", e.getMessage());
+    }
+
+    byte[] hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(hash);
+    tx_list.set(5, Transaction.newBuilder(tx_list.get(5)).setTxHash(ByteString.copyFrom(hash)).build());
+
+    for(int i=0; i<10; i++)
+    {
+      try
+      {
+        Validation.checkTransactionListBasics(tx_list);
+        Assert.fail();
+      }
+      catch(ValidationException e)
+      {
+        Assert.assertEquals("TX hash mismatch", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testSignatureCache()
+    throws Exception
+  {
+    SignatureCache sig_cache = new SignatureCache(100);
+    Transaction tx = makeBasicTx();
+
+    Validation.checkTransactionBasics(tx, false, sig_cache);
+    Assert.assertEquals(0, sig_cache.getHitCount());
+    Assert.assertEquals(1, sig_cache.getMissCount());
+
+    Validation.checkTransactionBasics(tx, false, sig_cache);
+    Assert.assertEquals(1, sig_cache.getHitCount());
+    Assert.assertEquals(1, sig_cache.getMissCount());
+
+    // Same tx hash and key but a different signature must still be checked
+    byte[] sig = tx.getSignatures(0).getSignature().toByteArray();
+    sig[sig.length-1] ^= 0x01;
+    Transaction bad_tx = Transaction.newBuilder(tx)
+      .setSignatures(0, SignatureEntry.newBuilder(tx.getSignatures(0)).setSignature(ByteString.copyFrom(sig)).build())
+      .build();
+
+    for(int i=0; i<2; i++)
+    {
+      try
+      {
+        Validation.checkTransactionBasics(bad_tx, false, sig_cache);
+        Assert.fail();
+      }
+      catch(ValidationException e)
+      {
+        Assert.assertEquals("signature failed", e.getMessage());
+      }
+    }
+    Assert.assertEquals(1, sig_cache.getHitCount());
+    Assert.assertEquals(3, sig_cache.getMissCount());
+    Assert.assertEquals(1, sig_cache.size());
+  }
+
+  @Test
+  public void testBlockWrapper()
+    throws Exception
+  {
+    Block.Builder blk = Block.newBuilder();
+    byte[] hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(hash);
+    blk.setHeader(BlockHeader.newBuilder().setSnowHash(ByteString.copyFrom(hash)).setBlockHeight(7).build());
+    blk.addTransactions(makeCoinbaseTx());
+    for(int i=0; i<3; i++)
+    {
+      blk.addTransactions(makeBasicTx());
+    }
+    Block b = blk.build();
+    BlockWrapper wrapper = new BlockWrapper(b);
+
+    Assert.assertEquals(new ChainHash(hash), wrapper.getHash());
+    Assert.assertEquals(7, wrapper.getHeight());
+    Assert.assertEquals(b.toByteString().size(), wrapper.getSize());
+    Assert.assertEquals(4, wrapper.getTransactionCount());
+    for(int i=0; i<4; i++)
+    {
+      Transaction tx = b.getTransactions(i);
+      Assert.assertEquals(new ChainHash(tx.getTxHash()), wrapper.getTxHash(i));
+      Assert.assertEquals(tx.toByteString().size(), wrapper.getTxSize(i));
+      Assert.assertEquals(TransactionInner.parseFrom(tx.getInnerData()), wrapper.getInner(i));
+    }
+
+    // What the basic checks parse is what goes in the wrapper
+    TransactionInner inner = Validation.checkTransactionBasics(b.getTransactions(1), false, null);
+    Assert.assertEquals(wrapper.getInner(1), inner);
+  }
+
+  private Transaction makeCoinbaseTx()
+  {
+    MessageDigest md_bc = DigestUtil.getMD();
+    TransactionInner.Builder inner = TransactionInner.newBuilder();
+    inner.setVersion(1);
+    inner.setIsCoinbase(true);
+
+    byte[] addr = new byte[Globals.ADDRESS_SPEC_HASH_LEN];
+    rnd.nextBytes(addr);
+
+    inner.addOutputs( TransactionOutput.newBuilder()
+      .setValue(50000L)
+      .setRecipientSpecHash(ByteString.copyFrom(addr))
+      .build());
+
+    ByteString inner_data= inner.build().toByteString();
+    return Transaction.newBuilder()
+      .setInnerData(inner_data)
+      .setTxHash(ByteString.copyFrom(md_bc.digest(inner_data.toByteArray())))
+      .build();
+  }
+
+  private Transaction makeBasicTx()
+    throws Exception
   {
     MessageDigest md_bc = DigestUtil.getMD();
     Transaction.Builder tx = Transaction.newBuilder();
@@ -182,10 +339,7 @@ public class ValidationTest
       .build());
 
 
-    Validation.checkTransactionBasics(tx.build(), false);
-
-    System.out.println("Basic transaction size: " + tx.build().toByteString().size());
-
+    return tx.build();
   }
  
 }
@@ -0,0 +1,117 @@
+package lib.test.bench;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.Globals;
+import snowblossom.lib.PowHasher;
+import snowblossom.lib.PowUtil;
+import snowblossom.proto.BlockHeader;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One nonce worth of PoW hashing, with the snow field replaced by a small
+ * in memory array so only the hashing is measured.
+ *
+ * Run with -prof gc to see allocations per nonce.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PowHasherBench
+{
+  private static final int FIELD_WORDS = 65536;
+
+  private BlockHeader header;
+  private byte[] field;
+  private Random rnd;
+  private byte[] nonce;
+  private byte[] word;
+
+  private MessageDigest md;
+  private PowHasher hasher;
+  private byte[] context;
+
+  @Setup
+  public void setup()
+  {
+    Globals.addCryptoProvider();
+    rnd = new Random(3L);
+
+    header = BlockHeader.newBuilder()
+      .setVersion(1)
+      .setBlockHeight(12345)
+      .setTimestamp(System.currentTimeMillis())
+      .setSnowField(7)
+      .setPrevBlockHash(randomBytes(Globals.BLOCKCHAIN_HASH_LEN))
+      .setMerkleRootHash(randomBytes(Globals.BLOCKCHAIN_HASH_LEN))
+      .setUtxoRootHash(randomBytes(Globals.BLOCKCHAIN_HASH_LEN))
+      .setTarget(randomBytes(Globals.TARGET_LENGTH))
+      .build();
+
+    field = new byte[FIELD_WORDS * Globals.SNOW_MERKLE_HASH_LEN];
+    rnd.nextBytes(field);
+
+    nonce = new byte[Globals.NONCE_LENGTH];
+    word = new byte[Globals.SNOW_MERKLE_HASH_LEN];
+
+    md = DigestUtil.getMD();
+    hasher = new PowHasher();
+    context = new byte[PowHasher.HASH_LEN];
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  private void readWord(long idx)
+  {
+    System.arraycopy(field, (int)(idx * Globals.SNOW_MERKLE_HASH_LEN), word, 0, word.length);
+  }
+
+  @Benchmark
+  public boolean powUtil()
+  {
+    rnd.nextBytes(nonce);
+    byte[] ctx = PowUtil.hashHeaderBits(header, nonce, md);
+    for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
+    {
+      readWord(PowUtil.getNextSnowFieldIndex(ctx, FIELD_WORDS, md));
+      ctx = PowUtil.getNextContext(ctx, word, md);
+    }
+    return PowUtil.lessThanTarget(ctx, header.getTarget());
+  }
+
+  @Benchmark
+  public boolean powHasher()
+  {
+    rnd.nextBytes(nonce);
+    hasher.setHeader(header);
+    hasher.hashHeaderBits(nonce, context);
+    for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
+    {
+      readWord(hasher.getNextSnowFieldIndex(context, FIELD_WORDS));
+      hasher.getNextContext(context, word, context);
+    }
+    return hasher.lessThanTarget(context);
+  }
+
+}
@@ -0,0 +1,145 @@
+package lib.test.bench;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point gets and puts through RocksDBMap against the way it used to do them:
+ * prefix concat into a new key, toByteArray() of key and value and
+ * ByteString.copyFrom() of the result.
+ *
+ * Run with -prof gc to see allocations per lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RocksDBMapBench
+{
+  private static final int KEYS = 1000;
+
+  /** About a trie node and about a large block */
+  @Param({"100", "1000000"})
+  public int value_size;
+
+  private File dir;
+  private JRocksDB jdb;
+  private DBMap map;
+
+  private RocksDB old_db;
+  private ByteString old_prefix;
+
+  private ByteString[] keys;
+  private ByteString value;
+  private int idx;
+
+  @Setup
+  public void setup()
+    throws Exception
+  {
+    Random rnd = new Random(9L);
+    dir = Files.createTempDirectory("rocksbench").toFile();
+
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", new File(dir, "new").getPath());
+    jdb = new JRocksDB(new ConfigMem(config_map));
+    map = jdb.getSpecialMap();
+
+    old_db = RocksDB.open(new Options().setCreateIfMissing(true), new File(dir, "old").getPath());
+    old_prefix = ByteString.copyFrom("special/".getBytes());
+
+    // Keep the big value case to a sensible db size
+    int key_count = KEYS;
+    if (value_size > 10000) key_count = 20;
+
+    byte[] v = new byte[value_size];
+    rnd.nextBytes(v);
+    value = ByteString.copyFrom(v);
+
+    keys = new ByteString[key_count];
+    for(int i=0; i<key_count; i++)
+    {
+      byte[] k = new byte[32];
+      rnd.nextBytes(k);
+      keys[i] = ByteString.copyFrom(k);
+      map.put(keys[i], value);
+      old_db.put(old_prefix.concat(keys[i]).toByteArray(), value.toByteArray());
+    }
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    jdb.close();
+    old_db.close();
+    deleteAll(dir);
+  }
+
+  @Benchmark
+  public ByteString mapGet()
+  {
+    return map.get(nextKey());
+  }
+
+  @Benchmark
+  public ByteString copyGet()
+    throws Exception
+  {
+    byte[] r = old_db.get(old_prefix.concat(nextKey()).toByteArray());
+    return ByteString.copyFrom(r);
+  }
+
+  @Benchmark
+  public void mapPut()
+  {
+    map.put(nextKey(), value);
+  }
+
+  @Benchmark
+  public void copyPut()
+    throws Exception
+  {
+    old_db.put(old_prefix.concat(nextKey()).toByteArray(), value.toByteArray());
+  }
+
+  private ByteString nextKey()
+  {
+    idx = (idx + 1) % keys.length;
+    return keys[idx];
+  }
+
+  private static void deleteAll(File f)
+  {
+    File[] sub = f.listFiles();
+    if (sub != null)
+    {
+      for(File s : sub) deleteAll(s);
+    }
+    f.delete();
+  }
+
+}
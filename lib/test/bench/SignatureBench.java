@@ -0,0 +1,106 @@
+package lib.test.bench;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.KeyUtil;
+import snowblossom.lib.SignatureUtil;
+import snowblossom.proto.SigSpec;
+import snowblossom.proto.WalletKeyPair;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signature verification of one key over and over, as with a pool payout address.
+ *
+ * uncached does what checkSignature() used to do on every call: decode the key
+ * and get a new Signature engine.  cached goes through SignatureUtil.checkSignature()
+ * which reuses the decoded key and this thread's engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SignatureBench
+{
+  @Param({"1", "2", "3", "4", "5"})
+  public int sig_type;
+
+  private SigSpec sig_spec;
+  private ByteString signed_data;
+  private ByteString signature;
+  private String algo;
+
+  @Setup
+  public void setup()
+    throws Exception
+  {
+    Globals.addCryptoProvider();
+
+    WalletKeyPair wkp = null;
+    if (sig_type == SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED) wkp = KeyUtil.generateWalletStandardECKey();
+    if (sig_type == SignatureUtil.SIG_TYPE_ECDSA) wkp = KeyUtil.generateWalletECKey("secp384r1");
+    if (sig_type == SignatureUtil.SIG_TYPE_DSA) wkp = KeyUtil.generateWalletDSAKey();
+    if (sig_type == SignatureUtil.SIG_TYPE_RSA) wkp = KeyUtil.generateWalletRSAKey(2048);
+    if (sig_type == SignatureUtil.SIG_TYPE_DSTU4145) wkp = KeyUtil.generateWalletDSTU4145Key(0);
+
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    new Random(5L).nextBytes(b);
+    ChainHash data = new ChainHash(b);
+
+    sig_spec = SigSpec.newBuilder()
+      .setSignatureType(sig_type)
+      .setPublicKey(wkp.getPublicKey())
+      .build();
+    signed_data = data.getBytes();
+    signature = SignatureUtil.sign(wkp, data);
+    algo = SignatureUtil.getAlgo(sig_type);
+
+    if (!uncached()) throw new RuntimeException("Signature does not verify");
+  }
+
+  @Benchmark
+  public boolean uncached()
+    throws Exception
+  {
+    PublicKey pub_key = null;
+    if (sig_type == SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED)
+    {
+      pub_key = KeyUtil.convertCompressedECDSA(sig_spec.getPublicKey());
+    }
+    else
+    {
+      KeyUtil.extractObjectIdentifiers(sig_spec.getPublicKey());
+      pub_key = KeyUtil.decodeKey(sig_spec.getPublicKey(), algo);
+    }
+
+    Signature sig_engine = Signature.getInstance(algo);
+    sig_engine.initVerify(pub_key);
+    sig_engine.update(signed_data.toByteArray());
+    return sig_engine.verify(signature.toByteArray());
+  }
+
+  @Benchmark
+  public boolean cached()
+    throws Exception
+  {
+    return SignatureUtil.checkSignature(sig_spec, signed_data, signature);
+  }
+
+}
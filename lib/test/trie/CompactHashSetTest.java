@@ -0,0 +1,90 @@
+package lib.test.trie;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.trie.CompactHashSet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+public class CompactHashSetTest
+{
+  private Random rnd = new Random(17L);
+
+  @Test
+  public void testMatchesHashSet()
+  {
+    CompactHashSet set = new CompactHashSet(32);
+    HashSet<ByteString> check = new HashSet<>();
+    ArrayList<ByteString> keys = new ArrayList<>();
+
+    // Enough to grow past one chunk of slots
+    for(int i=0; i<800000; i++)
+    {
+      ByteString key = randomKey(32);
+      keys.add(key);
+      Assert.assertEquals(check.add(key), set.add(key));
+    }
+    Assert.assertEquals(check.size(), set.size());
+
+    for(int i=0; i<1000; i++)
+    {
+      ByteString key = keys.get(rnd.nextInt(keys.size()));
+      Assert.assertTrue(set.contains(key));
+      Assert.assertFalse(set.add(key));
+    }
+    for(int i=0; i<1000; i++)
+    {
+      Assert.assertFalse(set.contains(randomKey(32)));
+    }
+    Assert.assertEquals(check.size(), set.size());
+  }
+
+  @Test
+  public void testSharedPrefix()
+  {
+    // Same first 8 bytes land in the same slot and have to be told apart
+    CompactHashSet set = new CompactHashSet(32);
+    ByteString prefix = randomKey(8);
+    ArrayList<ByteString> keys = new ArrayList<>();
+    for(int i=0; i<100; i++)
+    {
+      ByteString key = prefix.concat(randomKey(24));
+      keys.add(key);
+      Assert.assertTrue(set.add(key));
+    }
+    for(ByteString key : keys)
+    {
+      Assert.assertTrue(set.contains(key));
+    }
+    Assert.assertFalse(set.contains(prefix.concat(randomKey(24))));
+    Assert.assertEquals(100, set.size());
+  }
+
+  @Test
+  public void testOtherLengths()
+  {
+    CompactHashSet set = new CompactHashSet(32);
+    ByteString key = randomKey(32);
+    ByteString short_key = key.substring(0, 20);
+
+    Assert.assertTrue(set.add(short_key));
+    Assert.assertTrue(set.add(ByteString.EMPTY));
+    Assert.assertFalse(set.contains(key));
+    Assert.assertTrue(set.add(key));
+    Assert.assertFalse(set.add(short_key));
+    Assert.assertTrue(set.contains(short_key));
+    Assert.assertTrue(set.contains(ByteString.EMPTY));
+    Assert.assertEquals(3, set.size());
+  }
+
+  private ByteString randomKey(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
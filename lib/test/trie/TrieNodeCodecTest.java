@@ -0,0 +1,173 @@
+package lib.test.trie;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.db.ScannableDBMap;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TrieNodeCodec;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class TrieNodeCodecTest
+{
+  private Random rnd = new Random(44L);
+
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    for(int i=0; i<1000; i++)
+    {
+      TrieNode node = randomNode(i % 3 == 0);
+      ByteString encoded = TrieNodeCodec.encode(node);
+      Assert.assertTrue(TrieNodeCodec.isCompact(encoded));
+      Assert.assertTrue(encoded.size() < node.toByteString().size());
+
+      Assert.assertEquals(node, TrieNodeCodec.decode(node.getHash(), encoded));
+    }
+  }
+
+  @Test
+  public void testReadsProtobuf() throws Exception
+  {
+    for(int i=0; i<100; i++)
+    {
+      TrieNode node = randomNode(i % 2 == 0);
+      ByteString old = node.toByteString();
+      Assert.assertFalse(TrieNodeCodec.isCompact(old));
+      Assert.assertEquals(node, TrieNodeCodec.decode(node.getHash(), old));
+    }
+  }
+
+  @Test
+  public void testTruncated() throws Exception
+  {
+    TrieNode node = randomNode(false);
+    ByteString encoded = TrieNodeCodec.encode(node);
+
+    for(int len=1; len<encoded.size(); len++)
+    {
+      try
+      {
+        TrieNodeCodec.decode(node.getHash(), encoded.substring(0, len));
+        Assert.fail();
+      }
+      catch(com.google.protobuf.InvalidProtocolBufferException e){}
+    }
+  }
+
+  @Test
+  public void testMixedDB() throws Exception
+  {
+    MemDBMap db_map = new MemDBMap();
+
+    // Start a trie with the old encoding, then carry on with the compact one
+    HashedTrie old_trie = new HashedTrie(new TrieDBMap(db_map, false), 8, true);
+    HashedTrie new_trie = new HashedTrie(new TrieDBMap(db_map, true), 8, true);
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Random key_rnd = new Random(87L);
+    ByteString root = HashUtils.hashOfEmpty();
+
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      key_rnd.nextBytes(key_data);
+      byte[] data_data = new byte[8];
+      key_rnd.nextBytes(data_data);
+      update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(data_data));
+
+      if (i%100 ==0)
+      {
+        HashedTrie trie = (i < 5000) ? old_trie : new_trie;
+        root = trie.mergeBatch(root, update_map);
+        update_map.clear();
+      }
+    }
+    root = new_trie.mergeBatch(root, update_map);
+
+    Assert.assertEquals("c2a8b068d8613232723c54d611faf9bc894adbd5b36c089fb3ab0379415978f3", HashUtils.getHexString(root));
+  }
+
+  private TrieNode randomNode(boolean leaf)
+  {
+    TrieNode.Builder builder = TrieNode.newBuilder();
+    builder.setHash(randomBytes(32));
+    builder.setPrefix(randomBytes(rnd.nextInt(60)));
+    if (leaf)
+    {
+      builder.setIsLeaf(true);
+      builder.setLeafData(randomBytes(rnd.nextInt(300)));
+    }
+    else
+    {
+      int children = 2 + rnd.nextInt(200);
+      for(int i=0; i<children; i++)
+      {
+        builder.addChildren(ChildEntry.newBuilder()
+          .setKey(randomBytes(1 + rnd.nextInt(140)))
+          .setHash(randomBytes(32))
+          .build());
+      }
+    }
+    return builder.build();
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  /** Also used by TriePrunerTest, so supports scan */
+  public static class MemDBMap extends ScannableDBMap
+  {
+    private TreeMap<ByteString, ByteString> map = new TreeMap<>(new ByteStringComparator());
+
+    @Override
+    public synchronized ByteString get(ByteString key)
+    {
+      return map.get(key);
+    }
+
+    @Override
+    public synchronized void put(ByteString key, ByteString value)
+    {
+      map.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(ByteString key)
+    {
+      map.remove(key);
+    }
+
+    @Override
+    public void scan(ScanVisitor visitor)
+    {
+      TreeMap<ByteString, ByteString> copy;
+      synchronized(this)
+      {
+        copy = new TreeMap<>(map);
+      }
+      for(Map.Entry<ByteString, ByteString> me : copy.entrySet())
+      {
+        if (!visitor.visit(me.getKey(), me.getValue())) return;
+      }
+    }
+
+    public synchronized int size()
+    {
+      return map.size();
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package lib.test.trie;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBCache;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TriePruner;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TriePrunerTest
+{
+  private Random rnd = new Random(91L);
+
+  @Test
+  public void testPruneKeepsRoots() throws Exception
+  {
+    TrieNodeCodecTest.MemDBMap db_map = new TrieNodeCodecTest.MemDBMap();
+    TriePruner pruner = new TriePruner(new TrieDBMap(db_map), db_map, 100);
+    HashedTrie trie = new HashedTrie(pruner, 8, true);
+
+    HashMap<ByteString, ByteString> state = new HashMap<>();
+    ByteString first_root = null;
+    ByteString mid_root = null;
+    HashMap<ByteString, ByteString> mid_state = null;
+    ByteString root = HashUtils.hashOfEmpty();
+
+    for(int i=0; i<20; i++)
+    {
+      root = mergeRandom(trie, root, state, 200);
+      if (i == 0) first_root = root;
+      if (i == 14)
+      {
+        mid_root = root;
+        mid_state = new HashMap<>(state);
+      }
+    }
+
+    // Roots saved since the last prune are all kept the first time
+    pruner.prune(ImmutableList.of(root, mid_root));
+    Assert.assertNotNull(db_map.get(first_root));
+    checkState(trie, root, state);
+
+    int before = db_map.size();
+    long deleted = pruner.prune(ImmutableList.of(root, mid_root));
+
+    Assert.assertTrue(deleted > 0);
+    Assert.assertEquals(before - deleted, db_map.size());
+    Assert.assertTrue(deleted <= pruner.getPrunedNodeCount());
+    Assert.assertTrue(pruner.getPrunedBytes() > 0);
+    Assert.assertNull(db_map.get(first_root));
+    Assert.assertNotNull(db_map.get(HashUtils.hashOfEmpty()));
+
+    checkState(trie, root, state);
+    checkState(trie, mid_root, mid_state);
+
+    // Nothing more to do with the same roots
+    Assert.assertEquals(0L, pruner.prune(ImmutableList.of(root, mid_root)));
+
+    // Building on a kept root still works
+    root = mergeRandom(trie, root, state, 200);
+    checkState(trie, root, state);
+  }
+
+  @Test
+  public void testPinnedRoot() throws Exception
+  {
+    TrieNodeCodecTest.MemDBMap db_map = new TrieNodeCodecTest.MemDBMap();
+    TriePruner pruner = new TriePruner(new TrieDBMap(db_map), db_map, 100);
+    HashedTrie trie = new HashedTrie(pruner, 8, true);
+
+    HashMap<ByteString, ByteString> state = new HashMap<>();
+    ByteString old_root = mergeRandom(trie, HashUtils.hashOfEmpty(), state, 500);
+    HashMap<ByteString, ByteString> old_state = new HashMap<>(state);
+    ByteString root = mergeRandom(trie, old_root, state, 500);
+
+    pruner.pinRoot(old_root);
+    pruner.pinRoot(old_root);
+    pruner.prune(ImmutableList.of(root));
+    checkState(trie, old_root, old_state);
+
+    pruner.unpinRoot(old_root);
+    pruner.prune(ImmutableList.of(root));
+    checkState(trie, old_root, old_state);
+
+    pruner.unpinRoot(old_root);
+    pruner.prune(ImmutableList.of(root));
+    Assert.assertNull(db_map.get(old_root));
+    checkState(trie, root, state);
+  }
+
+  @Test
+  public void testPruneThroughCache() throws Exception
+  {
+    TrieNodeCodecTest.MemDBMap db_map = new TrieNodeCodecTest.MemDBMap();
+    TrieDBCache cache = new TrieDBCache(new TrieDBMap(db_map), 100000);
+    TriePruner pruner = new TriePruner(cache, db_map, 100);
+    final HashedTrie trie = new HashedTrie(pruner, 8, true);
+    pruner.addDeleteListener(new TriePruner.DeleteListener() {
+      public void deleted(Collection<ByteString> hashes)
+      {
+        trie.evictImages(hashes);
+      }
+    });
+
+    HashMap<ByteString, ByteString> state = new HashMap<>();
+    ByteString old_root = mergeRandom(trie, HashUtils.hashOfEmpty(), state, 500);
+    HashMap<ByteString, ByteString> old_state = new HashMap<>(state);
+    ByteString root = mergeRandom(trie, old_root, state, 500);
+
+    // Everything is in the cache now
+    checkState(trie, old_root, old_state);
+    Assert.assertNotNull(cache.load(old_root));
+
+    pruner.prune(ImmutableList.of(root));
+    pruner.prune(ImmutableList.of(root));
+    Assert.assertNull(db_map.get(old_root));
+    Assert.assertNull(cache.load(old_root));
+
+    boolean merged = false;
+    try
+    {
+      trie.mergeBatch(old_root, ImmutableMap.of(randBytes(rnd), randBytes(rnd)));
+      merged = true;
+    }
+    catch(AssertionError e)
+    {
+      Assert.assertTrue(e.getMessage().startsWith("Merging from"));
+    }
+    Assert.assertFalse("Merged from a pruned root", merged);
+
+    checkState(trie, root, state);
+    root = mergeRandom(trie, root, state, 200);
+    checkState(trie, root, state);
+  }
+
+  @Test
+  public void testMergeDuringPrune() throws Exception
+  {
+    TrieNodeCodecTest.MemDBMap db_map = new TrieNodeCodecTest.MemDBMap();
+    final TriePruner pruner = new TriePruner(new TrieDBMap(db_map), db_map, 50);
+    final HashedTrie trie = new HashedTrie(pruner, 8, true);
+
+    final HashMap<ByteString, ByteString> state = new HashMap<>();
+    final AtomicReference<ByteString> latest = new AtomicReference<>(mergeRandom(trie, HashUtils.hashOfEmpty(), state, 2000));
+    pruner.pinRoot(latest.get());
+
+    // Writer holds a pin on the root it is building on, as a query would
+    Thread writer = new Thread() {
+      public void run()
+      {
+        Random w_rnd = new Random(17L);
+        for(int i=0; i<200; i++)
+        {
+          ByteString base = latest.get();
+          HashMap<ByteString, ByteString> updates = new HashMap<>();
+          for(int j=0; j<20; j++)
+          {
+            updates.put(randBytes(w_rnd), randBytes(w_rnd));
+          }
+          ByteString next = trie.mergeBatch(base, updates);
+          pruner.pinRoot(next);
+          synchronized(state)
+          {
+            state.putAll(updates);
+            latest.set(next);
+          }
+          pruner.unpinRoot(base);
+        }
+      }
+    };
+    writer.start();
+
+    long deleted = 0;
+    while(writer.isAlive())
+    {
+      deleted += pruner.prune(ImmutableList.<ByteString>of());
+    }
+    writer.join();
+    deleted += pruner.prune(ImmutableList.<ByteString>of());
+
+    Assert.assertTrue(deleted > 0);
+    checkState(trie, latest.get(), state);
+  }
+
+  private ByteString mergeRandom(HashedTrie trie, ByteString root, Map<ByteString, ByteString> state, int count)
+  {
+    HashMap<ByteString, ByteString> updates = new HashMap<>();
+    for(int i=0; i<count; i++)
+    {
+      updates.put(randBytes(rnd), randBytes(rnd));
+    }
+    // Change some existing entries too so old nodes become garbage
+    int n = 0;
+    for(ByteString key : state.keySet())
+    {
+      if (n++ >= count / 4) break;
+      updates.put(key, randBytes(rnd));
+    }
+    state.putAll(updates);
+    return trie.mergeBatch(root, updates);
+  }
+
+  private void checkState(HashedTrie trie, ByteString root, Map<ByteString, ByteString> state)
+  {
+    for(Map.Entry<ByteString, ByteString> me : state.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), trie.getLeafData(root, me.getKey()));
+    }
+  }
+
+  private static ByteString randBytes(Random r)
+  {
+    byte[] b = new byte[8];
+    r.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+}
@@ -288,5 +288,13 @@ public class TrieRocksTest
     
   }
 
+  @Test
+  public void testParallelMergeStress() throws Exception {
+
+    TrieDBRocks par_db = new TrieDBRocks(testFolder.newFolder());
+    TrieTest.checkParallelMerge(new HashedTrie(db, 8, true), new HashedTrie(par_db, 8, true));
+    par_db.flush();
+  }
+
 }
 
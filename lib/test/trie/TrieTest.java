@@ -6,6 +6,7 @@ import org.junit.Assert;
 import org.junit.Test;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBCache;
 import snowblossom.lib.trie.TrieDBMem;
 
 import java.util.ArrayList;
@@ -303,5 +304,224 @@ public class TrieTest
     }
   }
  
-}
+  @Test
+  public void testCache() throws Exception {
+
+    TrieDBCache cache = new TrieDBCache(new TrieDBMem(), 1000, 1, 256);
+    HashedTrie cached_trie = new HashedTrie(cache, 8, true);
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    ArrayList<ByteString> existing_keys = new ArrayList<ByteString>();
+    Random rnd = new Random(87L);
+    ByteString last_root = emptyRoot;
+
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      ByteString key = ByteString.copyFrom(key_data);
+
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      ByteString data = ByteString.copyFrom(data_data);
+
+      update_map.put(key, data);
+      existing_keys.add(key);
+
+      if (i%100 ==0)
+      {
+        last_root = cached_trie.mergeBatch(last_root, update_map);
+        update_map.clear();
+      }
+    }
+    ByteString hash = cached_trie.mergeBatch(last_root, update_map);
+    Assert.assertEquals("c2a8b068d8613232723c54d611faf9bc894adbd5b36c089fb3ab0379415978f3", HashUtils.getHexString(hash));
+
+    long hits_before = cache.getHitCount();
+    for(ByteString key : existing_keys)
+    {
+      Assert.assertNotNull(cached_trie.getLeafData(hash, key));
+    }
+    Assert.assertTrue(cache.getHitCount() > hits_before);
+  }
+
+  @Test
+  public void testParallelMergeStress() throws Exception {
+
+    checkParallelMerge(
+      new HashedTrie(new TrieDBMem(), 8, true),
+      new HashedTrie(new TrieDBMem(), 8, true));
+  }
+
+  @Test
+  public void testParallelMapMergeStress() throws Exception {
+
+    // The older map based merge splits its own subtrees into MapMergeTasks
+    HashedTrie par_trie = new HashedTrie(new TrieDBMem(), 8, true);
+    par_trie.setSortedMerge(false);
+    checkParallelMerge(new HashedTrie(new TrieDBMem(), 8, true), par_trie);
+  }
+
+  /**
+   * Merges the same rounds of adds and removes into seq_trie on the calling thread and into
+   * par_trie on the merge pool, checking they end up with the same roots and data.
+   * Shared with TrieRocksTest.
+   */
+  public static void checkParallelMerge(HashedTrie seq_trie, HashedTrie par_trie) {
+
+    seq_trie.setParallelMergeMin(Integer.MAX_VALUE);
+    par_trie.setParallelMergeMin(16);
+
+    Random rnd = new Random(1207L);
+    ArrayList<ByteString> existing_keys = new ArrayList<ByteString>();
+    ByteString seq_root = emptyRoot;
+    ByteString par_root = emptyRoot;
+
+    for(int round=0; round<8; round++)
+    {
+      Map<ByteString, ByteString> update_map = new HashMap<>();
+      for(int i=0; i<2000; i++)
+      {
+        byte[] key_data = new byte[8];
+        rnd.nextBytes(key_data);
+        // Squeeze the keys into part of the space so there are long shared prefixes
+        key_data[0] = (byte)(key_data[0] & 0x0F);
+        ByteString key = ByteString.copyFrom(key_data);
+
+        byte[] data_data = new byte[8];
+        rnd.nextBytes(data_data);
+
+        update_map.put(key, ByteString.copyFrom(data_data));
+        existing_keys.add(key);
+      }
+      for(int i=0; i<400; i++)
+      {
+        update_map.put(existing_keys.get(rnd.nextInt(existing_keys.size())), null);
+      }
+
+      Assert.assertEquals(seq_trie.simulateMerge(seq_root, update_map), par_trie.simulateMerge(par_root, update_map));
 
+      seq_root = seq_trie.mergeBatch(seq_root, update_map);
+      par_root = par_trie.mergeBatch(par_root, update_map);
+      Assert.assertEquals(seq_root, par_root);
+    }
+
+    for(int i=0; i<200; i++)
+    {
+      ByteString key = existing_keys.get(rnd.nextInt(existing_keys.size()));
+      Assert.assertEquals(seq_trie.getLeafData(seq_root, key), par_trie.getLeafData(par_root, key));
+    }
+  }
+
+  @Test
+  public void testSortedMergeMatchesMap() throws Exception {
+
+    HashedTrie map_trie = new HashedTrie(new TrieDBMem(), 8, true);
+    map_trie.setSortedMerge(false);
+    HashedTrie sorted_trie = new HashedTrie(new TrieDBMem(), 8, true);
+    sorted_trie.setSortedMerge(true);
+
+    Random rnd = new Random(3301L);
+    ArrayList<ByteString> existing_keys = new ArrayList<ByteString>();
+    ByteString map_root = emptyRoot;
+    ByteString sorted_root = emptyRoot;
+
+    for(int round=0; round<10; round++)
+    {
+      Map<ByteString, ByteString> update_map = new HashMap<>();
+      for(int i=0; i<500; i++)
+      {
+        byte[] key_data = new byte[8];
+        rnd.nextBytes(key_data);
+        // Keys on both sides of 0x80 with shared prefixes to check unsigned ordering and splits
+        if (round % 2 == 0)
+        {
+          key_data[0] = (byte)(0x7E + (key_data[0] & 0x03));
+          key_data[1] = (byte)(key_data[1] & 0x81);
+        }
+        ByteString key = ByteString.copyFrom(key_data);
+
+        byte[] data_data = new byte[8];
+        rnd.nextBytes(data_data);
+
+        update_map.put(key, ByteString.copyFrom(data_data));
+        existing_keys.add(key);
+      }
+      for(int i=0; i<100; i++)
+      {
+        update_map.put(existing_keys.get(rnd.nextInt(existing_keys.size())), null);
+      }
+
+      map_root = map_trie.mergeBatch(map_root, update_map);
+      sorted_root = sorted_trie.mergeBatch(sorted_root, update_map);
+      Assert.assertEquals(map_root, sorted_root);
+    }
+
+    // Remove everything
+    Map<ByteString, ByteString> remove_map = new HashMap<>();
+    for(ByteString key : existing_keys)
+    {
+      remove_map.put(key, null);
+    }
+    Assert.assertEquals(HashUtils.hashConcat(ImmutableList.of(ByteString.EMPTY)), sorted_trie.mergeBatch(sorted_root, remove_map));
+  }
+
+  @Test
+  public void testSingleUpdatesMatchMap() throws Exception {
+
+    HashedTrie map_trie = new HashedTrie(new TrieDBMem(), 8, true);
+    map_trie.setSortedMerge(false);
+    // Small image cache so images get dropped and rebuilt along the way
+    HashedTrie sorted_trie = new HashedTrie(new TrieDBMem(), 8, true, 16);
+
+    Random rnd = new Random(7741L);
+    ArrayList<ByteString> existing_keys = new ArrayList<ByteString>();
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    for(int i=0; i<2000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      ByteString key = ByteString.copyFrom(key_data);
+      update_map.put(key, ByteString.copyFrom(key_data, 0, 4));
+      existing_keys.add(key);
+    }
+    ByteString map_root = map_trie.mergeBatch(emptyRoot, update_map);
+    ByteString sorted_root = sorted_trie.mergeBatch(emptyRoot, update_map);
+    Assert.assertEquals(map_root, sorted_root);
+
+    for(int i=0; i<500; i++)
+    {
+      // Like the mempool, simulate a single change from the same root a few times
+      update_map = new HashMap<>();
+      int op = rnd.nextInt(3);
+      if (op == 0)
+      {
+        byte[] key_data = new byte[8];
+        rnd.nextBytes(key_data);
+        update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(key_data, 4, 4));
+      }
+      else if (op == 1)
+      {
+        ByteString key = existing_keys.get(rnd.nextInt(existing_keys.size()));
+        update_map.put(key, ByteString.copyFrom(new byte[]{(byte) i}));
+      }
+      else
+      {
+        update_map.put(existing_keys.remove(rnd.nextInt(existing_keys.size())), null);
+      }
+
+      ByteString expected = map_trie.simulateMerge(map_root, update_map);
+      Assert.assertEquals(expected, sorted_trie.simulateMerge(sorted_root, update_map));
+      Assert.assertEquals(expected, sorted_trie.simulateMerge(sorted_root, update_map));
+
+      if (i % 5 == 0)
+      {
+        map_root = map_trie.mergeBatch(map_root, update_map);
+        sorted_root = sorted_trie.mergeBatch(sorted_root, update_map);
+        Assert.assertEquals(map_root, sorted_root);
+      }
+    }
+  }
+
+}
@@ -4,7 +4,7 @@ import com.google.protobuf.ByteString;
 import snowblossom.lib.NetworkParams;
 import snowblossom.lib.SnowFall;
 import snowblossom.lib.SnowFieldInfo;
-import snowblossom.lib.SnowMerkle;
+import snowblossom.lib.SnowMerkleParallel;
 
 import java.io.File;
 import java.util.logging.Level;
@@ -48,7 +48,7 @@ public class AutoSnowFall extends Thread
     logger.info(String.format("Snow field written: %s", snow_file.getPath()));
     logger.info("Starting merkle deck files");
 
-    SnowMerkle merk = new SnowMerkle(field_dir, path_name, true);
+    SnowMerkleParallel merk = new SnowMerkleParallel(field_dir, path_name, true);
 
     ByteString found_root = merk.getRootHash();
 
@@ -51,14 +51,23 @@ public class FieldScan
         {
           double precacheGig = config.getDoubleWithDefault("memfield_precache_gb", 0);
           boolean memfield = config.getBoolean("memfield");
+          boolean mmap = config.getBoolean("memfield_mmap");
           long precache = 0;
-          if (precacheGig > 0.01)
+          if (mmap)
+          {
+            memfield = false;
+          }
+          else if (precacheGig > 0.01)
           {
             memfield = false;
             precache = (long)(precacheGig * 1024.0 * 1024.0 * 1024.0);
           }
-          System.out.println("creating field: " + field_folder + " memfield=" + memfield + ", precache=" + precache);
-          SnowMerkleProof proof = new SnowMerkleProof(field_folder, name, memfield, precache);
+          System.out.println("creating field: " + field_folder + " memfield=" + memfield + ", precache=" + precache + ", mmap=" + mmap);
+          SnowMerkleProof proof = new SnowMerkleProof(field_folder, name, memfield, precache, mmap);
+          if (mmap && config.getBoolean("memfield_mmap_preload"))
+          {
+            proof.loadMapped();
+          }
 
           for(int i = 0; i<16; i++)
           {
@@ -156,7 +165,7 @@ public class FieldScan
       return null;
     }
 
-    if (config.getBoolean("memfield") || config.getDoubleWithDefault("memfield_precache_gb", 0) > 0)
+    if (config.getBoolean("memfield") || config.getBoolean("memfield_mmap") || config.getDoubleWithDefault("memfield_precache_gb", 0) > 0)
     {
       return getFieldProof(f);
     }
@@ -0,0 +1,96 @@
+package snowblossom.miner;
+
+import snowblossom.lib.Globals;
+import snowblossom.lib.PowHasher;
+import snowblossom.lib.SnowMerkle;
+import snowblossom.proto.BlockHeader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of nonces that are worked on together.  Each PoW pass needs a snow field
+ * read that depends on the previous one, so a single nonce spends most of its time
+ * waiting on memory or disk.  By advancing a batch of independent nonces one pass
+ * at a time, all the reads for a pass can be put in flight together.
+ *
+ * Not thread safe, intended to be owned by a single MinerThread.
+ */
+public class NonceBatch
+{
+  private final int depth;
+
+  private final byte[][] nonces;
+  private final byte[][] contexts;
+  private final long[] word_idx;
+  private final byte[][] word_buff;
+  private final ByteBuffer[] word_bb;
+
+  public NonceBatch(int depth)
+  {
+    this.depth = depth;
+
+    nonces = new byte[depth][Globals.NONCE_LENGTH];
+    contexts = new byte[depth][PowHasher.HASH_LEN];
+    word_idx = new long[depth];
+    word_buff = new byte[depth][SnowMerkle.HASH_LEN];
+    word_bb = new ByteBuffer[depth];
+    for(int i=0; i<depth; i++)
+    {
+      word_bb[i] = ByteBuffer.wrap(word_buff[i]);
+    }
+  }
+
+  public int size()
+  {
+    return depth;
+  }
+
+  /**
+   * The caller should fill these in before calling run()
+   */
+  public byte[] getNonce(int i)
+  {
+    return nonces[i];
+  }
+
+  /**
+   * Result of the last run() for nonce i.  Overwritten by the next run().
+   */
+  public byte[] getFoundHash(int i)
+  {
+    return contexts[i];
+  }
+
+  /**
+   * Runs all the PoW passes for the current nonces.
+   * Results are the same as doing each nonce on its own.
+   */
+  public void run(BlockHeader header, SnowMerkleProof merkle_proof, PowHasher hasher)
+    throws Exception
+  {
+    long total_words = merkle_proof.getTotalWords();
+    hasher.setHeader(header);
+
+    for(int i=0; i<depth; i++)
+    {
+      hasher.hashHeaderBits(nonces[i], contexts[i]);
+    }
+
+    for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
+    {
+      for(int i=0; i<depth; i++)
+      {
+        word_bb[i].clear();
+        word_idx[i] = hasher.getNextSnowFieldIndex(contexts[i], total_words);
+      }
+
+      merkle_proof.readWords(word_idx, word_bb);
+
+      for(int i=0; i<depth; i++)
+      {
+        hasher.getNextContext(contexts[i], word_buff[i], contexts[i]);
+      }
+    }
+  }
+
+}
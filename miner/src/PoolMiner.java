@@ -260,13 +260,15 @@ public class PoolMiner
   public class MinerThread extends Thread
   {
     Random rnd;
-    MessageDigest md = DigestUtil.getMD();
+    PowHasher hasher = new PowHasher();
+    byte[] context = new byte[PowHasher.HASH_LEN];
 
     byte[] word_buff = new byte[SnowMerkle.HASH_LEN];
     ByteBuffer word_bb = ByteBuffer.wrap(word_buff);
     SnowMerkleProof merkle_proof;
     int proof_field;
     byte[] nonce = new byte[Globals.NONCE_LENGTH];
+    NonceBatch batch;
 
     public MinerThread()
     {
@@ -274,6 +276,11 @@ public class PoolMiner
       setDaemon(true);
       rnd = new Random();
 
+      int depth = config.getIntWithDefault("pipeline_depth", 1);
+      if (depth > 1)
+      {
+        batch = new NonceBatch(depth);
+      }
     }
 
     private void runPass() throws Exception
@@ -294,14 +301,6 @@ public class PoolMiner
       }
       
 
-      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
-      {
-        rnd.nextBytes(nonce);
-        wu.getHeader().getNonce().copyTo(nonce, 0);
-      }
-
-      byte[] first_hash = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
-
       /**
        * This is a windows specific improvement since windows likes separete file descriptors
        *  per thread.
@@ -312,7 +311,20 @@ public class PoolMiner
         proof_field = wu.getHeader().getSnowField();
       }
 
-      byte[] context = first_hash;
+      if (batch != null)
+      {
+        runBatch(wu);
+        return;
+      }
+
+      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
+      {
+        rnd.nextBytes(nonce);
+        wu.getHeader().getNonce().copyTo(nonce, 0);
+      }
+
+      hasher.setHeader(wu.getHeader());
+      hasher.hashHeaderBits(nonce, context);
 
       try (TimeRecordAuto tra = null)
       {
@@ -320,15 +332,15 @@ public class PoolMiner
         {
           long word_idx;
           word_bb.clear();
-          word_idx = PowUtil.getNextSnowFieldIndex(context, merkle_proof.getTotalWords(), md);
+          word_idx = hasher.getNextSnowFieldIndex(context, merkle_proof.getTotalWords());
           merkle_proof.readWord(word_idx, word_bb);
-          context = PowUtil.getNextContext(context, word_buff, md);
+          hasher.getNextContext(context, word_buff, context);
         }
       }
 
       byte[] found_hash = context;
 
-      if (PowUtil.lessThanTarget(found_hash, wu.getReportTarget()))
+      if (PowHasher.lessThanTarget(found_hash, wu.getReportTarget()))
       {
         String str = HashUtils.getHexString(found_hash);
         logger.info("Found passable solution: " + str);
@@ -338,6 +350,32 @@ public class PoolMiner
       op_count.getAndIncrement();
     }
 
+    private void runBatch(WorkUnit wu) throws Exception
+    {
+      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
+      {
+        for(int i=0; i<batch.size(); i++)
+        {
+          rnd.nextBytes(batch.getNonce(i));
+          wu.getHeader().getNonce().copyTo(batch.getNonce(i), 0);
+        }
+      }
+
+      batch.run(wu.getHeader(), merkle_proof, hasher);
+
+      for(int i=0; i<batch.size(); i++)
+      {
+        byte[] found_hash = batch.getFoundHash(i);
+        if (PowHasher.lessThanTarget(found_hash, wu.getReportTarget()))
+        {
+          String str = HashUtils.getHexString(found_hash);
+          logger.info("Found passable solution: " + str);
+          submitWork(wu, batch.getNonce(i), merkle_proof);
+        }
+      }
+      op_count.getAndAdd(batch.size());
+    }
+
     private void submitWork(WorkUnit wu, byte[] nonce, SnowMerkleProof merkle_proof) throws Exception
     {
       byte[] first_hash = PowUtil.hashHeaderBits(wu.getHeader(), nonce);
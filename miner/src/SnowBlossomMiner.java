@@ -266,13 +266,15 @@ public class SnowBlossomMiner
   public class MinerThread extends Thread
   {
     Random rnd;
-    MessageDigest md = DigestUtil.getMD();
+    PowHasher hasher = new PowHasher();
+    byte[] context = new byte[PowHasher.HASH_LEN];
 
     byte[] word_buff = new byte[SnowMerkle.HASH_LEN];
     ByteBuffer word_bb = ByteBuffer.wrap(word_buff);
     SnowMerkleProof merkle_proof;
     int proof_field;
     byte[] nonce = new byte[Globals.NONCE_LENGTH];
+    NonceBatch batch;
 
     public MinerThread()
     {
@@ -280,6 +282,11 @@ public class SnowBlossomMiner
       setDaemon(true);
       rnd = new Random();
 
+      int depth = config.getIntWithDefault("pipeline_depth", 1);
+      if (depth > 1)
+      {
+        batch = new NonceBatch(depth);
+      }
     }
 
     private void runPass() throws Exception
@@ -299,15 +306,6 @@ public class SnowBlossomMiner
         last_block_template = null;
       }
 
-      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
-      {
-        rnd.nextBytes(nonce);
-      }
-
-      // TODO, modify headers to put snow field in
-      byte[] first_hash = PowUtil.hashHeaderBits(b.getHeader(), nonce, md);
-
-
       /**
        * This is a windows specific improvement since windows likes separete file descriptors
        *  per thread.
@@ -318,7 +316,21 @@ public class SnowBlossomMiner
         proof_field = b.getHeader().getSnowField();
       }
 
-      byte[] context = first_hash;
+      if (batch != null)
+      {
+        runBatch(b);
+        return;
+      }
+
+      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
+      {
+        rnd.nextBytes(nonce);
+      }
+
+      // TODO, modify headers to put snow field in
+      hasher.setHeader(b.getHeader());
+      hasher.hashHeaderBits(nonce, context);
+
 
       try (TimeRecordAuto tra = null)
       {
@@ -326,16 +338,16 @@ public class SnowBlossomMiner
         {
           long word_idx;
           word_bb.clear();
-          word_idx = PowUtil.getNextSnowFieldIndex(context, merkle_proof.getTotalWords(), md);
+          word_idx = hasher.getNextSnowFieldIndex(context, merkle_proof.getTotalWords());
           merkle_proof.readWord(word_idx, word_bb);
-          context = PowUtil.getNextContext(context, word_buff, md);
+          hasher.getNextContext(context, word_buff, context);
         }
       }
 
 
       byte[] found_hash = context;
 
-      if (PowUtil.lessThanTarget(found_hash, b.getHeader().getTarget()))
+      if (hasher.lessThanTarget(found_hash))
       {
         String str = HashUtils.getHexString(found_hash);
         logger.info("Found passable solution: " + str);
@@ -345,6 +357,31 @@ public class SnowBlossomMiner
       op_count.getAndIncrement();
     }
 
+    private void runBatch(Block b) throws Exception
+    {
+      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
+      {
+        for(int i=0; i<batch.size(); i++)
+        {
+          rnd.nextBytes(batch.getNonce(i));
+        }
+      }
+
+      batch.run(b.getHeader(), merkle_proof, hasher);
+
+      for(int i=0; i<batch.size(); i++)
+      {
+        byte[] found_hash = batch.getFoundHash(i);
+        if (hasher.lessThanTarget(found_hash))
+        {
+          String str = HashUtils.getHexString(found_hash);
+          logger.info("Found passable solution: " + str);
+          buildBlock(b, batch.getNonce(i), merkle_proof);
+        }
+      }
+      op_count.getAndAdd(batch.size());
+    }
+
     private void buildBlock(Block b, byte[] nonce, SnowMerkleProof merkle_proof) throws Exception
     {
       Block.Builder bb = Block.newBuilder().mergeFrom(b);
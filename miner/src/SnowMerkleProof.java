@@ -7,19 +7,26 @@ import duckutil.TimeRecordAuto;
 import org.junit.Assert;
 import snowblossom.lib.ChannelUtil;
 import snowblossom.lib.Globals;
+import snowblossom.lib.MappedFile;
+import snowblossom.lib.Skein256;
 import snowblossom.lib.SnowMerkle;
 import snowblossom.proto.SnowPowProof;
 
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 
@@ -34,6 +41,12 @@ public class SnowMerkleProof
   private final long total_words;
   private final boolean memcache;
 
+  private final MappedFile snow_mapped;
+  private final ImmutableMap<Long, MappedFile> deck_mapped;
+
+  private final File snow_path;
+  private AsynchronousFileChannel snow_async;
+
   private long bytes_to_precache = 0;
   private byte[][] mem_buff;
   public static final int MEM_BLOCK = 1024 * 1024;
@@ -49,10 +62,21 @@ public class SnowMerkleProof
    * Only needed by miners
    */
   public SnowMerkleProof(File path, String base, boolean memcache, long bytesToPreCache) throws java.io.IOException
+  {
+    this(path, base, memcache, bytesToPreCache, false);
+  }
+
+  /**
+   * @param mmap if true, the snow and deck files are memory mapped rather than read
+   * with positional reads or copied onto the heap.  The result is safe to share
+   * between all mining threads.
+   */
+  public SnowMerkleProof(File path, String base, boolean memcache, long bytesToPreCache, boolean mmap) throws java.io.IOException
   {
     this.memcache = memcache;
 
-    snow_file = new RandomAccessFile(new File(path, base + ".snow"), "r");
+    snow_path = new File(path, base + ".snow");
+    snow_file = new RandomAccessFile(snow_path, "r");
     snow_file_channel = snow_file.getChannel();
 
     total_words = snow_file.length() / SnowMerkle.HASH_LEN_LONG;
@@ -80,6 +104,22 @@ public class SnowMerkleProof
     }
     deck_files = ImmutableMap.copyOf(deck_map);
 
+    if (mmap)
+    {
+      snow_mapped = new MappedFile(snow_file_channel);
+      TreeMap<Long, MappedFile> deck_mapped_map = new TreeMap<>();
+      for(Map.Entry<Long, FileChannel> me : deck_files.entrySet())
+      {
+        deck_mapped_map.put(me.getKey(), new MappedFile(me.getValue()));
+      }
+      deck_mapped = ImmutableMap.copyOf(deck_mapped_map);
+    }
+    else
+    {
+      snow_mapped = null;
+      deck_mapped = null;
+    }
+
     if (memcache)
     {
       mem_buff = new byte[(int) (snow_file.length() / MEM_BLOCK)][];
@@ -119,15 +159,7 @@ public class SnowMerkleProof
     {
       LinkedList<ByteString> partners = new LinkedList<ByteString>();
 
-      MessageDigest md;
-      try
-      {
-        md = MessageDigest.getInstance(Globals.SNOW_MERKLE_HASH_ALGO);
-      }
-      catch (java.security.NoSuchAlgorithmException e)
-      {
-        throw new RuntimeException(e);
-      }
+      Skein256 md = new Skein256(SnowMerkle.HASH_LEN * 8);
       getInnerProof(md, partners, word_index, 0, total_words);
 
       SnowPowProof.Builder builder = SnowPowProof.newBuilder();
@@ -143,6 +175,27 @@ public class SnowMerkleProof
     return total_words;
   }
 
+  public boolean isMapped()
+  {
+    return (snow_mapped != null);
+  }
+
+  /**
+   * Pull the whole mapped snow field and decks into the page cache.
+   * Does nothing if not mapped.
+   */
+  public void loadMapped()
+  {
+    if (snow_mapped == null) return;
+
+    logger.info("pre-loading mapped snowfield");
+    snow_mapped.load();
+    for(MappedFile mf : deck_mapped.values())
+    {
+      mf.load();
+    }
+  }
+
   public void readChunk(long offset, ByteBuffer bb) throws java.io.IOException
   {
     ChannelUtil.readFully(snow_file_channel, bb, offset);
@@ -156,6 +209,12 @@ public class SnowMerkleProof
   long maxReportInterval = 5 * 1000;
   public void readWord(long word_index, ByteBuffer bb) throws java.io.IOException
   {
+    if (snow_mapped != null)
+    {
+      snow_mapped.read(word_index * SnowMerkle.HASH_LEN_LONG, bb);
+      return;
+    }
+
     if (bytes_to_precache > 0)
     {
       synchronized (this)
@@ -238,12 +297,103 @@ public class SnowMerkleProof
     }
   }
 
+  /**
+   * Reads a batch of independent words, one into each ByteBuffer.
+   * When reading from disk, all the reads are put in flight at once so the
+   * device can work on them in parallel rather than paying the latency of each in turn.
+   * For memory modes it simply issues the loads back to back.
+   */
+  public void readWords(long[] word_indexes, ByteBuffer[] bbs) throws java.io.IOException, InterruptedException
+  {
+    if ((snow_mapped != null) || memcache || (bytes_to_precache != 0))
+    {
+      for(int i=0; i<word_indexes.length; i++)
+      {
+        readWord(word_indexes[i], bbs[i]);
+      }
+      return;
+    }
+
+    AsynchronousFileChannel async = getAsyncChannel();
+    ArrayList<Future<Integer>> reads = new ArrayList<>(word_indexes.length);
+    for(int i=0; i<word_indexes.length; i++)
+    {
+      reads.add(async.read(bbs[i], word_indexes[i] * SnowMerkle.HASH_LEN_LONG));
+    }
+    for(int i=0; i<word_indexes.length; i++)
+    {
+      int r;
+      try
+      {
+        r = reads.get(i).get();
+      }
+      catch(ExecutionException e)
+      {
+        throw new java.io.IOException(e.getCause());
+      }
+      if (r < 0)
+      {
+        throw new java.io.IOException("Read past end of snow field: word " + word_indexes[i]);
+      }
+      if (bbs[i].remaining() > 0)
+      { // Short read, finish it the slow way
+        ChannelUtil.readFully(snow_file_channel, bbs[i], word_indexes[i] * SnowMerkle.HASH_LEN_LONG + r);
+      }
+    }
+  }
+
+  /**
+   * Closes the snow and deck files.  The mapped pages, if any, are released
+   * when the proof is garbage collected.
+   */
+  public void close() throws java.io.IOException
+  {
+    synchronized(this)
+    {
+      if (snow_async != null)
+      {
+        snow_async.close();
+        snow_async = null;
+      }
+    }
+    for(FileChannel fc : deck_files.values())
+    {
+      fc.close();
+    }
+    snow_file.close();
+  }
+
+  private synchronized AsynchronousFileChannel getAsyncChannel() throws java.io.IOException
+  {
+    if (snow_async == null)
+    {
+      snow_async = AsynchronousFileChannel.open(snow_path.toPath(), StandardOpenOption.READ);
+    }
+    return snow_async;
+  }
+
+  /**
+   * Direct read of a word for proof building, skipping the precache logic
+   */
+  private void readSnowWord(long word_index, ByteBuffer bb) throws java.io.IOException
+  {
+    long word_pos = word_index * SnowMerkle.HASH_LEN_LONG;
+    if (snow_mapped != null)
+    {
+      snow_mapped.read(word_pos, bb);
+    }
+    else
+    {
+      ChannelUtil.readFully(snow_file_channel, bb, word_pos);
+    }
+  }
+
   /**
    * If the target is not in specified subtree, return hash of subtree
    * If the target is in the specified subtree, return null and add hash partner from
    * opposite subtree to partners
    */
-  private ByteString getInnerProof(MessageDigest md, List<ByteString> partners, long target_word_index, long start, long end) throws java.io.IOException
+  private ByteString getInnerProof(Skein256 md, List<ByteString> partners, long target_word_index, long start, long end) throws java.io.IOException
   {
     boolean inside = false;
     if ((start <= target_word_index) && (target_word_index < end))
@@ -260,17 +410,23 @@ public class SnowMerkleProof
         byte[] buff = new byte[SnowMerkle.HASH_LEN];
         ByteBuffer bb = ByteBuffer.wrap(buff);
 
-        ChannelUtil.readFully(deck_files.get(dist), bb, deck_pos);
+        if (deck_mapped != null)
+        {
+          deck_mapped.get(dist).read(deck_pos, bb);
+        }
+        else
+        {
+          ChannelUtil.readFully(deck_files.get(dist), bb, deck_pos);
+        }
 
         return ByteString.copyFrom(buff);
       }
 
       if (dist == 1)
       {
-        long word_pos = start * SnowMerkle.HASH_LEN_LONG;
         byte[] buff = new byte[SnowMerkle.HASH_LEN];
         ByteBuffer bb = ByteBuffer.wrap(buff);
-        ChannelUtil.readFully(snow_file_channel, bb, word_pos);
+        readSnowWord(start, bb);
 
         return ByteString.copyFrom(buff);
 
@@ -280,10 +436,8 @@ public class SnowMerkleProof
       ByteString left = getInnerProof(md, partners, target_word_index, start, mid);
       ByteString right = getInnerProof(md, partners, target_word_index, mid, end);
 
-      md.update(left.toByteArray());
-      md.update(right.toByteArray());
-
-      byte[] hash = md.digest();
+      byte[] hash = new byte[SnowMerkle.HASH_LEN];
+      md.digestPair(left.toByteArray(), 0, right.toByteArray(), 0, hash, 0);
 
       return ByteString.copyFrom(hash);
 
@@ -293,10 +447,9 @@ public class SnowMerkleProof
 
       if (dist == 1)
       {
-        long word_pos = start * SnowMerkle.HASH_LEN_LONG;
         byte[] buff = new byte[SnowMerkle.HASH_LEN];
         ByteBuffer bb = ByteBuffer.wrap(buff);
-        ChannelUtil.readFully(snow_file_channel, bb, word_pos);
+        readSnowWord(start, bb);
 
         partners.add(ByteString.copyFrom(buff));
         return null;
@@ -14,6 +14,7 @@ import snowblossom.lib.SnowMerkle;
 import snowblossom.miner.SnowMerkleProof;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.Random;
@@ -120,6 +121,112 @@ public class SnowMerkleProofTest
 
   }
 
+  @Test
+  public void testMapped() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+
+    long byte_len = 2 * 1048576L;
+    File snow = new File(tmp_dir, "test.snow");
+
+    new SnowFall(snow.getAbsolutePath(), "zing", byte_len);
+
+    ByteString root_hash = new SnowMerkle(tmp_dir, "test", true).getRootHash();
+
+    SnowMerkleProof disk_proof = new SnowMerkleProof(tmp_dir, "test");
+    SnowMerkleProof mapped_proof = new SnowMerkleProof(tmp_dir, "test", false, 0, true);
+    Assert.assertTrue(mapped_proof.isMapped());
+    mapped_proof.loadMapped();
+
+    int words = (int) (byte_len / SnowMerkle.HASH_LEN_LONG);
+    Random rnd = new Random(byte_len);
+
+    for(int i=0; i<100; i++)
+    {
+      long location = rnd.nextInt(words);
+
+      ByteBuffer disk_bb = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+      ByteBuffer mapped_bb = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+      disk_proof.readWord(location, disk_bb);
+      mapped_proof.readWord(location, mapped_bb);
+      Assert.assertEquals(0, mapped_bb.remaining());
+      Assert.assertArrayEquals(disk_bb.array(), mapped_bb.array());
+
+      SnowPowProof proof = mapped_proof.getProof(location);
+      Assert.assertEquals(disk_proof.getProof(location), proof);
+      Assert.assertTrue(Validation.checkProof(proof, root_hash, byte_len));
+    }
+  }
+
+  @Test
+  public void testReadWords() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+
+    long byte_len = 1048576L;
+    File snow = new File(tmp_dir, "test.snow");
+
+    new SnowFall(snow.getAbsolutePath(), "zing", byte_len);
+    new SnowMerkle(tmp_dir, "test", true);
+
+    SnowMerkleProof disk_proof = new SnowMerkleProof(tmp_dir, "test");
+    SnowMerkleProof mapped_proof = new SnowMerkleProof(tmp_dir, "test", false, 0, true);
+
+    int words = (int) (byte_len / SnowMerkle.HASH_LEN_LONG);
+    Random rnd = new Random(byte_len);
+
+    int depth = 32;
+    long[] word_idx = new long[depth];
+    ByteBuffer[] disk_bbs = new ByteBuffer[depth];
+    ByteBuffer[] mapped_bbs = new ByteBuffer[depth];
+    for(int i=0; i<depth; i++)
+    {
+      word_idx[i] = rnd.nextInt(words);
+      disk_bbs[i] = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+      mapped_bbs[i] = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+    }
+
+    disk_proof.readWords(word_idx, disk_bbs);
+    mapped_proof.readWords(word_idx, mapped_bbs);
+
+    for(int i=0; i<depth; i++)
+    {
+      ByteBuffer bb = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+      disk_proof.readWord(word_idx[i], bb);
+
+      Assert.assertEquals(0, disk_bbs[i].remaining());
+      Assert.assertArrayEquals(bb.array(), disk_bbs[i].array());
+      Assert.assertArrayEquals(bb.array(), mapped_bbs[i].array());
+    }
+
+    disk_proof.close();
+    mapped_proof.close();
+  }
+
+  @Test(expected=java.io.IOException.class)
+  public void testReadWordsPastEnd() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+
+    long byte_len = 1048576L;
+    File snow = new File(tmp_dir, "test.snow");
+
+    new SnowFall(snow.getAbsolutePath(), "zing", byte_len);
+    new SnowMerkle(tmp_dir, "test", true);
+
+    SnowMerkleProof disk_proof = new SnowMerkleProof(tmp_dir, "test");
+    long words = byte_len / SnowMerkle.HASH_LEN_LONG;
+    try
+    {
+      disk_proof.readWords(new long[]{0, words}, new ByteBuffer[]{
+        ByteBuffer.allocate(SnowMerkle.HASH_LEN), ByteBuffer.allocate(SnowMerkle.HASH_LEN)});
+    }
+    finally
+    {
+      disk_proof.close();
+    }
+  }
+
   @Test
   public void test1MB() throws Exception
   {
@@ -68,7 +68,7 @@ public class BlockForge
     try
     {
 
-      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer( node.getUtxoHashedTrie(), 
+      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer( node.getUtxoHashedTrie(), node.getUtxoFlatIndex(),
         new ChainHash(head.getHeader().getUtxoRootHash()));
       List<Transaction> regular_transactions = getTransactions(new ChainHash(head.getHeader().getUtxoRootHash()));
       long fee_sum = 0L;
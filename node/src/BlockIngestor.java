@@ -5,6 +5,7 @@ import duckutil.TimeRecord;
 import duckutil.TimeRecordAuto;
 import snowblossom.lib.*;
 import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.proto.Block;
 import snowblossom.proto.BlockHeader;
 import snowblossom.proto.BlockSummary;
@@ -15,12 +16,20 @@ import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.text.DecimalFormat;
 
 /**
  * This class takes in new blocks, validates them and stores them in the db.
  * In appropritate, updates the tip of the chain.
+ *
+ * Blocks from peers and miners come through the IngestPipeline, which runs checkBlock()
+ * on many threads and applyBlock() on one.  Telling the mempool, user service and peers
+ * about a new block is done on a separate thread after the block is saved.
  */
 public class BlockIngestor
 {
@@ -39,6 +48,12 @@ public class BlockIngestor
   private TimeRecord time_record;
 
   private boolean tx_index=false;
+  private boolean strict_block_validation=false;
+
+  private final ThreadPoolExecutor notify_exec = new ThreadPoolExecutor(1, 1,
+    2, TimeUnit.DAYS,
+    new LinkedBlockingQueue<Runnable>(),
+    new DaemonThreadFactory("ingest_notify"));
 
   public BlockIngestor(SnowBlossomNode node)
     throws Exception
@@ -63,27 +78,66 @@ public class BlockIngestor
     }
 
     tx_index = node.getConfig().getBoolean("tx_index");
+    strict_block_validation = node.getConfig().getBoolean("strict_block_validation");
 
   }
 
+  /**
+   * Checks and saves the block on the calling thread
+   * @return true if the block was new and is now saved
+   */
   public boolean ingestBlock(Block blk)
     throws ValidationException
   {
+    return ingestBlock(new BlockWrapper(blk));
+  }
+
+  public boolean ingestBlock(BlockWrapper wrapper)
+    throws ValidationException
+  {
+    checkBlock(wrapper);
+    return applyBlock(wrapper);
+  }
+
+  /**
+   * The checks that don't depend on the chain state, safe to run on any thread
+   */
+  public void checkBlock(BlockWrapper wrapper)
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra_chk = TimeRecord.openAuto("BlockIngestor.checkBlock"))
+    {
+      // Most transactions in a block have already been checked on the way into the mempool
+      SignatureCache sig_cache = null;
+      if (!strict_block_validation) sig_cache = node.getSignatureCache();
+
+      Validation.checkBlockBasics(node.getParams(), wrapper, true, false, sig_cache);
+    }
+  }
+
+  /**
+   * Validates the block against its previous block and saves it.  The block must have
+   * passed checkBlock() already.
+   * @return true if the block was new and is now saved, false if we already had it
+   * or don't have the block before it
+   */
+  public synchronized boolean applyBlock(BlockWrapper wrapper)
+    throws ValidationException
+  {
+    Block blk = wrapper.getBlock();
     if (time_record != null) time_record.reset();
 
     ChainHash blockhash;
-    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("BlockIngestor.ingestBlock"))
+    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("BlockIngestor.applyBlock"))
     {
-      Validation.checkBlockBasics(node.getParams(), blk, true, false);
-
-      blockhash = new ChainHash(blk.getHeader().getSnowHash());
+      blockhash = wrapper.getHash();
 
       if (db.getBlockSummaryMap().containsKey(blockhash.getBytes() ))
       {
         return false;
       }
 
-      ChainHash prevblock = new ChainHash(blk.getHeader().getPrevBlockHash());
+      ChainHash prevblock = wrapper.getPrevHash();
 
       BlockSummary prev_summary;
       if (prevblock.equals(ChainHash.ZERO_HASH))
@@ -107,7 +161,11 @@ public class BlockIngestor
 
       BlockSummary summary = BlockchainUtil.getNewSummary(blk.getHeader(), prev_summary, node.getParams(), blk.getTransactionsCount() );
 
-      Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary);
+      // Everything about this block is written in one batch.  On rocksdb that is
+      // a single atomic write, elsewhere the maps are written in the order put here.
+      DBBatch batch = db.newBatch();
+
+      Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), node.getUtxoFlatIndex(), wrapper, prev_summary, batch);
 
       if (tx_index)
       {
@@ -118,29 +176,26 @@ public class BlockIngestor
           {
             tx_map.put(tx.getTxHash(), tx);
           }
-          db.getTransactionMap().putAll(tx_map);
+          batch.putAll(db.getTransactionMap(), tx_map);
         }
       }
 
-
-      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
-      {
-        db.getBlockMap().put( blockhash.getBytes(), blk);
-
-
-        // THIS IS SUPER IMPORTANT!!!!
-        // the summary being saved in the summary map acts as a signal that
-        // - this block is fully stored
-        //   - we have the utxo saved
-        //   - we have the block itself saved
-        //   - if we are using tx_index, we have the transactions saved
-        // - the previous block summary is also saved, which by induction means
-        //   that we have every block from this one all the way back to block 0
-        // In short, after the summary is written, things can depend on this being
-        // a valid and correct block that goes all the way back to block 0.
-        // It might not be in the main chain, but it can be counted on to be valid chain
-        db.getBlockSummaryMap().put( blockhash.getBytes(), summary);
-      }
+      batch.put(db.getBlockMap(), blockhash.getBytes(), blk);
+
+      // THIS IS SUPER IMPORTANT!!!!
+      // the summary being saved in the summary map acts as a signal that
+      // - this block is fully stored
+      //   - we have the utxo saved
+      //   - we have the block itself saved
+      //   - if we are using tx_index, we have the transactions saved
+      // - the previous block summary is also saved, which by induction means
+      //   that we have every block from this one all the way back to block 0
+      // In short, after the summary is written, things can depend on this being
+      // a valid and correct block that goes all the way back to block 0.
+      // It might not be in the main chain, but it can be counted on to be valid chain
+      // Where the batch is not atomic, the summary is put after everything else
+      // so this still holds.
+      batch.put(db.getBlockSummaryMap(), blockhash.getBytes(), summary);
 
       BigInteger summary_work_sum = BlockchainUtil.readInteger(summary.getWorkSum());
       BigInteger chainhead_work_sum = BigInteger.ZERO;
@@ -149,16 +204,49 @@ public class BlockIngestor
         chainhead_work_sum = BlockchainUtil.readInteger(chainhead.getWorkSum());
       }
 
-      if (summary_work_sum.compareTo(chainhead_work_sum) > 0)
+      boolean new_head = (summary_work_sum.compareTo(chainhead_work_sum) > 0);
+      boolean flat_in_batch = false;
+      if (new_head)
+      {
+        batch.put(db.getBlockSummaryMap(), HEAD, summary);
+        updateHeights(summary, batch);
+
+        // Extending the tip, the flat index changes go in with the block
+        if (node.getUtxoFlatIndex() != null)
+        {
+          try(TimeRecordAuto tra_flat = TimeRecord.openAuto("BlockIngestor.flatIndex"))
+          {
+            flat_in_batch = node.getUtxoFlatIndex().connectBlock(wrapper, summary, batch);
+          }
+        }
+      }
+
+      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
+      {
+        batch.commit();
+      }
+
+      if (node.getUtxoPruner() != null)
+      {
+        node.getUtxoPruner().addBlock(summary);
+      }
+
+      if (new_head)
       {
         chainhead = summary;
-        db.getBlockSummaryMap().put(HEAD, summary);
         //System.out.println("UTXO at new root: " + HexUtil.getHexString(summary.getHeader().getUtxoRootHash()));
         //node.getUtxoHashedTrie().printTree(summary.getHeader().getUtxoRootHash());
 
-        updateHeights(summary);
+        // Reorg, or the index needs rebuilding
+        if ((node.getUtxoFlatIndex() != null) && (!flat_in_batch))
+        {
+          try(TimeRecordAuto tra_flat = TimeRecord.openAuto("BlockIngestor.flatSync"))
+          {
+            node.getUtxoFlatIndex().syncTo(summary);
+          }
+        }
 
-        logger.info(String.format("New chain tip: Height %d %s (tx:%d sz:%d)", blk.getHeader().getBlockHeight(), blockhash, blk.getTransactionsCount(), blk.toByteString().size()));
+        logger.info(String.format("New chain tip: Height %d %s (tx:%d sz:%d)", blk.getHeader().getBlockHeight(), blockhash, blk.getTransactionsCount(), wrapper.getSize()));
 
         double age_min = System.currentTimeMillis() - blk.getHeader().getTimestamp();
         age_min = age_min / 60000.0;
@@ -169,17 +257,9 @@ public class BlockIngestor
           chainhead.getActivatedField(),
           params.getSnowFieldInfo(chainhead.getActivatedField()).getName(),
           df.format(age_min)));
-
-        SnowUserService u = node.getUserService();
-        if (u != null)
-        {
-          u.tickleBlocks();
-        }
-        node.getMemPool().tickleBlocks(new ChainHash(summary.getHeader().getUtxoRootHash()));
       }
 
-
-      node.getPeerage().sendAllTips();
+      notifyBlock(summary, new_head);
     }
 
     if (block_log != null)
@@ -201,7 +281,43 @@ public class BlockIngestor
 
   }
 
-  private void updateHeights(BlockSummary summary)
+  /**
+   * Tells everyone else about a saved block on the notify thread, so a slow peer
+   * doesn't hold up the next block.
+   */
+  private void notifyBlock(final BlockSummary summary, final boolean new_head)
+  {
+    notify_exec.execute(new Runnable() {
+      public void run()
+      {
+        try
+        {
+          if (new_head)
+          {
+            SnowUserService u = node.getUserService();
+            if (u != null)
+            {
+              u.tickleBlocks();
+            }
+            node.getMemPool().tickleBlocks(new ChainHash(summary.getHeader().getUtxoRootHash()));
+          }
+          node.getPeerage().sendAllTips();
+        }
+        catch(Throwable t)
+        {
+          logger.log(Level.WARNING, "Error sending block notifications", t);
+        }
+      }
+    });
+  }
+
+  /** Notifications waiting to go out */
+  public int getNotifyQueueSize()
+  {
+    return notify_exec.getQueue().size();
+  }
+
+  private void updateHeights(BlockSummary summary, DBBatch batch)
   {
     while(true)
     {
@@ -210,7 +326,7 @@ public class BlockIngestor
       ChainHash hash = new ChainHash(summary.getHeader().getSnowHash());
       if ((found == null) || (!found.equals(hash)))
       {
-        db.setBlockHashAtHeight(height, hash);
+        db.setBlockHashAtHeight(height, hash, batch);
         if (height == 0) return;
         summary = db.getBlockSummaryMap().get(summary.getHeader().getPrevBlockHash());
       }
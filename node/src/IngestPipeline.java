@@ -0,0 +1,350 @@
+package snowblossom.node;
+
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.DaemonThreadFactory;
+import snowblossom.lib.ValidationException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Takes blocks off the threads that deliver them (peer streams, miner submits, the sync manager)
+ * and feeds them to the BlockIngestor in stages:
+ *
+ *  - check: BlockIngestor.checkBlock() on a pool of threads, blocks finish in any order
+ *  - order: a checked block whose previous block isn't saved or on its way waits here by prev hash
+ *  - apply: one thread runs BlockIngestor.applyBlock(), so each block goes after its previous block
+ *
+ * The BlockIngestor sends out notifications on its own thread after each block.
+ *
+ * At most ingest_queue_size blocks are in the pipeline at once.  submit() waits for room,
+ * which holds up the peer stream it was called from and so slows down that peer.
+ */
+public class IngestPipeline extends Thread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.blockchain");
+
+  /** What happened to a submitted block, called from a pipeline thread */
+  public interface Callback
+  {
+    /** @param added true if the block was new and is saved, false if we had it or never got its previous block */
+    public void done(boolean added);
+    /** @param e a ValidationException if the block is bad, anything else went wrong on our side */
+    public void failed(Throwable e);
+  }
+
+  private final SnowBlossomNode node;
+  private final int queue_size;
+  private final long wait_ms;
+
+  private final Semaphore room;
+  private final ThreadPoolExecutor check_exec;
+  private final LinkedBlockingQueue<Pending> apply_queue = new LinkedBlockingQueue<>();
+
+  // Blocks in the apply queue or being applied, which blocks waiting on them can follow
+  private final HashSet<ChainHash> applying = new HashSet<>();
+  private final HashMap<ChainHash, LinkedList<Pending>> waiting = new HashMap<>();
+  private int waiting_count;
+
+  private final AtomicLong full_waits = new AtomicLong(0L);
+
+  public IngestPipeline(SnowBlossomNode node)
+  {
+    setDaemon(true);
+    setName("IngestPipeline");
+
+    this.node = node;
+    this.queue_size = node.getConfig().getIntWithDefault("ingest_queue_size", 64);
+    this.wait_ms = node.getConfig().getIntWithDefault("ingest_wait_ms", 30000);
+
+    int threads = node.getConfig().getIntWithDefault("ingest_check_threads",
+      Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    room = new Semaphore(queue_size);
+    check_exec = new ThreadPoolExecutor(threads, threads,
+      2, TimeUnit.DAYS,
+      new LinkedBlockingQueue<Runnable>(),
+      new DaemonThreadFactory("ingest_check"));
+  }
+
+  /**
+   * Puts the block in the pipeline, waiting if it is full.
+   * @param callback may be null
+   */
+  public void submit(BlockWrapper blk, Callback callback)
+    throws InterruptedException
+  {
+    if (!room.tryAcquire())
+    {
+      full_waits.getAndIncrement();
+      room.acquire();
+    }
+
+    final Pending p = new Pending(blk, callback);
+    check_exec.execute(new Runnable() {
+      public void run()
+      {
+        try
+        {
+          node.getBlockIngestor().checkBlock(p.blk);
+          route(p);
+        }
+        catch(ValidationException e)
+        {
+          finish(p, e);
+        }
+        catch(Throwable t)
+        {
+          logger.log(Level.WARNING, "Error checking block", t);
+          finish(p, t);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends a checked block to be applied if its previous block is saved or going to be
+   * applied first, otherwise holds it.
+   */
+  private void route(Pending p)
+  {
+    List<Pending> dropped;
+    synchronized(this)
+    {
+      if ((p.blk.getHeight() == 0) || applying.contains(p.prev)
+        || node.getDB().getBlockSummaryMap().containsKey(p.prev.getBytes()))
+      {
+        applying.add(p.hash);
+        apply_queue.add(p);
+        return;
+      }
+
+      LinkedList<Pending> lst = waiting.get(p.prev);
+      if (lst == null)
+      {
+        lst = new LinkedList<>();
+        waiting.put(p.prev, lst);
+      }
+      lst.add(p);
+      waiting_count++;
+
+      // Don't let orphans take all the room
+      dropped = new LinkedList<>();
+      if (waiting_count > queue_size / 2)
+      {
+        dropped.add(removeOldestWaiting());
+      }
+    }
+    dropWaiting(dropped);
+  }
+
+  public void run()
+  {
+    while(true)
+    {
+      try
+      {
+        Pending p = apply_queue.poll(1, TimeUnit.SECONDS);
+        if (p != null)
+        {
+          apply(p);
+        }
+        dropWaiting(removeExpiredWaiting(System.currentTimeMillis() - wait_ms));
+      }
+      catch(Throwable t)
+      {
+        logger.log(Level.WARNING, "Exception in IngestPipeline", t);
+      }
+    }
+  }
+
+  private void apply(Pending p)
+  {
+    boolean added = false;
+    Throwable error = null;
+    try
+    {
+      added = node.getBlockIngestor().applyBlock(p.blk);
+    }
+    catch(ValidationException e)
+    {
+      error = e;
+    }
+    catch(Throwable t)
+    {
+      logger.log(Level.WARNING, "Error applying block", t);
+      error = t;
+    }
+
+    LinkedList<Pending> dropped = new LinkedList<>();
+    synchronized(this)
+    {
+      applying.remove(p.hash);
+      LinkedList<Pending> next = waiting.remove(p.hash);
+      if (next != null)
+      {
+        waiting_count -= next.size();
+        if (error == null)
+        {
+          for(Pending n : next)
+          {
+            applying.add(n.hash);
+            apply_queue.add(n);
+          }
+        }
+        else
+        {
+          // Anything built on a block that failed isn't going anywhere
+          while(!next.isEmpty())
+          {
+            Pending d = next.poll();
+            dropped.add(d);
+            LinkedList<Pending> after = waiting.remove(d.hash);
+            if (after != null)
+            {
+              waiting_count -= after.size();
+              next.addAll(after);
+            }
+          }
+        }
+      }
+    }
+
+    if (error != null)
+    {
+      finish(p, error);
+    }
+    else
+    {
+      finish(p, added);
+    }
+    dropWaiting(dropped);
+  }
+
+  private synchronized List<Pending> removeExpiredWaiting(long cutoff)
+  {
+    LinkedList<Pending> expired = new LinkedList<>();
+    Iterator<LinkedList<Pending>> it = waiting.values().iterator();
+    while(it.hasNext())
+    {
+      LinkedList<Pending> lst = it.next();
+      Iterator<Pending> p_it = lst.iterator();
+      while(p_it.hasNext())
+      {
+        Pending p = p_it.next();
+        if (p.arrived < cutoff)
+        {
+          p_it.remove();
+          expired.add(p);
+          waiting_count--;
+        }
+      }
+      if (lst.isEmpty()) it.remove();
+    }
+    return expired;
+  }
+
+  /** Called holding the lock with at least one block waiting */
+  private Pending removeOldestWaiting()
+  {
+    LinkedList<Pending> oldest_lst = null;
+    Pending oldest = null;
+    for(LinkedList<Pending> lst : waiting.values())
+    {
+      for(Pending p : lst)
+      {
+        if ((oldest == null) || (p.arrived < oldest.arrived))
+        {
+          oldest = p;
+          oldest_lst = lst;
+        }
+      }
+    }
+    oldest_lst.remove(oldest);
+    if (oldest_lst.isEmpty()) waiting.remove(oldest.prev);
+    waiting_count--;
+    return oldest;
+  }
+
+  private void dropWaiting(List<Pending> dropped)
+  {
+    for(Pending p : dropped)
+    {
+      logger.log(Level.FINE, String.format("Dropping block %s, its previous block is missing or failed", p.hash));
+      finish(p, false);
+    }
+  }
+
+  private void finish(Pending p, boolean added)
+  {
+    room.release();
+    if (p.callback != null) p.callback.done(added);
+  }
+
+  private void finish(Pending p, Throwable e)
+  {
+    room.release();
+    if (p.callback != null)
+    {
+      p.callback.failed(e);
+    }
+    else
+    {
+      logger.log(Level.INFO, String.format("Block %s was not added", p.hash), e);
+    }
+  }
+
+  /** Blocks waiting for or running checkBlock() */
+  public int getCheckDepth()
+  {
+    return check_exec.getQueue().size() + check_exec.getActiveCount();
+  }
+
+  /** Checked blocks held until their previous block shows up */
+  public synchronized int getWaitingDepth()
+  {
+    return waiting_count;
+  }
+
+  /** Checked blocks waiting for or running applyBlock() */
+  public synchronized int getApplyDepth()
+  {
+    return applying.size();
+  }
+
+  /** Number of times submit() had to wait for room */
+  public long getFullWaits()
+  {
+    return full_waits.get();
+  }
+
+  private static class Pending
+  {
+    final BlockWrapper blk;
+    final Callback callback;
+    final ChainHash hash;
+    final ChainHash prev;
+    final long arrived;
+
+    Pending(BlockWrapper blk, Callback callback)
+    {
+      this.blk = blk;
+      this.callback = callback;
+      this.hash = blk.getHash();
+      this.prev = blk.getPrevHash();
+      this.arrived = System.currentTimeMillis();
+    }
+  }
+
+}
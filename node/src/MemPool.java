@@ -62,14 +62,26 @@ public class MemPool
   private TreeMultimap<Double, TXCluster> priority_map = TreeMultimap.<Double, TXCluster>create();
 
   private HashedTrie utxo_hashed_trie;
+  private UtxoFlatIndex utxo_flat_index;
 
   public static int MEM_POOL_MAX = 10000;
 
   private Object tickle_trigger = new Object();
 
+  private SignatureCache sig_cache;
+
   public MemPool(HashedTrie utxo_hashed_trie)
+  {
+    this(utxo_hashed_trie, null);
+  }
+
+  /**
+   * @param utxo_flat_index used for utxo lookups when it is at the same root, may be null
+   */
+  public MemPool(HashedTrie utxo_hashed_trie, UtxoFlatIndex utxo_flat_index)
   {
     this.utxo_hashed_trie = utxo_hashed_trie;
+    this.utxo_flat_index = utxo_flat_index;
 
     new Tickler().start();
   }
@@ -99,6 +111,30 @@ public class MemPool
     return null;
   }
 
+  /**
+   * For rebuilding compact blocks.  A short id that more than one transaction
+   * has is left out, same as one we don't have.
+   * @return map of short id to transaction for the ones we have
+   */
+  public synchronized Map<ByteString, Transaction> getTransactionsByShortId(Collection<ByteString> short_ids)
+  {
+    HashSet<ByteString> wanted = new HashSet<>(short_ids);
+    HashMap<ByteString, Transaction> found = new HashMap<>();
+    HashSet<ByteString> dups = new HashSet<>();
+
+    for(TransactionMempoolInfo info : known_transactions.values())
+    {
+      ByteString short_id = CompactBlockUtil.getShortId(info.tx.getTxHash());
+      if (!wanted.contains(short_id)) continue;
+      if (found.put(short_id, info.tx) != null) dups.add(short_id);
+    }
+    for(ByteString short_id : dups)
+    {
+      found.remove(short_id);
+    }
+    return found;
+  }
+
   public synchronized Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
   {
     return ImmutableSet.copyOf(address_tx_map.get(spec_hash));
@@ -134,7 +170,7 @@ public class MemPool
             {
               block_list.add(tx);
               included_txs.add(tx_hash);
-              size += tx.toByteString().size();
+              size += tx.getSerializedSize();
             }
           }
 
@@ -151,7 +187,7 @@ public class MemPool
   public synchronized boolean addTransaction(Transaction tx) throws ValidationException
   {
     long t1 = System.nanoTime();
-    Validation.checkTransactionBasics(tx, false);
+    TransactionInner checked_inner = Validation.checkTransactionBasics(tx, false, sig_cache);
     TimeRecord.record(t1, "tx_validation");
     ChainHash tx_hash = new ChainHash(tx.getTxHash());
     if (known_transactions.containsKey(tx_hash)) return false;
@@ -161,7 +197,7 @@ public class MemPool
       throw new ValidationException("mempool is full");
     }
 
-    TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
+    TransactionMempoolInfo info = new TransactionMempoolInfo(tx, checked_inner);
 
     TransactionInner inner = info.inner;
     TreeSet<String> used_outputs = new TreeSet<>();
@@ -186,7 +222,7 @@ public class MemPool
     if (utxo_for_pri_map != null)
     {
       long t2 = System.nanoTime();
-      TXCluster cluster = buildTXCluster(tx);
+      TXCluster cluster = buildTXCluster(info);
       TimeRecord.record(t2, "mempool:build_cluster");
       if (cluster == null)
       {
@@ -236,7 +272,7 @@ public class MemPool
       TXCluster cluster;
       try
       {
-        cluster = buildTXCluster(tx);
+        cluster = buildTXCluster(info);
       }
       catch (ValidationException e)
       {
@@ -246,8 +282,7 @@ public class MemPool
       if (cluster == null)
       {
         remove_list.add(new ChainHash(tx.getTxHash()));
-        TransactionInner inner = TransactionUtil.getInner(tx);
-        for (TransactionInput in : inner.getInputsList())
+        for (TransactionInput in : info.inner.getInputsList())
         {
           String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
           claimed_outputs.remove(key);
@@ -275,18 +310,17 @@ public class MemPool
 
   }
 
-  private static void addInputRequirements(Transaction tx, HashMultimap<ChainHash, ChainHash> depends_on_map, List<TransactionInput> needed_inputs)
+  private static void addInputRequirements(TransactionMempoolInfo info, HashMultimap<ChainHash, ChainHash> depends_on_map, List<TransactionInput> needed_inputs)
   {
-    ChainHash tx_id = new ChainHash(tx.getTxHash());
-    TransactionInner inner = TransactionUtil.getInner(tx);
-    for (TransactionInput in : inner.getInputsList())
+    ChainHash tx_id = new ChainHash(info.tx.getTxHash());
+    for (TransactionInput in : info.inner.getInputsList())
     {
       depends_on_map.put(tx_id, new ChainHash(in.getSrcTxId()));
       needed_inputs.add(in);
     }
   }
 
-  private static LinkedList<Transaction> getOrderdTxList(HashMap<ChainHash, Transaction> working_map, HashMultimap<ChainHash, ChainHash> depends_on_map, ChainHash target_tx)
+  private static LinkedList<TransactionMempoolInfo> getOrderdTxList(HashMap<ChainHash, TransactionMempoolInfo> working_map, HashMultimap<ChainHash, ChainHash> depends_on_map, ChainHash target_tx)
   {
     HashMap<ChainHash, Integer> level_map = new HashMap<>();
 
@@ -301,19 +335,19 @@ public class MemPool
       ordered_tree.put(me.getValue(), me.getKey());
     }
 
-    LinkedList<Transaction> return_list = new LinkedList<Transaction>();
+    LinkedList<TransactionMempoolInfo> return_list = new LinkedList<TransactionMempoolInfo>();
     for (Map.Entry<Integer, ChainHash> me : ordered_tree.entries())
     {
       return_list.add(working_map.get(me.getValue()));
     }
 
     Assert.assertEquals(working_map.size(), return_list.size());
-    Assert.assertEquals(target_tx, return_list.getLast().getTxHash());
+    Assert.assertEquals(target_tx, return_list.getLast().tx.getTxHash());
 
     return return_list;
   }
 
-  private static void populateLevelMap(HashMap<ChainHash, Transaction> working_map, HashMultimap<ChainHash, ChainHash> depends_on_map, HashMap<ChainHash, Integer> level_map, ChainHash tx, int level)
+  private static void populateLevelMap(HashMap<ChainHash, TransactionMempoolInfo> working_map, HashMultimap<ChainHash, ChainHash> depends_on_map, HashMap<ChainHash, Integer> level_map, ChainHash tx, int level)
   {
     if (!working_map.containsKey(tx)) return;
 
@@ -339,17 +373,18 @@ public class MemPool
    * Probably need to actually build the graph and do graph
    * theory things.
    */
-  private TXCluster buildTXCluster(Transaction target_tx) throws ValidationException
+  private TXCluster buildTXCluster(TransactionMempoolInfo target_info) throws ValidationException
   {
-    HashMap<ChainHash, Transaction> working_map = new HashMap<>();
+    Transaction target_tx = target_info.tx;
+    HashMap<ChainHash, TransactionMempoolInfo> working_map = new HashMap<>();
 
     HashMultimap<ChainHash, ChainHash> depends_on_map = HashMultimap.<ChainHash, ChainHash>create();
 
     LinkedList<TransactionInput> needed_inputs = new LinkedList<>();
 
-    addInputRequirements(target_tx, depends_on_map, needed_inputs);
+    addInputRequirements(target_info, depends_on_map, needed_inputs);
 
-    working_map.put(new ChainHash(target_tx.getTxHash()), target_tx);
+    working_map.put(new ChainHash(target_tx.getTxHash()), target_info);
     long t1;
 
 
@@ -362,14 +397,22 @@ public class MemPool
 
         ByteString key = UtxoUpdateBuffer.getKey(in);
         t1 = System.nanoTime();
-        ByteString matching_output = utxo_hashed_trie.getLeafData(utxo_for_pri_map.getBytes(), key);
+        ByteString matching_output = null;
+        if (utxo_flat_index != null)
+        {
+          matching_output = utxo_flat_index.getLeafData(utxo_for_pri_map, key);
+        }
+        else
+        {
+          matching_output = utxo_hashed_trie.getLeafData(utxo_for_pri_map.getBytes(), key);
+        }
         TimeRecord.record(t1, "utxo_lookup");
         if (matching_output == null)
         {
           if (known_transactions.containsKey(needed_tx))
           {
             t1 = System.nanoTime();
-            Transaction found_tx = known_transactions.get(needed_tx).tx;
+            TransactionMempoolInfo found_tx = known_transactions.get(needed_tx);
 
             working_map.put(needed_tx, found_tx);
             addInputRequirements(found_tx, depends_on_map, needed_inputs);
@@ -387,14 +430,14 @@ public class MemPool
     //At this point we have all the inputs satisfied.  Now to figure out ordering.
 
     t1 = System.nanoTime();
-    LinkedList<Transaction> ordered_list = getOrderdTxList(working_map, depends_on_map, new ChainHash(target_tx.getTxHash()));
+    LinkedList<TransactionMempoolInfo> ordered_list = getOrderdTxList(working_map, depends_on_map, new ChainHash(target_tx.getTxHash()));
     TimeRecord.record(t1, "get_order");
 
     t1 = System.nanoTime();
-    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_for_pri_map);
-    for (Transaction t : ordered_list)
+    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_flat_index, utxo_for_pri_map);
+    for (TransactionMempoolInfo t : ordered_list)
     {
-      Validation.deepTransactionCheck(t, test_buffer);
+      Validation.deepTransactionCheck(new ChainHash(t.tx.getTxHash()), t.inner, test_buffer);
     }
     TimeRecord.record(t1, "utxo_sim");
 
@@ -419,17 +462,17 @@ public class MemPool
     long total_fee;
     String rnd_val;
 
-    public TXCluster(List<Transaction> tx_in_list)
+    public TXCluster(List<TransactionMempoolInfo> tx_in_list)
     {
-      tx_list = ImmutableList.copyOf(tx_in_list);
+      ImmutableList.Builder<Transaction> list_builder = ImmutableList.builder();
 
-      for (Transaction t : tx_in_list)
+      for (TransactionMempoolInfo t : tx_in_list)
       {
-        total_size += t.toByteString().size();
-
-        TransactionInner inner = TransactionUtil.getInner(t);
-        total_fee += inner.getFee();
+        list_builder.add(t.tx);
+        total_size += t.tx.getSerializedSize();
+        total_fee += t.inner.getFee();
       }
+      tx_list = list_builder.build();
       rnd_val = "" + new Random().nextDouble();
     }
 
@@ -458,6 +501,11 @@ public class MemPool
     this.peerage = peerage;
   }
 
+  public void setSignatureCache(SignatureCache sig_cache)
+  {
+    this.sig_cache = sig_cache;
+  }
+
   public class Tickler extends Thread
   {
     public Tickler()
@@ -511,11 +559,17 @@ public class MemPool
     public final TransactionInner inner;
 
     public TransactionMempoolInfo(Transaction tx)
+    {
+      this(tx, TransactionUtil.getInner(tx));
+    }
+
+    /** @param inner the already parsed inner data of tx */
+    public TransactionMempoolInfo(Transaction tx, TransactionInner inner)
     {
       this.tx = tx;
+      this.inner = inner;
 
       HashSet<AddressSpecHash> add_set = new HashSet<>();
-      inner = TransactionUtil.getInner(tx);
 
       for (TransactionInput in : inner.getInputsList())
       {
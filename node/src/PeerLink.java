@@ -1,10 +1,13 @@
 package snowblossom.node;
 
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.stub.StreamObserver;
 import snowblossom.proto.*;
 import snowblossom.lib.*;
 
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
@@ -31,6 +34,18 @@ public class PeerLink implements StreamObserver<PeerMessage>
   private long last_received_message_time;
   private boolean got_first_tip = false;
   private PeerInfo peer_info; //only set when we are client
+  private volatile boolean range_requests;
+  private volatile boolean compact_blocks;
+
+  // Compact blocks waiting on transactions we asked the peer for
+  private LRUCache<ChainHash, PartialBlock> partial_blocks = new LRUCache<>(8);
+
+  private final int max_header_range;
+  private final int max_block_request;
+
+  // Headers and blocks we send this peer over time, however it asks for them
+  private final ServeLimit header_limit;
+  private final ServeLimit block_limit;
 
   private TreeMap<Integer, ChainHash> peer_block_map = new TreeMap<Integer, ChainHash>();
 
@@ -42,6 +57,10 @@ public class PeerLink implements StreamObserver<PeerMessage>
     setLinkId();
     last_received_message_time = System.currentTimeMillis();
 
+    max_header_range = getMaxHeaderRange(node);
+    max_block_request = getMaxBlockRequest(node);
+    header_limit = getServeLimit(node, "peer_max_headers_per_window", 20000);
+    block_limit = getServeLimit(node, "peer_max_blocks_per_window", 640);
   }
 
   public PeerLink(SnowBlossomNode node, String link_id, PeerInfo info)
@@ -52,6 +71,41 @@ public class PeerLink implements StreamObserver<PeerMessage>
     this.link_id = link_id;
     this.peer_info = info;
     last_received_message_time = System.currentTimeMillis();
+
+    max_header_range = getMaxHeaderRange(node);
+    max_block_request = getMaxBlockRequest(node);
+    header_limit = getServeLimit(node, "peer_max_headers_per_window", 20000);
+    block_limit = getServeLimit(node, "peer_max_blocks_per_window", 640);
+  }
+
+  /** Most headers we send for one RequestHeaderRange */
+  private static int getMaxHeaderRange(SnowBlossomNode node)
+  {
+    return node.getConfig().getIntWithDefault("peer_max_header_range", Globals.BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE);
+  }
+
+  /** Most blocks we send for one RequestBlocks */
+  private static int getMaxBlockRequest(SnowBlossomNode node)
+  {
+    return node.getConfig().getIntWithDefault("peer_max_block_request", 16);
+  }
+
+  /** At most the configured count per peer_serve_window_ms */
+  private static ServeLimit getServeLimit(SnowBlossomNode node, String key, int def)
+  {
+    return new ServeLimit(
+      node.getConfig().getIntWithDefault(key, def),
+      node.getConfig().getIntWithDefault("peer_serve_window_ms", 10000));
+  }
+
+  /**
+   * Checks the format and PoW of a header from the peer.
+   * Tests that can't make real headers override this.
+   */
+  protected void checkHeader(BlockHeader header)
+    throws ValidationException
+  {
+    Validation.checkBlockHeaderBasics(node.getParams(), header, false);
   }
 
   private void setLinkId()
@@ -100,7 +154,6 @@ public class PeerLink implements StreamObserver<PeerMessage>
     last_received_message_time = System.currentTimeMillis();
     try
     {
-      msg = PeerMessage.parseFrom(msg.toByteString());
       if (msg.hasTx())
       {
         Transaction tx = msg.getTx();
@@ -124,6 +177,8 @@ public class PeerLink implements StreamObserver<PeerMessage>
           return;
         }
         node.getPeerage().reportTip();
+        range_requests = tip.getRangeRequests();
+        compact_blocks = tip.getCompactBlocks();
 
         // When we first get a tip from a node we connected to
         // update the peer info showing the success in getting a tip
@@ -139,7 +194,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
         BlockHeader header = tip.getHeader();
         if (header.getSnowHash().size() > 0)
         {
-          Validation.checkBlockHeaderBasics(node.getParams(), header, false);
+          checkHeader(header);
           considerBlockHeader(header);
           node.getPeerage().setHighestHeader(header);
         }
@@ -158,42 +213,54 @@ public class PeerLink implements StreamObserver<PeerMessage>
         Block blk = node.getDB().getBlockMap().get(hash.getBytes());
         if (blk != null)
         {
+          block_limit.take(1);
           writeMessage( PeerMessage.newBuilder().setBlock(blk).build() );
         }
       }
       else if (msg.hasBlock())
       {
         // Getting a block, we probably asked for it.  See if we can eat it.
-        Block blk = msg.getBlock();
-        try
+        BlockWrapper blk = new BlockWrapper(msg.getBlock());
+
+        // Part of a catch up, the sync manager will ingest it in order
+        if (node.getSyncManager().onBlock(this, blk)) return;
+
+        ingestBlock(blk);
+      }
+      else if (msg.hasReqCompactBlock())
+      {
+        // Other side is asking for a new block, sending what it doesn't have in its mempool
+        Block blk = node.getDB().getBlockMap().get(msg.getReqCompactBlock().getBlockHash());
+        if (blk != null)
         {
-          if (node.getBlockIngestor().ingestBlock(blk))
-          { // we could eat it, think about getting more blocks
-            int next = blk.getHeader().getBlockHeight()+1;
-            synchronized(peer_block_map)
-            {
-              if (peer_block_map.containsKey(next))
-              {
-                ChainHash target = peer_block_map.get(next);
-
-                if (node.getBlockIngestor().reserveBlock(target))
-                {
-                  writeMessage( PeerMessage.newBuilder()
-                    .setReqBlock(
-                      RequestBlock.newBuilder().setBlockHash(target.getBytes()).build())
-                    .build());
-                }
-              }
-            }
-          }
+          writeMessage( PeerMessage.newBuilder().setCompactBlock(CompactBlockUtil.makeCompact(blk)).build() );
         }
-        catch(ValidationException ve)
+      }
+      else if (msg.hasCompactBlock())
+      {
+        onCompactBlock(msg.getCompactBlock());
+      }
+      else if (msg.hasReqBlockTxn())
+      {
+        // Other side is missing some transactions of a compact block we sent
+        RequestBlockTxn req = msg.getReqBlockTxn();
+        Block blk = node.getDB().getBlockMap().get(req.getBlockHash());
+        if (blk != null)
         {
-          logger.info("Got a block %s that didn't validate - closing link");
-          close();
-          throw(ve);
+          BlockTxn.Builder txn = BlockTxn.newBuilder().setBlockHash(req.getBlockHash());
+          for(int idx : req.getTxIndexesList())
+          {
+            if ((idx < 0) || (idx >= blk.getTransactionsCount())) continue;
+            txn.addTxIndexes(idx);
+            txn.addTransactions(blk.getTransactions(idx));
+          }
+          writeMessage( PeerMessage.newBuilder().setBlockTxn(txn.build()).build() );
         }
       }
+      else if (msg.hasBlockTxn())
+      {
+        onBlockTxn(msg.getBlockTxn());
+      }
       else if (msg.hasReqHeader())
       { 
         // Peer is asking for a block header
@@ -202,15 +269,61 @@ public class PeerLink implements StreamObserver<PeerMessage>
         if (hash != null)
         {
           BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash.getBytes());
+          header_limit.take(1);
           writeMessage( PeerMessage.newBuilder().setHeader(summary.getHeader()).build() );
         }
       }
+      else if (msg.hasReqHeaderRange())
+      {
+        // Peer is asking for a run of block headers
+        int start = msg.getReqHeaderRange().getStart();
+        int count = Math.min(msg.getReqHeaderRange().getCount(), max_header_range);
+        HeaderBatch.Builder batch = HeaderBatch.newBuilder();
+        for(int height = Math.max(start, 0); height < start + count; height++)
+        {
+          ChainHash hash = node.getDB().getBlockHashAtHeight(height);
+          if (hash == null) break;
+          BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash.getBytes());
+          if (summary == null) break;
+          batch.addHeaders(summary.getHeader());
+        }
+        header_limit.take(batch.getHeadersCount());
+        writeMessage( PeerMessage.newBuilder().setHeaderBatch(batch.build()).build() );
+      }
+      else if (msg.hasReqBlocks())
+      {
+        // Peer is asking for a bunch of blocks, send each as it is read
+        int sent = 0;
+        for(ByteString hash : msg.getReqBlocks().getBlockHashesList())
+        {
+          if (sent >= max_block_request) break;
+          Block blk = node.getDB().getBlockMap().get(hash);
+          if (blk != null)
+          {
+            block_limit.take(1);
+            writeMessage( PeerMessage.newBuilder().setBlock(blk).build() );
+            sent++;
+          }
+        }
+      }
+      else if (msg.hasHeaderBatch())
+      {
+        // Headers the sync manager asked for
+        for(BlockHeader header : msg.getHeaderBatch().getHeadersList())
+        {
+          checkHeader(header);
+        }
+        node.getSyncManager().onHeaderBatch(this, msg.getHeaderBatch().getHeadersList());
+      }
       else if (msg.hasHeader())
       {
-        // We got a header, probably one we asked for
+        // We got a header, probably one the sync manager asked for
         BlockHeader header = msg.getHeader();
-        Validation.checkBlockHeaderBasics(node.getParams(), header, false);
-        considerBlockHeader(header);
+        checkHeader(header);
+        if (!node.getSyncManager().onHeader(this, header))
+        {
+          considerBlockHeader(header);
+        }
       }
     }
     catch(ValidationException e)
@@ -225,8 +338,154 @@ public class PeerLink implements StreamObserver<PeerMessage>
   }
 
   /**
-   * The basic plan is, keep asking about previous blocks
-   * until we get to one we have heard of.  Then we start requesting the blocks.
+   * Waits here if the pipeline is full, which slows this peer down
+   */
+  private void ingestBlock(BlockWrapper blk)
+    throws InterruptedException
+  {
+    final int next = blk.getHeight()+1;
+    node.getIngestPipeline().submit(blk, new IngestPipeline.Callback() {
+      public void done(boolean added)
+      {
+        // we could eat it, think about getting more blocks
+        if (added) requestNextBlock(next);
+      }
+      public void failed(Throwable e)
+      {
+        if (e instanceof ValidationException)
+        {
+          logger.log(Level.INFO, "Got a block that didn't validate from " + getLinkId() + " - closing link", e);
+          close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Fills in what we can of a compact block from the mempool and asks
+   * the peer for the rest
+   */
+  private void onCompactBlock(CompactBlock cb)
+    throws ValidationException, InterruptedException
+  {
+    BlockHeader header = cb.getHeader();
+    checkHeader(header);
+
+    ChainHash hash = new ChainHash(header.getSnowHash());
+    if (node.getDB().getBlockSummaryMap().containsKey(hash.getBytes())) return;
+
+    Transaction[] txs = new Transaction[cb.getShortTxIdsCount() + 1];
+    txs[0] = cb.getCoinbase();
+
+    Map<ByteString, Transaction> found = node.getMemPool().getTransactionsByShortId(cb.getShortTxIdsList());
+    RequestBlockTxn.Builder req = RequestBlockTxn.newBuilder().setBlockHash(hash.getBytes());
+    for(int i=1; i<txs.length; i++)
+    {
+      txs[i] = found.get(cb.getShortTxIds(i-1));
+      if (txs[i] == null) req.addTxIndexes(i);
+    }
+
+    if (req.getTxIndexesCount() == 0)
+    {
+      assembleCompact(hash, header, txs);
+      return;
+    }
+
+    logger.log(Level.FINE, String.format("Compact block %s missing %d of %d transactions", hash, req.getTxIndexesCount(), txs.length));
+    synchronized(partial_blocks)
+    {
+      partial_blocks.put(hash, new PartialBlock(header, txs));
+    }
+    writeMessage( PeerMessage.newBuilder().setReqBlockTxn(req.build()).build() );
+  }
+
+  private void onBlockTxn(BlockTxn txn)
+    throws InterruptedException
+  {
+    if (txn.getBlockHash().size() != Globals.BLOCKCHAIN_HASH_LEN) return;
+    ChainHash hash = new ChainHash(txn.getBlockHash());
+
+    PartialBlock pb;
+    synchronized(partial_blocks)
+    {
+      pb = partial_blocks.remove(hash);
+    }
+    if (pb == null) return;
+
+    if (txn.getTxIndexesCount() != txn.getTransactionsCount())
+    {
+      requestFullBlock(hash);
+      return;
+    }
+    for(int i=0; i<txn.getTxIndexesCount(); i++)
+    {
+      int idx = txn.getTxIndexes(i);
+      if ((idx <= 0) || (idx >= pb.txs.length))
+      {
+        requestFullBlock(hash);
+        return;
+      }
+      pb.txs[idx] = txn.getTransactions(i);
+    }
+    assembleCompact(hash, pb.header, pb.txs);
+  }
+
+  /**
+   * Ingests the rebuilt block if it matches the header, otherwise a short id
+   * matched the wrong transaction or the peer left something out, so get the full block
+   */
+  private void assembleCompact(ChainHash hash, BlockHeader header, Transaction[] txs)
+    throws InterruptedException
+  {
+    for(Transaction tx : txs)
+    {
+      if (tx == null)
+      {
+        requestFullBlock(hash);
+        return;
+      }
+    }
+
+    Block blk = CompactBlockUtil.assemble(header, Arrays.asList(txs));
+    if (blk == null)
+    {
+      logger.log(Level.FINE, String.format("Compact block %s did not rebuild, getting full block", hash));
+      requestFullBlock(hash);
+      return;
+    }
+    ingestBlock(new BlockWrapper(blk));
+  }
+
+  private void requestFullBlock(ChainHash hash)
+  {
+    writeMessage( PeerMessage.newBuilder()
+      .setReqBlock(
+        RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
+      .build());
+  }
+
+  private void requestNextBlock(int next)
+  {
+    synchronized(peer_block_map)
+    {
+      if (peer_block_map.containsKey(next))
+      {
+        ChainHash target = peer_block_map.get(next);
+
+        if (node.getBlockIngestor().reserveBlock(target))
+        {
+          writeMessage( PeerMessage.newBuilder()
+            .setReqBlock(
+              RequestBlock.newBuilder().setBlockHash(target.getBytes()).build())
+            .build());
+        }
+      }
+    }
+  }
+
+  /**
+   * If we have the block before this one, get it.  Otherwise we are behind by
+   * more than a block and the sync manager takes it from here.
    */
   private void considerBlockHeader(BlockHeader header)
   {
@@ -244,41 +503,22 @@ public class PeerLink implements StreamObserver<PeerMessage>
       { // but we have the prev block - get this block 
         if (node.getBlockIngestor().reserveBlock(new ChainHash(header.getSnowHash())))
         {
-          writeMessage( PeerMessage.newBuilder()
-            .setReqBlock(
-              RequestBlock.newBuilder().setBlockHash(header.getSnowHash()).build())
-            .build());
-        }
-      }
-      else
-      { //get more headers, still in the woods
-        int next = header.getBlockHeight();
-        if (node.getBlockIngestor().getHeight() + Globals.BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE < next)
-        {
-          next = node.getBlockIngestor().getHeight() + Globals.BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE;
-        }
-        while(peer_block_map.containsKey(next))
-        {
-          next--;
-        }
-        
-        if (next >= 0)
-        {
-          ChainHash prev = new ChainHash(header.getPrevBlockHash());
-          synchronized(peer_block_map)
+          // A new block, most of it should be in our mempool
+          RequestBlock req = RequestBlock.newBuilder().setBlockHash(header.getSnowHash()).build();
+          if (compact_blocks)
           {
-            if (peer_block_map.containsKey(next))
-            {
-              if (peer_block_map.get(next).equals(prev)) return;
-            }
+            writeMessage( PeerMessage.newBuilder().setReqCompactBlock(req).build());
+          }
+          else
+          {
+            writeMessage( PeerMessage.newBuilder().setReqBlock(req).build());
           }
-
-          writeMessage( PeerMessage.newBuilder()
-            .setReqHeader(
-              RequestBlockHeader.newBuilder().setBlockHeight(next).build())
-            .build());
         }
       }
+      else
+      { // still in the woods
+        node.getSyncManager().addTip(this, header);
+      }
 
     }
 
@@ -331,4 +571,59 @@ public class PeerLink implements StreamObserver<PeerMessage>
     return link_id;
   }
 
+  /** True once the peer's tip says it answers RequestHeaderRange and RequestBlocks */
+  public boolean supportsRangeRequests()
+  {
+    return range_requests;
+  }
+
+  private static class PartialBlock
+  {
+    final BlockHeader header;
+    final Transaction[] txs;
+
+    PartialBlock(BlockHeader header, Transaction[] txs)
+    {
+      this.header = header;
+      this.txs = txs;
+    }
+  }
+
+  /**
+   * Counts what we send a peer in fixed windows.  Going over waits here for the next window,
+   * which holds up only this peer, like a full ingest pipeline does.  A peer that keeps asking
+   * gets served at the capped rate however its requests are split up.
+   */
+  private static class ServeLimit
+  {
+    private final int max;
+    private final long window_ms;
+    private long window_start;
+    private int used;
+
+    ServeLimit(int max, long window_ms)
+    {
+      this.max = max;
+      this.window_ms = window_ms;
+    }
+
+    synchronized void take(int n)
+      throws InterruptedException
+    {
+      long now = System.currentTimeMillis();
+      if (now >= window_start + window_ms)
+      {
+        window_start = now;
+        used = 0;
+      }
+      if ((used > 0) && (used + n > max))
+      {
+        Thread.sleep(window_start + window_ms - now);
+        window_start = System.currentTimeMillis();
+        used = 0;
+      }
+      used += n;
+    }
+  }
+
 }
@@ -89,6 +89,8 @@ public class Peerage
 
     tip.setNetworkName(node.getParams().getNetworkName());
     tip.setVersion(Globals.VERSION);
+    tip.setRangeRequests(true);
+    tip.setCompactBlocks(true);
 
     if (summary != null)
     {
@@ -179,7 +181,7 @@ public class Peerage
     return map;
   }
 
-  private ImmutableList<PeerLink> getLinkList()
+  public ImmutableList<PeerLink> getLinkList()
   {
     synchronized(links)
     {
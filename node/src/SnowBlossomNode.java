@@ -1,15 +1,21 @@
 package snowblossom.node;
 
+import com.google.protobuf.ByteString;
 import duckutil.Config;
 import duckutil.ConfigFile;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import snowblossom.lib.db.DB;
+import snowblossom.lib.db.ScannableDBMap;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDB;
+import snowblossom.lib.trie.TrieDBCache;
 import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TriePruner;
 import snowblossom.lib.db.lobstack.LobstackDB;
 import snowblossom.lib.db.rocksdb.JRocksDB;
 import snowblossom.lib.*;
+import java.util.Collection;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,10 +50,17 @@ public class SnowBlossomNode
   private DB db;
   private NetworkParams params;
   private BlockIngestor ingestor;
+  private IngestPipeline ingest_pipeline;
   private BlockForge forge;
   private MemPool mem_pool;
   private HashedTrie utxo_hashed_trie;
+  private TrieDBCache utxo_trie_cache;
+  private TriePruner utxo_trie_pruner;
+  private UtxoPruner utxo_pruner;
+  private UtxoFlatIndex utxo_flat_index;
   private Peerage peerage;
+  private SyncManager sync_manager;
+  private SignatureCache sig_cache;
 
   private volatile boolean terminate;
 
@@ -69,6 +82,17 @@ public class SnowBlossomNode
     startServices();
   }
 
+  /**
+   * Only keeps the config and db and sets up the params, nothing is loaded or started.
+   * For tests, which override the getters of the parts they use.
+   */
+  protected SnowBlossomNode(Config config, DB db)
+  {
+    this.config = config;
+    this.db = db;
+    setupParams();
+  }
+
   public void stop()
   {
     terminate=true;
@@ -83,19 +107,32 @@ public class SnowBlossomNode
   private void loadWidgets()
     throws Exception
   {
+    sig_cache = new SignatureCache(config.getIntWithDefault("sig_cache_size", 100000));
+
     ingestor = new BlockIngestor(this);
+    ingest_pipeline = new IngestPipeline(this);
     forge = new BlockForge(this);
-    mem_pool = new MemPool(utxo_hashed_trie);
+    mem_pool = new MemPool(utxo_hashed_trie, utxo_flat_index);
 
     peerage = new Peerage(this);
+    sync_manager = new SyncManager(this);
     mem_pool.setPeerage(peerage);
+    mem_pool.setSignatureCache(sig_cache);
 
   }
 
   private void startWidgets()
   {
+    if ((utxo_flat_index != null) && (ingestor.getHead() != null))
+    {
+      utxo_flat_index.syncTo(ingestor.getHead());
+    }
+
+    ingest_pipeline.start();
     peerage.start();
+    sync_manager.start();
     new TimeWatcher().start();
+    if (utxo_pruner != null) utxo_pruner.start();
   }
 
   private void startServices()
@@ -150,7 +187,58 @@ public class SnowBlossomNode
     //File utxo_db_file = new File(utxo_db_path);
     //utxo_db_file.mkdirs();
 
-    utxo_hashed_trie = new HashedTrie(new TrieDBMap(db.getUtxoNodeMap()),Globals.UTXO_KEY_LEN ,true);
+    TrieDB utxo_trie_db = new TrieDBMap(db.getUtxoNodeMap(), config.getBoolean("trie_compact_encoding"));
+
+    int trie_cache_size = config.getIntWithDefault("trie_cache_size", 250000);
+    if (trie_cache_size > 0)
+    {
+      utxo_trie_cache = new TrieDBCache(utxo_trie_db, trie_cache_size,
+        config.getIntWithDefault("trie_cache_pin_depth", -1),
+        config.getIntWithDefault("trie_cache_pin_size", 100000));
+      utxo_trie_db = utxo_trie_cache;
+    }
+
+    int keep_blocks = config.getIntWithDefault("trie_prune_keep_blocks", 0);
+    if (keep_blocks > 0)
+    {
+      if (db.getUtxoNodeMap() instanceof ScannableDBMap)
+      {
+        utxo_trie_pruner = new TriePruner(utxo_trie_db, (ScannableDBMap) db.getUtxoNodeMap(),
+          config.getIntWithDefault("trie_prune_batch_size", TriePruner.DEFAULT_BATCH_SIZE));
+        utxo_trie_db = utxo_trie_pruner;
+        utxo_pruner = new UtxoPruner(this, utxo_trie_pruner, keep_blocks,
+          config.getIntWithDefault("trie_prune_every_blocks", 1000));
+      }
+      else
+      {
+        logger.log(Level.WARNING, String.format("db_type %s does not support utxo trie pruning", config.get("db_type")));
+      }
+    }
+
+    utxo_hashed_trie = new HashedTrie(utxo_trie_db, Globals.UTXO_KEY_LEN ,true);
+    if (utxo_trie_pruner != null)
+    {
+      utxo_trie_pruner.addDeleteListener(new TriePruner.DeleteListener() {
+        public void deleted(Collection<ByteString> hashes)
+        {
+          utxo_hashed_trie.evictImages(hashes);
+        }
+      });
+    }
+
+    if (config.getBoolean("utxo_flat_index"))
+    {
+      if ((db.getUtxoFlatMap() instanceof ScannableDBMap) && (db.getUtxoUndoMap() instanceof ScannableDBMap))
+      {
+        utxo_flat_index = new UtxoFlatIndex(db,
+          (ScannableDBMap) db.getUtxoFlatMap(), (ScannableDBMap) db.getUtxoUndoMap(), utxo_hashed_trie,
+          config.getIntWithDefault("utxo_undo_keep_blocks", UtxoFlatIndex.DEFAULT_UNDO_KEEP));
+      }
+      else
+      {
+        logger.log(Level.WARNING, String.format("db_type %s does not support the flat utxo index", config.get("db_type")));
+      }
+    }
   }
 
   public boolean areWeSynced()
@@ -185,9 +273,20 @@ public class SnowBlossomNode
   public DB getDB(){return db;}
   public NetworkParams getParams(){return params;}
   public BlockIngestor getBlockIngestor(){ return ingestor; }
+  public IngestPipeline getIngestPipeline(){ return ingest_pipeline; }
   public BlockForge getBlockForge() {return forge;}
   public HashedTrie getUtxoHashedTrie(){return utxo_hashed_trie;}
+  /** null if the cache is turned off */
+  public TrieDBCache getUtxoTrieCache(){return utxo_trie_cache;}
+  /** null if pruning is turned off */
+  public TriePruner getUtxoTriePruner(){return utxo_trie_pruner;}
+  /** null if pruning is turned off */
+  public UtxoPruner getUtxoPruner(){return utxo_pruner;}
+  /** null if the flat utxo index is turned off */
+  public UtxoFlatIndex getUtxoFlatIndex(){return utxo_flat_index;}
   public MemPool getMemPool(){return mem_pool;}
   public Peerage getPeerage(){return peerage;}
+  public SyncManager getSyncManager(){return sync_manager;}
+  public SignatureCache getSignatureCache(){return sig_cache;}
   public SnowUserService getUserService() {return user_service;}
 }
@@ -4,6 +4,7 @@ import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
 import snowblossom.proto.*;
 import snowblossom.lib.*;
+import snowblossom.lib.trie.TriePruner;
 import snowblossom.trie.proto.TrieNode;
 
 import java.util.LinkedList;
@@ -98,27 +99,40 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase
   }
 
   @Override
-  public void submitBlock(Block block, StreamObserver<SubmitReply> responseObserver)
+  public void submitBlock(Block block, final StreamObserver<SubmitReply> responseObserver)
   {
+    // Answered from the pipeline once the block is saved or rejected
+    IngestPipeline.Callback callback = new IngestPipeline.Callback() {
+      public void done(boolean added)
+      {
+        SubmitReply.Builder reply = SubmitReply.newBuilder().setSuccess(added);
+        if (!added)
+        {
+          reply.setErrorMessage("Block not added, it is already known or its previous block is missing");
+        }
+        responseObserver.onNext(reply.build());
+        responseObserver.onCompleted();
+      }
+      public void failed(Throwable e)
+      {
+        logger.info("Rejecting block: " + e);
+
+        responseObserver.onNext(SubmitReply.newBuilder()
+            .setSuccess(false)
+            .setErrorMessage(e.toString())
+          .build());
+        responseObserver.onCompleted();
+      }
+    };
+
     try
     {
-      node.getBlockIngestor().ingestBlock(block);
+      node.getIngestPipeline().submit(new BlockWrapper(block), callback);
     }
-    catch(ValidationException e)
+    catch(InterruptedException e)
     {
-      logger.info("Rejecting block: " + e);
-
-      responseObserver.onNext(SubmitReply.newBuilder()
-          .setSuccess(false)
-          .setErrorMessage(e.toString())
-        .build());
-      responseObserver.onCompleted();
-      return;
+      responseObserver.onError(e);
     }
-
-    responseObserver.onNext(SubmitReply.newBuilder().setSuccess(true).build());
-    responseObserver.onCompleted();
-  
   }
 
   @Override
@@ -185,7 +199,17 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase
     if (request.getMaxResults() > 0) max_results = request.getMaxResults();
 
 
-    node.getUtxoHashedTrie().getNodeDetails(utxo_root.getBytes(), target, proof, results, max_results);
+    // Keep the nodes being read from being pruned out from under us
+    TriePruner pruner = node.getUtxoTriePruner();
+    if (pruner != null) pruner.pinRoot(utxo_root.getBytes());
+    try
+    {
+      node.getUtxoHashedTrie().getNodeDetails(utxo_root.getBytes(), target, proof, results, max_results);
+    }
+    finally
+    {
+      if (pruner != null) pruner.unpinRoot(utxo_root.getBytes());
+    }
 
     GetUTXONodeReply.Builder reply = GetUTXONodeReply.newBuilder();
 
@@ -210,7 +234,37 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase
       .setConnectedPeers(node.getPeerage().getConnectedPeerCount())
       .setEstimatedNodes(node.getPeerage().getEstimateUniqueNodes())
       .setNodeVersion(Globals.VERSION)
-      .putAllVersionMap(node.getPeerage().getVersionMap());
+      .putAllVersionMap(node.getPeerage().getVersionMap())
+      .setSigCacheHits(node.getSignatureCache().getHitCount())
+      .setSigCacheMisses(node.getSignatureCache().getMissCount());
+
+    if (node.getUtxoTrieCache() != null)
+    {
+      ns.setTrieCacheHits(node.getUtxoTrieCache().getHitCount());
+      ns.setTrieCacheMisses(node.getUtxoTrieCache().getMissCount());
+    }
+    if (node.getUtxoTriePruner() != null)
+    {
+      ns.setTriePrunedNodes(node.getUtxoTriePruner().getPrunedNodeCount());
+      ns.setTriePrunedBytes(node.getUtxoTriePruner().getPrunedBytes());
+    }
+    if (node.getDB().getBlockSummaryMap().getCache() != null)
+    {
+      ns.setSummaryCacheHits(node.getDB().getBlockSummaryMap().getCache().getHitCount());
+      ns.setSummaryCacheMisses(node.getDB().getBlockSummaryMap().getCache().getMissCount());
+    }
+    if (node.getDB().getHeightCache() != null)
+    {
+      ns.setHeightCacheHits(node.getDB().getHeightCache().getHitCount());
+      ns.setHeightCacheMisses(node.getDB().getHeightCache().getMissCount());
+    }
+
+    IngestPipeline pipeline = node.getIngestPipeline();
+    ns.setIngestCheckDepth(pipeline.getCheckDepth());
+    ns.setIngestWaitDepth(pipeline.getWaitingDepth());
+    ns.setIngestApplyDepth(pipeline.getApplyDepth());
+    ns.setIngestFullWaits(pipeline.getFullWaits());
+    ns.setIngestNotifyDepth(node.getBlockIngestor().getNotifyQueueSize());
 
     if (node.getBlockIngestor().getHead() != null)
     {
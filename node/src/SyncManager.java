@@ -0,0 +1,589 @@
+package snowblossom.node;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.ValidationException;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.RequestBlock;
+import snowblossom.proto.RequestBlockHeader;
+import snowblossom.proto.RequestBlocks;
+import snowblossom.proto.RequestHeaderRange;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headers first catch up for when a peer is ahead of us by more than the block we are missing.
+ *
+ * The header chain of the peer with the best tip is fetched by height, many requests at a time.
+ * Each header has its PoW checked (by PeerLink) and has to link to the one below it.  Once
+ * a run of linked headers starts from a block we have, the blocks for it are requested by hash
+ * from all connected peers, a window at a time with a cap per peer.  Requests that don't get an
+ * answer in time are given to another peer.  Blocks that come in are held and handed to the
+ * IngestPipeline in height order, as soon as the block before each one is saved or handed over.
+ *
+ * Peers that advertise range_requests in their tip get one RequestHeaderRange per run of
+ * missing headers and one RequestBlocks per batch of blocks.  Older peers get a request per
+ * header and per block.
+ *
+ * Following the tip one block at a time is still done by PeerLink.
+ */
+public class SyncManager extends Thread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.peering");
+
+  /** When looking for where the peer's chain forks from ours, how many heights back to ask at once */
+  private static final int FORK_SEARCH_STEP = 16;
+
+  /** How many times faster than the block time target a tip may claim blocks were found since our head */
+  private static final long MAX_BLOCK_RATE = 4L;
+
+  private final SnowBlossomNode node;
+  private final int header_window;
+  private final int block_window;
+  private final int peer_blocks;
+  private final long timeout_ms;
+  private final long bench_ms;
+
+  private PeerLink header_peer;
+  private BlockHeader target;
+  private final TreeMap<Integer, BlockHeader> headers = new TreeMap<>();
+  private final HashMap<Integer, Long> header_requests = new HashMap<>();
+  // Start and count of the header ranges asked for
+  private final HashMap<Integer, Integer> header_ranges = new HashMap<>();
+
+  private final HashMap<ChainHash, BlockRequest> block_requests = new HashMap<>();
+  private final HashMap<ChainHash, PeerLink> timed_out_on = new HashMap<>();
+  private final TreeMap<Integer, ReceivedBlock> ready = new TreeMap<>();
+  private final HashSet<ChainHash> ingesting = new HashSet<>();
+
+  // Peers whose header requests timed out, and when we will listen to their tips again
+  private final HashMap<PeerLink, Long> benched = new HashMap<>();
+
+  public SyncManager(SnowBlossomNode node)
+  {
+    setDaemon(true);
+    setName("SyncManager");
+
+    this.node = node;
+    this.header_window = node.getConfig().getIntWithDefault("sync_header_window", 500);
+    this.block_window = node.getConfig().getIntWithDefault("sync_block_window", 64);
+    this.peer_blocks = node.getConfig().getIntWithDefault("sync_peer_blocks", 8);
+    this.timeout_ms = node.getConfig().getIntWithDefault("sync_timeout_ms", 30000);
+    this.bench_ms = node.getConfig().getIntWithDefault("sync_bench_ms", 600000);
+  }
+
+  /**
+   * A peer has a chain tip we don't have the previous block for.
+   * If it is better than what we are syncing to, sync to it instead.
+   *
+   * Only the PoW of the tip itself has been checked, so its height is whatever the peer
+   * says.  Tips claiming more blocks than could have been found since our head are ignored,
+   * as are tips from a peer that didn't answer its header requests in time, for a while.
+   */
+  public synchronized void addTip(PeerLink link, BlockHeader header)
+  {
+    Long bench_end = benched.get(link);
+    if ((bench_end != null) && (bench_end > System.currentTimeMillis())) return;
+
+    int max_height = getMaxPlausibleHeight(System.currentTimeMillis());
+    if (header.getBlockHeight() > max_height)
+    {
+      logger.log(Level.FINE, String.format("Ignoring tip at height %d from %s, more than %d is not believable",
+        header.getBlockHeight(), link.getLinkId(), max_height));
+      return;
+    }
+
+    if ((target != null) && (header_peer != null) && header_peer.isOpen())
+    {
+      if (header.getBlockHeight() <= target.getBlockHeight()) return;
+    }
+
+    if (header_peer != link)
+    {
+      // Headers from another peer could be from another chain
+      headers.clear();
+      header_requests.clear();
+      header_ranges.clear();
+      logger.info(String.format("Syncing headers to height %d from %s", header.getBlockHeight(), link.getLinkId()));
+    }
+    header_peer = link;
+    target = header;
+    headers.put(header.getBlockHeight(), header);
+    notifyAll();
+  }
+
+  /**
+   * @return the highest height that could have been reached by now if our head is on the
+   * best chain, allowing blocks to come a lot faster than the target plus a header window
+   */
+  private int getMaxPlausibleHeight(long now)
+  {
+    BlockSummary head = node.getBlockIngestor().getHead();
+    if (head == null) return Integer.MAX_VALUE;
+
+    long elapsed = Math.max(0L, now - head.getHeader().getTimestamp());
+    long max = head.getHeader().getBlockHeight() + header_window
+      + MAX_BLOCK_RATE * elapsed / node.getParams().getBlockTimeTarget();
+    return (int) Math.min(max, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return true if this was a header we asked for
+   */
+  public synchronized boolean onHeader(PeerLink link, BlockHeader header)
+  {
+    if (!acceptHeader(link, header)) return false;
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Headers we didn't ask for are ignored.  A peer may send fewer headers than the range
+   * asked for, so the heights past the end of the batch are asked for again rather than
+   * left to time out.
+   */
+  public synchronized void onHeaderBatch(PeerLink link, List<BlockHeader> batch)
+  {
+    if (batch.isEmpty()) return;
+    for(BlockHeader header : batch)
+    {
+      acceptHeader(link, header);
+    }
+    if (link == header_peer)
+    {
+      int start = batch.get(0).getBlockHeight();
+      Integer count = header_ranges.remove(start);
+      if (count != null)
+      {
+        for(int h = start + batch.size(); h < start + count; h++)
+        {
+          header_requests.remove(h);
+        }
+      }
+    }
+    notifyAll();
+  }
+
+  private boolean acceptHeader(PeerLink link, BlockHeader header)
+  {
+    if (link != header_peer) return false;
+    if (header_requests.remove(header.getBlockHeight()) == null) return false;
+
+    headers.put(header.getBlockHeight(), header);
+    return true;
+  }
+
+  /**
+   * @return true if this was a block we asked for, in which case it will be ingested
+   * when the blocks before it are
+   */
+  public synchronized boolean onBlock(PeerLink link, BlockWrapper blk)
+  {
+    BlockRequest req = block_requests.remove(blk.getHash());
+    if (req == null) return false;
+
+    ready.put(req.height, new ReceivedBlock(link, blk));
+    notifyAll();
+    return true;
+  }
+
+  public synchronized int getPendingBlocks()
+  {
+    return block_requests.size() + ready.size() + ingesting.size();
+  }
+
+  public void run()
+  {
+    while(true)
+    {
+      try
+      {
+        synchronized(this)
+        {
+          wait(250);
+        }
+        ingestReady();
+        schedule();
+      }
+      catch(Throwable t)
+      {
+        logger.log(Level.WARNING, "Exception in SyncManager", t);
+      }
+    }
+  }
+
+  /**
+   * Hands held blocks to the ingest pipeline lowest height first, as long as the block before
+   * each one is in the db or already handed over.  Submitting waits when the pipeline is
+   * full, so this is done without holding the lock.
+   */
+  private void ingestReady()
+    throws InterruptedException
+  {
+    while(true)
+    {
+      final ReceivedBlock rb;
+      final ChainHash hash;
+      synchronized(this)
+      {
+        if (ready.isEmpty()) return;
+        Map.Entry<Integer, ReceivedBlock> first = ready.firstEntry();
+        BlockWrapper blk = first.getValue().blk;
+        if ((first.getKey() > 0) && (!haveBlock(blk.getPrevHash().getBytes()))
+          && (!ingesting.contains(blk.getPrevHash()))) return;
+        ready.pollFirstEntry();
+        rb = first.getValue();
+        hash = blk.getHash();
+        ingesting.add(hash);
+      }
+
+      node.getIngestPipeline().submit(rb.blk, new IngestPipeline.Callback() {
+        public void done(boolean added)
+        {
+          synchronized(SyncManager.this)
+          {
+            ingesting.remove(hash);
+            SyncManager.this.notifyAll();
+          }
+        }
+        public void failed(Throwable e)
+        {
+          if (e instanceof ValidationException)
+          {
+            logger.log(Level.INFO, String.format("Block from %s did not validate, restarting sync", rb.link.getLinkId()), e);
+            rb.link.close();
+          }
+          reset();
+        }
+      });
+    }
+  }
+
+  private synchronized void reset()
+  {
+    header_peer = null;
+    target = null;
+    headers.clear();
+    header_requests.clear();
+    header_ranges.clear();
+    block_requests.clear();
+    ready.clear();
+    ingesting.clear();
+  }
+
+  private synchronized void schedule()
+  {
+    if (target == null) return;
+
+    long now = System.currentTimeMillis();
+    int our_height = node.getBlockIngestor().getHeight();
+
+    if ((header_peer == null) || (!header_peer.isOpen()))
+    {
+      logger.info("Header sync peer gone, waiting for a new tip");
+      header_peer = null;
+      target = null;
+      headers.clear();
+      header_requests.clear();
+      header_ranges.clear();
+    }
+
+    expireRequests(now);
+
+    // Done with anything we already have
+    if ((target != null) && haveBlock(target.getSnowHash()))
+    {
+      logger.info(String.format("Sync to height %d complete", target.getBlockHeight()));
+      target = null;
+      headers.clear();
+      header_requests.clear();
+      header_ranges.clear();
+    }
+    if (target == null) return;
+
+    int start = findStart(our_height);
+    if (start < 0) return;
+
+    int end = start;
+    while(true)
+    {
+      BlockHeader next = headers.get(end + 1);
+      if (next == null) break;
+      if (!next.getPrevBlockHash().equals(headers.get(end).getSnowHash()))
+      {
+        // Peer's chain moved under us, ask again
+        headers.remove(end + 1);
+        break;
+      }
+      end++;
+    }
+
+    // Headers we no longer need, and blocks held for a chain we are no longer following
+    headers.headMap(start).clear();
+    ready.headMap(start).clear();
+    Iterator<Map.Entry<Integer, ReceivedBlock>> r_it = ready.entrySet().iterator();
+    while(r_it.hasNext())
+    {
+      Map.Entry<Integer, ReceivedBlock> me = r_it.next();
+      BlockHeader header = headers.get(me.getKey());
+      if ((header == null) || (!header.getSnowHash().equals(me.getValue().blk.getHeader().getSnowHash())))
+      {
+        r_it.remove();
+      }
+    }
+
+    requestHeaders(end + 1, Math.min(target.getBlockHeight(), end + header_window), now);
+
+    requestBlocks(start, Math.min(end, start + block_window - 1), now);
+  }
+
+  /**
+   * @return the lowest height of the header run that links to a block we have,
+   * or -1 after asking for the headers needed to find it
+   */
+  private int findStart(int our_height)
+  {
+    long now = System.currentTimeMillis();
+    int s = Math.min(our_height + 1, target.getBlockHeight());
+
+    BlockHeader header = headers.get(s);
+    if (header == null)
+    {
+      requestHeaders(s, Math.min(target.getBlockHeight(), s + header_window - 1), now);
+      return -1;
+    }
+
+    // Walk down until the header links to a block we have
+    while((s > 0) && (!haveBlock(header.getPrevBlockHash())))
+    {
+      BlockHeader below = headers.get(s - 1);
+      if ((below == null) || (!below.getSnowHash().equals(header.getPrevBlockHash())))
+      {
+        if (below != null) headers.remove(s - 1);
+        requestHeaders(Math.max(0, s - FORK_SEARCH_STEP), s - 1, now);
+        return -1;
+      }
+      s--;
+      header = below;
+    }
+    return s;
+  }
+
+  /**
+   * Asks the header peer for the headers from low to high that we don't have or already
+   * asked for, as ranges of at most BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE if it takes them.
+   */
+  private void requestHeaders(int low, int high, long now)
+  {
+    boolean ranges = header_peer.supportsRangeRequests();
+    int run_start = -1;
+    int run_count = 0;
+    for(int h = low; h <= high; h++)
+    {
+      boolean need = (!headers.containsKey(h)) && (!header_requests.containsKey(h));
+      if (need && (header_requests.size() >= header_window)) break;
+
+      if (need)
+      {
+        header_requests.put(h, now);
+        if (!ranges)
+        {
+          header_peer.writeMessage( PeerMessage.newBuilder()
+            .setReqHeader(RequestBlockHeader.newBuilder().setBlockHeight(h).build())
+            .build());
+          continue;
+        }
+        if (run_count == 0) run_start = h;
+        run_count++;
+      }
+      if ((run_count > 0) && ((!need) || (run_count >= Globals.BLOCK_CHUNK_HEADER_DOWNLOAD_SIZE)))
+      {
+        requestHeaderRange(run_start, run_count);
+        run_count = 0;
+      }
+    }
+    if (run_count > 0)
+    {
+      requestHeaderRange(run_start, run_count);
+    }
+  }
+
+  private void requestHeaderRange(int start, int count)
+  {
+    header_ranges.put(start, count);
+    header_peer.writeMessage( PeerMessage.newBuilder()
+      .setReqHeaderRange(RequestHeaderRange.newBuilder().setStart(start).setCount(count).build())
+      .build());
+  }
+
+  private void requestBlocks(int low, int high, long now)
+  {
+    HashMap<PeerLink, Integer> load = new HashMap<>();
+    for(BlockRequest req : block_requests.values())
+    {
+      Integer n = load.get(req.link);
+      if (n == null) n = 0;
+      load.put(req.link, n + 1);
+    }
+
+    ImmutableList<PeerLink> links = node.getPeerage().getLinkList();
+    HashMap<PeerLink, RequestBlocks.Builder> to_send = new HashMap<>();
+
+    for(int h = low; h <= high; h++)
+    {
+      ChainHash hash = new ChainHash(headers.get(h).getSnowHash());
+      if (ready.containsKey(h)) continue;
+      if (block_requests.containsKey(hash)) continue;
+      if (ingesting.contains(hash)) continue;
+      if (haveBlock(hash.getBytes())) continue;
+
+      PeerLink link = pickLink(links, load, timed_out_on.get(hash));
+      if (link == null) break;
+
+      Integer n = load.get(link);
+      if (n == null) n = 0;
+      load.put(link, n + 1);
+
+      block_requests.put(hash, new BlockRequest(h, link, now));
+      if (link.supportsRangeRequests())
+      {
+        RequestBlocks.Builder req = to_send.get(link);
+        if (req == null)
+        {
+          req = RequestBlocks.newBuilder();
+          to_send.put(link, req);
+        }
+        req.addBlockHashes(hash.getBytes());
+      }
+      else
+      {
+        link.writeMessage( PeerMessage.newBuilder()
+          .setReqBlock(RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
+          .build());
+      }
+    }
+
+    for(Map.Entry<PeerLink, RequestBlocks.Builder> me : to_send.entrySet())
+    {
+      me.getKey().writeMessage( PeerMessage.newBuilder().setReqBlocks(me.getValue().build()).build());
+    }
+  }
+
+  /**
+   * @return the open link with the fewest blocks in flight that is under the cap,
+   * avoiding the one that last timed out on this block if there is another
+   */
+  private PeerLink pickLink(ImmutableList<PeerLink> links, HashMap<PeerLink, Integer> load, PeerLink avoid)
+  {
+    PeerLink best = null;
+    int best_load = peer_blocks;
+    for(PeerLink link : links)
+    {
+      if (!link.isOpen()) continue;
+      Integer n = load.get(link);
+      if (n == null) n = 0;
+      if (link == avoid) n = n + peer_blocks;
+      if (n < best_load)
+      {
+        best = link;
+        best_load = n;
+      }
+    }
+    if ((best == null) && (avoid != null) && avoid.isOpen())
+    {
+      Integer n = load.get(avoid);
+      if ((n == null) || (n < peer_blocks)) best = avoid;
+    }
+    return best;
+  }
+
+  private void expireRequests(long now)
+  {
+    Iterator<Map.Entry<ChainHash, BlockRequest>> it = block_requests.entrySet().iterator();
+    while(it.hasNext())
+    {
+      Map.Entry<ChainHash, BlockRequest> me = it.next();
+      BlockRequest req = me.getValue();
+      if ((req.sent + timeout_ms < now) || (!req.link.isOpen()))
+      {
+        logger.log(Level.FINE, String.format("Block request at height %d to %s timed out", req.height, req.link.getLinkId()));
+        timed_out_on.put(me.getKey(), req.link);
+        it.remove();
+      }
+    }
+    if (timed_out_on.size() > block_window * 4) timed_out_on.clear();
+
+    Iterator<Map.Entry<PeerLink, Long>> b_it = benched.entrySet().iterator();
+    while(b_it.hasNext())
+    {
+      Map.Entry<PeerLink, Long> me = b_it.next();
+      if ((me.getValue() < now) || (!me.getKey().isOpen())) b_it.remove();
+    }
+
+    Iterator<Map.Entry<Integer, Long>> h_it = header_requests.entrySet().iterator();
+    boolean header_stall = false;
+    while(h_it.hasNext())
+    {
+      if (h_it.next().getValue() + timeout_ms < now)
+      {
+        h_it.remove();
+        header_stall = true;
+      }
+    }
+    if (header_stall)
+    {
+      // Let the next tip from any other peer take over
+      logger.info(String.format("Header requests to %s timed out", header_peer.getLinkId()));
+      benched.put(header_peer, now + bench_ms);
+      header_peer = null;
+      target = null;
+      headers.clear();
+      header_requests.clear();
+      header_ranges.clear();
+    }
+  }
+
+  private boolean haveBlock(ByteString hash)
+  {
+    return node.getDB().getBlockSummaryMap().containsKey(hash);
+  }
+
+  private static class BlockRequest
+  {
+    final int height;
+    final PeerLink link;
+    final long sent;
+
+    BlockRequest(int height, PeerLink link, long sent)
+    {
+      this.height = height;
+      this.link = link;
+      this.sent = sent;
+    }
+  }
+
+  private static class ReceivedBlock
+  {
+    final PeerLink link;
+    final BlockWrapper blk;
+
+    ReceivedBlock(PeerLink link, BlockWrapper blk)
+    {
+      this.link = link;
+      this.blk = blk;
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+package snowblossom.node;
+
+import com.google.protobuf.ByteString;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.trie.TriePruner;
+import snowblossom.proto.BlockSummary;
+
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Every so many blocks, prunes the utxo trie down to the roots of the last keep_blocks
+ * blocks.  That is the main chain roots from the height map plus the roots of any other
+ * blocks ingested at those heights since startup, so short side chains can still be built on.
+ */
+public class UtxoPruner extends Thread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.node");
+
+  private final SnowBlossomNode node;
+  private final TriePruner pruner;
+  private final int keep_blocks;
+  private final int prune_every;
+
+  private final TreeMap<Integer, HashSet<ByteString>> recent_roots = new TreeMap<>();
+  private int last_prune_height = -1;
+
+  public UtxoPruner(SnowBlossomNode node, TriePruner pruner, int keep_blocks, int prune_every)
+  {
+    setDaemon(true);
+    setName("UtxoPruner");
+
+    this.node = node;
+    this.pruner = pruner;
+    this.keep_blocks = keep_blocks;
+    this.prune_every = prune_every;
+  }
+
+  /**
+   * Called with each block summary saved so side chain roots are kept too
+   */
+  public void addBlock(BlockSummary summary)
+  {
+    synchronized(recent_roots)
+    {
+      int height = summary.getHeader().getBlockHeight();
+      if (!recent_roots.containsKey(height))
+      {
+        recent_roots.put(height, new HashSet<ByteString>());
+      }
+      recent_roots.get(height).add(summary.getHeader().getUtxoRootHash());
+    }
+  }
+
+  public void run()
+  {
+    while(true)
+    {
+      try
+      {
+        sleep(60000);
+
+        int height = node.getBlockIngestor().getHeight();
+        if (height >= last_prune_height + prune_every)
+        {
+          pruneAt(height);
+          last_prune_height = height;
+        }
+      }
+      catch(Throwable t)
+      {
+        logger.log(Level.WARNING, "Exception in UtxoPruner", t);
+      }
+    }
+  }
+
+  private void pruneAt(int height)
+  {
+    int min_height = Math.max(0, height - keep_blocks + 1);
+    HashSet<ByteString> keep = new HashSet<>();
+
+    synchronized(recent_roots)
+    {
+      recent_roots.headMap(min_height).clear();
+      for(HashSet<ByteString> roots : recent_roots.values())
+      {
+        keep.addAll(roots);
+      }
+    }
+
+    for(int h = min_height; h<=height; h++)
+    {
+      ChainHash hash = node.getDB().getBlockHashAtHeight(h);
+      if (hash == null) continue;
+      BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash.getBytes());
+      if (summary == null) continue;
+      keep.add(summary.getHeader().getUtxoRootHash());
+    }
+
+    BlockSummary head = node.getBlockIngestor().getHead();
+    if (head != null)
+    {
+      keep.add(head.getHeader().getUtxoRootHash());
+    }
+
+    logger.info(String.format("Pruning utxo trie at height %d keeping %d roots", height, keep.size()));
+    pruner.prune(keep);
+    logger.info(String.format("Utxo trie pruning has removed %d nodes (%d bytes) since startup",
+      pruner.getPrunedNodeCount(), pruner.getPrunedBytes()));
+  }
+
+}
@@ -8,7 +8,10 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
   MemPoolTest.class,
   BlockIngestorTest.class,
-  BlockForgeTest.class
+  BlockForgeTest.class,
+  IngestPipelineTest.class,
+  SyncManagerTest.class,
+  PeerLinkTest.class
 })
 public class AllTests
 {}
@@ -0,0 +1,196 @@
+package node.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.ValidationException;
+import snowblossom.node.IngestPipeline;
+import snowblossom.proto.Block;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class IngestPipelineTest
+{
+  @Test
+  public void testOutOfOrderAppliedInHeightOrder()
+    throws Exception
+  {
+    TestNode node = newNode(new TreeMap<String, String>());
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    List<Block> chain = makeChain(node, 5);
+
+    Result[] results = new Result[5];
+    for(int i=4; i>=0; i--)
+    {
+      results[i] = new Result();
+      node.getIngestPipeline().submit(new BlockWrapper(chain.get(i+1)), results[i]);
+    }
+    for(Result r : results)
+    {
+      r.await();
+      Assert.assertEquals(Boolean.TRUE, r.added);
+    }
+
+    Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), ingestor.applied);
+  }
+
+  @Test
+  public void testChildOfFailedBlockDropped()
+    throws Exception
+  {
+    TreeMap<String, String> settings = new TreeMap<>();
+    settings.put("ingest_check_threads", "1");
+    TestNode node = newNode(settings);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    List<Block> chain = makeChain(node, 3);
+
+    ingestor.fail_blocks.add(new ChainHash(chain.get(1).getHeader().getSnowHash()));
+
+    Result child = new Result();
+    Result grandchild = new Result();
+    Result parent = new Result();
+    node.getIngestPipeline().submit(new BlockWrapper(chain.get(3)), grandchild);
+    node.getIngestPipeline().submit(new BlockWrapper(chain.get(2)), child);
+    node.getIngestPipeline().submit(new BlockWrapper(chain.get(1)), parent);
+
+    parent.await();
+    child.await();
+    grandchild.await();
+
+    Assert.assertTrue(parent.error instanceof ValidationException);
+    Assert.assertEquals(Boolean.FALSE, child.added);
+    Assert.assertEquals(Boolean.FALSE, grandchild.added);
+    Assert.assertEquals(0, ingestor.applied.size());
+    Assert.assertEquals(0, node.getIngestPipeline().getWaitingDepth());
+  }
+
+  @Test
+  public void testApplyErrorReported()
+    throws Exception
+  {
+    TestNode node = newNode(new TreeMap<String, String>());
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    List<Block> chain = makeChain(node, 1);
+
+    ingestor.error_blocks.add(new ChainHash(chain.get(1).getHeader().getSnowHash()));
+
+    Result r = new Result();
+    node.getIngestPipeline().submit(new BlockWrapper(chain.get(1)), r);
+    r.await();
+
+    Assert.assertNull(r.added);
+    Assert.assertTrue(r.error instanceof RuntimeException);
+  }
+
+  @Test
+  public void testBackPressure()
+    throws Exception
+  {
+    TreeMap<String, String> settings = new TreeMap<>();
+    settings.put("ingest_queue_size", "2");
+    settings.put("ingest_check_threads", "1");
+    final TestNode node = newNode(settings);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    final List<Block> chain = makeChain(node, 3);
+
+    Semaphore gate = new Semaphore(0);
+    ingestor.check_gate = gate;
+
+    final Result[] results = new Result[3];
+    for(int i=0; i<3; i++) results[i] = new Result();
+
+    node.getIngestPipeline().submit(new BlockWrapper(chain.get(1)), results[0]);
+    node.getIngestPipeline().submit(new BlockWrapper(chain.get(2)), results[1]);
+
+    Thread third = new Thread() {
+      public void run()
+      {
+        try
+        {
+          node.getIngestPipeline().submit(new BlockWrapper(chain.get(3)), results[2]);
+        }
+        catch(InterruptedException e)
+        {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    third.start();
+
+    long end = System.currentTimeMillis() + 10000L;
+    while((node.getIngestPipeline().getFullWaits() == 0L) && (System.currentTimeMillis() < end))
+    {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1L, node.getIngestPipeline().getFullWaits());
+    Thread.sleep(100);
+    Assert.assertTrue(third.isAlive());
+
+    gate.release(3);
+    third.join(10000L);
+    Assert.assertFalse(third.isAlive());
+
+    for(Result r : results)
+    {
+      r.await();
+      Assert.assertEquals(Boolean.TRUE, r.added);
+    }
+    Assert.assertEquals(Arrays.asList(1, 2, 3), ingestor.applied);
+  }
+
+  private static TestNode newNode(TreeMap<String, String> settings)
+    throws Exception
+  {
+    settings.put("ingest_wait_ms", "1000");
+    TestNode node = new TestNode(settings);
+    node.setBlockIngestor(new TestNode.TestIngestor(node));
+
+    IngestPipeline pipeline = new IngestPipeline(node);
+    node.setIngestPipeline(pipeline);
+    pipeline.start();
+    return node;
+  }
+
+  /**
+   * @return genesis, saved as the head, and count blocks on it
+   */
+  private static List<Block> makeChain(TestNode node, int count)
+  {
+    List<Block> chain = TestNode.makeChain(null, count + 1);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    ingestor.setHead(node.saveBlock(chain.get(0)));
+    return chain;
+  }
+
+  public static class Result implements IngestPipeline.Callback
+  {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    public volatile Boolean added;
+    public volatile Throwable error;
+
+    public void done(boolean added)
+    {
+      this.added = added;
+      latch.countDown();
+    }
+
+    public void failed(Throwable e)
+    {
+      this.error = e;
+      latch.countDown();
+    }
+
+    public void await()
+      throws InterruptedException
+    {
+      Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+  }
+
+}
@@ -1,6 +1,7 @@
 package node.test;
 
 import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
 import duckutil.TimeRecord;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -14,6 +15,7 @@ import snowblossom.lib.trie.TrieDBMem;
 import snowblossom.lib.AddressSpecHash;
 import snowblossom.lib.AddressUtil;
 import snowblossom.lib.ChainHash;
+import snowblossom.lib.CompactBlockUtil;
 import snowblossom.lib.Globals;
 import snowblossom.lib.KeyUtil;
 import snowblossom.node.MemPool;
@@ -23,6 +25,7 @@ import snowblossom.lib.UtxoUpdateBuffer;
 import snowblossom.lib.ValidationException;
 
 import java.security.KeyPair;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 
@@ -98,6 +101,40 @@ public class MemPoolTest
     Assert.assertEquals(1, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
   }
 
+  @Test
+  public void testTransactionsByShortId()
+    throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    TransactionInput in = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in.getSpecHash())
+      .setValue(100000L)
+      .build();
+
+    Transaction tx = TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys);
+
+    MemPool mem_pool = new MemPool(utxo_trie);
+    mem_pool.rebuildPriorityMap(utxo_root);
+    mem_pool.addTransaction(tx);
+
+    ByteString short_id = CompactBlockUtil.getShortId(tx.getTxHash());
+    byte[] other_buff = new byte[Globals.SHORT_TX_ID_LEN];
+    new Random().nextBytes(other_buff);
+    ByteString other_id = ByteString.copyFrom(other_buff);
+
+    Map<ByteString, Transaction> found = mem_pool.getTransactionsByShortId(ImmutableList.of(short_id, other_id));
+
+    // Only the one we have
+    Assert.assertEquals(1, found.size());
+    Assert.assertEquals(tx, found.get(short_id));
+  }
+
   @Test
   public void testBasicTxNoInput()
     throws Exception
@@ -0,0 +1,269 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.CompactBlockUtil;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.Globals;
+import snowblossom.node.IngestPipeline;
+import snowblossom.node.MemPool;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockTxn;
+import snowblossom.proto.HeaderBatch;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.RequestBlock;
+import snowblossom.proto.RequestBlocks;
+import snowblossom.proto.RequestHeaderRange;
+import snowblossom.proto.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class PeerLinkTest
+{
+  @Test
+  public void testRangeServingCapped()
+    throws Exception
+  {
+    TreeMap<String, String> settings = new TreeMap<>();
+    settings.put("peer_max_header_range", "10");
+    settings.put("peer_max_block_request", "3");
+    TestNode node = new TestNode(settings);
+
+    List<Block> chain = TestNode.makeChain(null, 30);
+    RequestBlocks.Builder req_blocks = RequestBlocks.newBuilder();
+    for(Block blk : chain)
+    {
+      node.saveBlock(blk);
+      req_blocks.addBlockHashes(blk.getHeader().getSnowHash());
+    }
+
+    TestNode.TestLink link = new TestNode.TestLink(node);
+
+    link.onNext(PeerMessage.newBuilder()
+      .setReqHeaderRange(RequestHeaderRange.newBuilder().setStart(0).setCount(1000).build())
+      .build());
+    HeaderBatch batch = link.pollRequest(1000L).getHeaderBatch();
+    Assert.assertEquals(10, batch.getHeadersCount());
+    for(int i=0; i<10; i++)
+    {
+      Assert.assertEquals(i, batch.getHeaders(i).getBlockHeight());
+    }
+
+    // Stops at the end of the chain
+    link.onNext(PeerMessage.newBuilder()
+      .setReqHeaderRange(RequestHeaderRange.newBuilder().setStart(25).setCount(100).build())
+      .build());
+    batch = link.pollRequest(1000L).getHeaderBatch();
+    Assert.assertEquals(5, batch.getHeadersCount());
+    Assert.assertEquals(25, batch.getHeaders(0).getBlockHeight());
+
+    link.onNext(PeerMessage.newBuilder().setReqBlocks(req_blocks.build()).build());
+    for(int i=0; i<3; i++)
+    {
+      PeerMessage msg = link.pollRequest(1000L);
+      Assert.assertTrue(msg.hasBlock());
+      Assert.assertEquals(chain.get(i), msg.getBlock());
+    }
+    Assert.assertNull(link.pollRequest(200L));
+  }
+
+  @Test
+  public void testServingRateCapped()
+    throws Exception
+  {
+    TreeMap<String, String> settings = new TreeMap<>();
+    settings.put("peer_serve_window_ms", "500");
+    settings.put("peer_max_headers_per_window", "10");
+    settings.put("peer_max_blocks_per_window", "2");
+    TestNode node = new TestNode(settings);
+
+    List<Block> chain = TestNode.makeChain(null, 20);
+    for(Block blk : chain)
+    {
+      node.saveBlock(blk);
+    }
+    TestNode.TestLink link = new TestNode.TestLink(node);
+
+    // The second range goes over the window, so it waits for the next one
+    long start = System.currentTimeMillis();
+    link.onNext(PeerMessage.newBuilder()
+      .setReqHeaderRange(RequestHeaderRange.newBuilder().setStart(0).setCount(10).build())
+      .build());
+    link.onNext(PeerMessage.newBuilder()
+      .setReqHeaderRange(RequestHeaderRange.newBuilder().setStart(10).setCount(5).build())
+      .build());
+    Assert.assertTrue(System.currentTimeMillis() - start >= 400L);
+    Assert.assertEquals(10, link.pollRequest(1000L).getHeaderBatch().getHeadersCount());
+    Assert.assertEquals(5, link.pollRequest(1000L).getHeaderBatch().getHeadersCount());
+
+    // Blocks count the same whether asked for one at a time or in a batch
+    start = System.currentTimeMillis();
+    link.onNext(PeerMessage.newBuilder()
+      .setReqBlock(RequestBlock.newBuilder().setBlockHash(chain.get(0).getHeader().getSnowHash()).build())
+      .build());
+    link.onNext(PeerMessage.newBuilder()
+      .setReqBlocks(RequestBlocks.newBuilder()
+        .addBlockHashes(chain.get(1).getHeader().getSnowHash())
+        .addBlockHashes(chain.get(2).getHeader().getSnowHash())
+        .build())
+      .build());
+    Assert.assertTrue(System.currentTimeMillis() - start >= 400L);
+    for(int i=0; i<3; i++)
+    {
+      Assert.assertEquals(chain.get(i), link.pollRequest(1000L).getBlock());
+    }
+  }
+
+  @Test
+  public void testCompactBlockMissingTxRequested()
+    throws Exception
+  {
+    TestNode node = newNode();
+    Block blk = makeBlock(node, 4);
+
+    // A short id two mempool transactions share is left out, the same as one we don't have
+    HashMap<ByteString, Transaction> found = new HashMap<>();
+    for(int i : new int[]{1, 2, 4})
+    {
+      Transaction tx = blk.getTransactions(i);
+      found.put(CompactBlockUtil.getShortId(tx.getTxHash()), tx);
+    }
+    node.setMemPool(new FixedMemPool(found));
+
+    TestNode.TestLink link = new TestNode.TestLink(node);
+    link.onNext(PeerMessage.newBuilder().setCompactBlock(CompactBlockUtil.makeCompact(blk)).build());
+
+    PeerMessage msg = link.pollRequest(1000L);
+    Assert.assertTrue(msg.hasReqBlockTxn());
+    Assert.assertEquals(blk.getHeader().getSnowHash(), msg.getReqBlockTxn().getBlockHash());
+    Assert.assertEquals(1, msg.getReqBlockTxn().getTxIndexesCount());
+    Assert.assertEquals(3, msg.getReqBlockTxn().getTxIndexes(0));
+
+    link.onNext(PeerMessage.newBuilder().setBlockTxn(
+      BlockTxn.newBuilder()
+        .setBlockHash(blk.getHeader().getSnowHash())
+        .addTxIndexes(3)
+        .addTransactions(blk.getTransactions(3))
+        .build())
+      .build());
+
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    long end = System.currentTimeMillis() + 10000L;
+    while((ingestor.applied.isEmpty()) && (System.currentTimeMillis() < end))
+    {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1, ingestor.applied.size());
+    Assert.assertEquals(blk, node.getDB().getBlockMap().get(blk.getHeader().getSnowHash()));
+  }
+
+  @Test
+  public void testCompactBlockWrongTxGetsFullBlock()
+    throws Exception
+  {
+    TestNode node = newNode();
+    Block blk = makeBlock(node, 4);
+
+    // Another transaction with the same short id as transaction 2
+    Transaction other = Transaction.newBuilder()
+      .setTxHash(blk.getTransactions(2).getTxHash().substring(0, Globals.SHORT_TX_ID_LEN)
+        .concat(TestNode.randomHash().substring(Globals.SHORT_TX_ID_LEN)))
+      .setInnerData(TestNode.randomHash())
+      .build();
+
+    HashMap<ByteString, Transaction> found = new HashMap<>();
+    for(int i=1; i<blk.getTransactionsCount(); i++)
+    {
+      Transaction tx = blk.getTransactions(i);
+      if (i == 2) tx = other;
+      found.put(CompactBlockUtil.getShortId(tx.getTxHash()), tx);
+    }
+    node.setMemPool(new FixedMemPool(found));
+
+    TestNode.TestLink link = new TestNode.TestLink(node);
+    link.onNext(PeerMessage.newBuilder().setCompactBlock(CompactBlockUtil.makeCompact(blk)).build());
+
+    PeerMessage msg = link.pollRequest(1000L);
+    Assert.assertTrue(msg.hasReqBlock());
+    Assert.assertEquals(blk.getHeader().getSnowHash(), msg.getReqBlock().getBlockHash());
+
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    Assert.assertEquals(0, ingestor.applied.size());
+  }
+
+  private static TestNode newNode()
+    throws Exception
+  {
+    TestNode node = new TestNode(new TreeMap<String, String>());
+    node.setBlockIngestor(new TestNode.TestIngestor(node));
+
+    IngestPipeline pipeline = new IngestPipeline(node);
+    node.setIngestPipeline(pipeline);
+    pipeline.start();
+    return node;
+  }
+
+  /**
+   * @return a block at height 1 with a coinbase and tx_count other made up transactions,
+   * with genesis saved as the head
+   */
+  private static Block makeBlock(TestNode node, int tx_count)
+  {
+    Block genesis = TestNode.makeChain(null, 1).get(0);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    ingestor.setHead(node.saveBlock(genesis));
+
+    ArrayList<Transaction> txs = new ArrayList<>();
+    ArrayList<ChainHash> hashes = new ArrayList<>();
+    for(int i=0; i<=tx_count; i++)
+    {
+      Transaction tx = Transaction.newBuilder()
+        .setTxHash(TestNode.randomHash())
+        .setInnerData(TestNode.randomHash())
+        .build();
+      txs.add(tx);
+      hashes.add(new ChainHash(tx.getTxHash()));
+    }
+
+    BlockHeader header = BlockHeader.newBuilder()
+      .mergeFrom(TestNode.makeHeader(genesis.getHeader()))
+      .setMerkleRootHash(DigestUtil.getMerkleRootForTxList(hashes).getBytes())
+      .build();
+
+    return Block.newBuilder().setHeader(header).addAllTransactions(txs).build();
+  }
+
+  /**
+   * Answers short id lookups from a fixed map, since real short id collisions can't be made
+   */
+  public static class FixedMemPool extends MemPool
+  {
+    private final Map<ByteString, Transaction> found;
+
+    public FixedMemPool(Map<ByteString, Transaction> found)
+    {
+      super(MemPoolTest.newMemoryTrie());
+      this.found = found;
+    }
+
+    @Override
+    public synchronized Map<ByteString, Transaction> getTransactionsByShortId(Collection<ByteString> short_ids)
+    {
+      HashMap<ByteString, Transaction> m = new HashMap<>();
+      for(ByteString short_id : short_ids)
+      {
+        if (found.containsKey(short_id)) m.put(short_id, found.get(short_id));
+      }
+      return m;
+    }
+  }
+
+}
@@ -0,0 +1,227 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
+import snowblossom.node.IngestPipeline;
+import snowblossom.node.Peerage;
+import snowblossom.node.SyncManager;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.PeerChainTip;
+import snowblossom.proto.PeerMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+
+public class SyncManagerTest
+{
+  @Test
+  public void testOutOfOrderBlocksIngestedInOrder()
+    throws Exception
+  {
+    TestNode node = newNode(30000);
+    List<Block> chain = makeChain(node, 5);
+    TestNode.TestLink link = addLink(node);
+
+    node.getSyncManager().addTip(link, chain.get(5).getHeader());
+
+    // One link without range requests gets a request per header and per block
+    LinkedList<Integer> block_heights = new LinkedList<>();
+    while(block_heights.size() < 5)
+    {
+      PeerMessage msg = link.pollRequest(10000L);
+      Assert.assertNotNull(msg);
+      if (msg.hasReqHeader())
+      {
+        int h = msg.getReqHeader().getBlockHeight();
+        Assert.assertTrue(node.getSyncManager().onHeader(link, chain.get(h).getHeader()));
+      }
+      else if (msg.hasReqBlock())
+      {
+        block_heights.add(findHeight(chain, msg.getReqBlock().getBlockHash().toByteArray()));
+      }
+    }
+
+    // Highest first, none of them can go before the one below it shows up
+    for(int h=5; h>=1; h--)
+    {
+      Assert.assertTrue(block_heights.contains(h));
+      Assert.assertTrue(node.getSyncManager().onBlock(link, new BlockWrapper(chain.get(h))));
+    }
+
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    waitForApplied(ingestor, 5);
+    Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), ingestor.applied);
+  }
+
+  @Test
+  public void testTimedOutRequestReassigned()
+    throws Exception
+  {
+    TestNode node = newNode(300);
+    List<Block> chain = makeChain(node, 3);
+    TestNode.TestLink link_a = addLink(node);
+    TestNode.TestLink link_b = addLink(node);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+
+    node.getSyncManager().addTip(link_a, chain.get(3).getHeader());
+
+    // Each block is first asked of one link, which never answers
+    HashMap<ChainHash, TestNode.TestLink> first_asked = new HashMap<>();
+    HashSet<ChainHash> reassigned = new HashSet<>();
+
+    long end = System.currentTimeMillis() + 20000L;
+    while((ingestor.applied.size() < 3) && (System.currentTimeMillis() < end))
+    {
+      for(TestNode.TestLink link : Arrays.asList(link_a, link_b))
+      {
+        PeerMessage msg = link.pollRequest(20L);
+        if (msg == null) continue;
+        if (msg.hasReqHeader())
+        {
+          Assert.assertSame(link_a, link);
+          int h = msg.getReqHeader().getBlockHeight();
+          node.getSyncManager().onHeader(link, chain.get(h).getHeader());
+        }
+        else if (msg.hasReqBlock())
+        {
+          ChainHash hash = new ChainHash(msg.getReqBlock().getBlockHash());
+          TestNode.TestLink first = first_asked.get(hash);
+          if (first == null)
+          {
+            first_asked.put(hash, link);
+            continue;
+          }
+          if (first != link) reassigned.add(hash);
+          if (reassigned.contains(hash))
+          {
+            int h = findHeight(chain, hash.toByteArray());
+            node.getSyncManager().onBlock(link, new BlockWrapper(chain.get(h)));
+          }
+        }
+      }
+    }
+
+    Assert.assertEquals(3, reassigned.size());
+    Assert.assertEquals(Arrays.asList(1, 2, 3), ingestor.applied);
+  }
+
+  @Test
+  public void testShortHeaderBatchAskedAgain()
+    throws Exception
+  {
+    TestNode node = newNode(30000);
+    List<Block> chain = makeChain(node, 30);
+    TestNode.TestLink link = addLink(node);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+
+    // The tip turns on range requests for the link and starts the sync
+    link.onNext(PeerMessage.newBuilder()
+      .setTip(PeerChainTip.newBuilder()
+        .setNetworkName(node.getParams().getNetworkName())
+        .setHeader(chain.get(30).getHeader())
+        .setRangeRequests(true)
+        .build())
+      .build());
+
+    // The peer sends at most 10 headers per range, well inside the timeout
+    int ranges = 0;
+    long end = System.currentTimeMillis() + 10000L;
+    while((ingestor.applied.size() < 30) && (System.currentTimeMillis() < end))
+    {
+      PeerMessage msg = link.pollRequest(20L);
+      if (msg == null) continue;
+      if (msg.hasReqHeaderRange())
+      {
+        ranges++;
+        int start = msg.getReqHeaderRange().getStart();
+        int count = Math.min(msg.getReqHeaderRange().getCount(), 10);
+        ArrayList<BlockHeader> batch = new ArrayList<>();
+        for(int h = start; (h < start + count) && (h <= 30); h++)
+        {
+          batch.add(chain.get(h).getHeader());
+        }
+        node.getSyncManager().onHeaderBatch(link, batch);
+      }
+      else if (msg.hasReqBlocks())
+      {
+        for(ByteString hash : msg.getReqBlocks().getBlockHashesList())
+        {
+          int h = findHeight(chain, hash.toByteArray());
+          node.getSyncManager().onBlock(link, new BlockWrapper(chain.get(h)));
+        }
+      }
+    }
+
+    Assert.assertTrue(ranges >= 3);
+    Assert.assertEquals(30, ingestor.applied.size());
+    Assert.assertEquals(30, (int) ingestor.applied.get(29));
+  }
+
+  private static TestNode newNode(int timeout_ms)
+    throws Exception
+  {
+    TreeMap<String, String> settings = new TreeMap<>();
+    settings.put("sync_timeout_ms", "" + timeout_ms);
+    TestNode node = new TestNode(settings);
+    node.setBlockIngestor(new TestNode.TestIngestor(node));
+
+    IngestPipeline pipeline = new IngestPipeline(node);
+    node.setIngestPipeline(pipeline);
+    pipeline.start();
+
+    node.setPeerage(new Peerage(node));
+
+    SyncManager sync = new SyncManager(node);
+    node.setSyncManager(sync);
+    sync.start();
+    return node;
+  }
+
+  private static TestNode.TestLink addLink(TestNode node)
+  {
+    TestNode.TestLink link = new TestNode.TestLink(node);
+    node.getPeerage().register(link);
+    return link;
+  }
+
+  /**
+   * @return genesis, saved as the head, and count blocks on it
+   */
+  private static List<Block> makeChain(TestNode node, int count)
+  {
+    List<Block> chain = TestNode.makeChain(null, count + 1);
+    TestNode.TestIngestor ingestor = (TestNode.TestIngestor) node.getBlockIngestor();
+    ingestor.setHead(node.saveBlock(chain.get(0)));
+    return chain;
+  }
+
+  private static int findHeight(List<Block> chain, byte[] hash)
+  {
+    for(Block blk : chain)
+    {
+      if (Arrays.equals(hash, blk.getHeader().getSnowHash().toByteArray())) return blk.getHeader().getBlockHeight();
+    }
+    Assert.fail("Request for a block not in the chain");
+    return -1;
+  }
+
+  private static void waitForApplied(TestNode.TestIngestor ingestor, int count)
+    throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + 10000L;
+    while((ingestor.applied.size() < count) && (System.currentTimeMillis() < end))
+    {
+      Thread.sleep(10);
+    }
+  }
+
+}
@@ -0,0 +1,305 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import io.grpc.stub.StreamObserver;
+import snowblossom.lib.BlockWrapper;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.ValidationException;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBMapMutationSet;
+import snowblossom.lib.db.ScannableDBMap;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.node.BlockIngestor;
+import snowblossom.node.IngestPipeline;
+import snowblossom.node.MemPool;
+import snowblossom.node.PeerLink;
+import snowblossom.node.Peerage;
+import snowblossom.node.SnowBlossomNode;
+import snowblossom.node.SyncManager;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.PeerMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A regtest node over an in memory db, for testing the parts that take a SnowBlossomNode.
+ * The test sets whichever parts it uses, the rest are null.
+ */
+public class TestNode extends SnowBlossomNode
+{
+  private static final Random rnd = new Random();
+
+  private BlockIngestor ingestor;
+  private IngestPipeline ingest_pipeline;
+  private MemPool mem_pool;
+  private Peerage peerage;
+  private SyncManager sync_manager;
+
+  public TestNode(Map<String, String> settings)
+    throws Exception
+  {
+    this(makeConfig(settings));
+  }
+
+  private TestNode(ConfigMem config)
+    throws Exception
+  {
+    super(config, new MemDB(config));
+  }
+
+  private static ConfigMem makeConfig(Map<String, String> settings)
+  {
+    TreeMap<String, String> m = new TreeMap<>(settings);
+    m.put("network", "spoon");
+    return new ConfigMem(m);
+  }
+
+  @Override
+  public BlockIngestor getBlockIngestor(){ return ingestor; }
+  @Override
+  public IngestPipeline getIngestPipeline(){ return ingest_pipeline; }
+  @Override
+  public MemPool getMemPool(){ return mem_pool; }
+  @Override
+  public Peerage getPeerage(){ return peerage; }
+  @Override
+  public SyncManager getSyncManager(){ return sync_manager; }
+
+  public void setBlockIngestor(BlockIngestor ingestor){ this.ingestor = ingestor; }
+  public void setIngestPipeline(IngestPipeline ingest_pipeline){ this.ingest_pipeline = ingest_pipeline; }
+  public void setMemPool(MemPool mem_pool){ this.mem_pool = mem_pool; }
+  public void setPeerage(Peerage peerage){ this.peerage = peerage; }
+  public void setSyncManager(SyncManager sync_manager){ this.sync_manager = sync_manager; }
+
+  /**
+   * Saves the block, its summary and its height as if it had been ingested
+   */
+  public BlockSummary saveBlock(Block blk)
+  {
+    BlockSummary summary = BlockSummary.newBuilder().setHeader(blk.getHeader()).build();
+    ChainHash hash = new ChainHash(blk.getHeader().getSnowHash());
+    getDB().getBlockMap().put(hash.getBytes(), blk);
+    getDB().getBlockSummaryMap().put(hash.getBytes(), summary);
+    getDB().setBlockHashAtHeight(blk.getHeader().getBlockHeight(), hash);
+    return summary;
+  }
+
+  /**
+   * @return count blocks with no transactions, each on the one before, the first on prev
+   * or at height 0 if prev is null
+   */
+  public static List<Block> makeChain(BlockHeader prev, int count)
+  {
+    ArrayList<Block> lst = new ArrayList<>();
+    for(int i=0; i<count; i++)
+    {
+      Block blk = Block.newBuilder().setHeader(makeHeader(prev)).build();
+      lst.add(blk);
+      prev = blk.getHeader();
+    }
+    return lst;
+  }
+
+  public static BlockHeader makeHeader(BlockHeader prev)
+  {
+    BlockHeader.Builder header = BlockHeader.newBuilder()
+      .setVersion(1)
+      .setTimestamp(System.currentTimeMillis())
+      .setSnowHash(randomHash());
+    if (prev == null)
+    {
+      header.setPrevBlockHash(ChainHash.ZERO_HASH.getBytes());
+    }
+    else
+    {
+      header.setBlockHeight(prev.getBlockHeight() + 1);
+      header.setPrevBlockHash(prev.getSnowHash());
+    }
+    return header.build();
+  }
+
+  public static ByteString randomHash()
+  {
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  /**
+   * Skips all validation.  applyBlock() saves the block the way TestNode.saveBlock() does
+   * and moves the head to it, so later blocks find it.
+   */
+  public static class TestIngestor extends BlockIngestor
+  {
+    private final TestNode node;
+    private volatile BlockSummary head;
+
+    /** Heights of the blocks applied, in order */
+    public final List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+    /** Blocks that fail validation */
+    public final Set<ChainHash> fail_blocks = Collections.synchronizedSet(new HashSet<ChainHash>());
+    /** Blocks that throw something other than a ValidationException */
+    public final Set<ChainHash> error_blocks = Collections.synchronizedSet(new HashSet<ChainHash>());
+    /** If set, checkBlock() takes a permit from this first */
+    public volatile Semaphore check_gate;
+
+    public TestIngestor(TestNode node)
+      throws Exception
+    {
+      super(node);
+      this.node = node;
+    }
+
+    @Override
+    public void checkBlock(BlockWrapper wrapper)
+    {
+      Semaphore gate = check_gate;
+      if (gate != null) gate.acquireUninterruptibly();
+    }
+
+    @Override
+    public boolean applyBlock(BlockWrapper wrapper)
+      throws ValidationException
+    {
+      if (fail_blocks.contains(wrapper.getHash())) throw new ValidationException("test failure");
+      if (error_blocks.contains(wrapper.getHash())) throw new RuntimeException("test error");
+      if (node.getDB().getBlockSummaryMap().containsKey(wrapper.getHash().getBytes())) return false;
+
+      head = node.saveBlock(wrapper.getBlock());
+      applied.add(wrapper.getHeight());
+      return true;
+    }
+
+    @Override
+    public BlockSummary getHead()
+    {
+      return head;
+    }
+
+    public void setHead(BlockSummary head)
+    {
+      this.head = head;
+    }
+  }
+
+  /**
+   * A peer on the other end of nothing.  Headers are taken as they are and everything
+   * we send to the peer is kept in sent.
+   */
+  public static class TestLink extends PeerLink
+  {
+    public final LinkedBlockingQueue<PeerMessage> sent;
+
+    public TestLink(SnowBlossomNode node)
+    {
+      this(node, new LinkedBlockingQueue<PeerMessage>());
+    }
+
+    private TestLink(SnowBlossomNode node, final LinkedBlockingQueue<PeerMessage> sent)
+    {
+      super(node, new StreamObserver<PeerMessage>() {
+        public void onNext(PeerMessage msg){ sent.add(msg); }
+        public void onError(Throwable t){}
+        public void onCompleted(){}
+      });
+      this.sent = sent;
+    }
+
+    @Override
+    protected void checkHeader(BlockHeader header)
+    {
+    }
+
+    /**
+     * @return the next message sent to the peer that isn't a tip, or null if there is none in wait_ms
+     */
+    public PeerMessage pollRequest(long wait_ms)
+      throws InterruptedException
+    {
+      long end = System.currentTimeMillis() + wait_ms;
+      while(true)
+      {
+        long left = end - System.currentTimeMillis();
+        if (left <= 0L) return null;
+        PeerMessage msg = sent.poll(left, TimeUnit.MILLISECONDS);
+        if (msg == null) return null;
+        if (!msg.hasTip()) return msg;
+      }
+    }
+  }
+
+  public static class MemDB extends DB
+  {
+    public MemDB(ConfigMem config)
+      throws Exception
+    {
+      super(config);
+      open();
+    }
+
+    @Override
+    protected DBMap openMap(String name)
+    {
+      return new MemDBMap();
+    }
+
+    @Override
+    protected DBMapMutationSet openMutationMapSet(String name)
+    {
+      return null;
+    }
+  }
+
+  public static class MemDBMap extends ScannableDBMap
+  {
+    private TreeMap<ByteString, ByteString> map = new TreeMap<>(new ByteStringComparator());
+
+    @Override
+    public synchronized ByteString get(ByteString key)
+    {
+      return map.get(key);
+    }
+
+    @Override
+    public synchronized void put(ByteString key, ByteString value)
+    {
+      map.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(ByteString key)
+    {
+      map.remove(key);
+    }
+
+    @Override
+    public void scan(ScanVisitor visitor)
+    {
+      TreeMap<ByteString, ByteString> copy;
+      synchronized(this)
+      {
+        copy = new TreeMap<>(map);
+      }
+      for(Map.Entry<ByteString, ByteString> me : copy.entrySet())
+      {
+        if (!visitor.visit(me.getKey(), me.getValue())) return;
+      }
+    }
+  }
+
+}